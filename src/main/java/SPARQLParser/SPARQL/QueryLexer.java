@@ -0,0 +1,349 @@
+package SPARQLParser.SPARQL;
+
+import java.util.Arrays;
+
+/**
+ * The query lexer splits a query in the same tokens as the split query always did, but it reads the
+ * characters of the query (not its bytes) in one pass and does not build any strings while doing so.
+ * Every token is stored as a few ints in one array: where it starts and ends in the query, what kind
+ * of token it is, on which line it starts and, for tokens that were merged with the token before
+ * them, where that one is kept. The string of a token is only made when it is asked for.
+ *
+ * The tokens are:
+ *  - words: everything between white space, braces, strings, URIs and comments
+ *  - strings: from a '"' up to the next '"' that is not escaped, escapes are kept in the form the
+ *    parsers expect them in (an escaped '"' stays \" and every other escaped character gets an extra
+ *    backslash)
+ *  - URIs: from a '<' up to the next '>'
+ *  - '\n', '\r', '{' and '}' as tokens of their own
+ * Comments (from a '#' up to the end of the line) are dropped. An '@' or '^' that starts a word is
+ * glued to the token before it, so "..."@en and "..."^^xsd:int are one token.
+ */
+public class QueryLexer
+{
+    public static final int WORD = 0;
+    public static final int STRING = 1;
+    public static final int ESCAPED_STRING = 2;
+    public static final int URI = 3;
+    public static final int NEWLINE = 4;
+    public static final int RETURN = 5;
+    public static final int OPEN_BRACE = 6;
+    public static final int CLOSE_BRACE = 7;
+
+    // the layout of a token in the tokens array
+    private static final int START = 0;
+    private static final int END = 1;
+    private static final int KIND = 2;
+    private static final int LINE = 3;
+    private static final int PREFIX = 4;
+    private static final int STRIDE = 5;
+
+    private String query;
+
+    private int [] tokens;
+
+    private int size = 0;
+
+    // the tokens that were glued to the front of a later token, in the same layout
+    private int [] prefixes = new int[0];
+
+    private int prefixCount = 0;
+
+    /**
+     * splits the given query in tokens
+     *
+     * @param query the query
+     */
+    public QueryLexer(String query)
+    {
+        this.query = query;
+        this.tokens = new int[(16 + query.length() / 8) * STRIDE];
+        this.scan();
+    }
+
+    /**
+     * @return the amount of tokens
+     */
+    public int size()
+    {
+        return this.size;
+    }
+
+    /**
+     * @param token the index of the token
+     * @return the kind of the token, one of the constants of this class
+     */
+    public int getKind(int token)
+    {
+        return this.tokens[token * STRIDE + KIND];
+    }
+
+    /**
+     * @param token the index of the token
+     * @return the line in the query on which the token starts, starting at 1
+     */
+    public int getLine(int token)
+    {
+        return this.tokens[token * STRIDE + LINE];
+    }
+
+    /**
+     * @param token the index of the token
+     * @return true if the token is a '\n' or '\r'
+     */
+    public boolean isBlank(int token)
+    {
+        int kind = this.getKind(token);
+        return kind == NEWLINE || kind == RETURN;
+    }
+
+    /**
+     * @param token the index of the token
+     * @return the string of the token
+     */
+    public String getToken(int token)
+    {
+        return this.getToken(this.tokens, token * STRIDE);
+    }
+
+    private String getToken(int [] table, int offset)
+    {
+        int start = table[offset + START];
+        int end = table[offset + END];
+
+        String text;
+        switch(table[offset + KIND])
+        {
+            case NEWLINE: return "\n";
+            case RETURN: return "\r";
+            case OPEN_BRACE: return "{";
+            case CLOSE_BRACE: return "}";
+            case ESCAPED_STRING: text = this.unescape(start, end).trim(); break;
+            default: text = this.query.substring(start, end);
+        }
+
+        int prefix = table[offset + PREFIX];
+        if(prefix >= 0)
+        {
+            return this.getToken(this.prefixes, prefix * STRIDE).trim() + text;
+        }
+        return text;
+    }
+
+    /**
+     * writes a string the way the split query always did: an escaped '"' is kept as \" and every
+     * other escaped character is written with two backslashes in front of it. A run of backslashes
+     * counts as one.
+     */
+    private String unescape(int start, int end)
+    {
+        StringBuilder builder = new StringBuilder(end - start + 8);
+        boolean escaped = false;
+        for(int i = start; i < end; ++i)
+        {
+            char c = this.query.charAt(i);
+            if(c == '\\')
+            {
+                escaped = true;
+            }
+            else if(escaped)
+            {
+                builder.append(c == '\"' ? "\\" : "\\\\").append(c);
+                escaped = false;
+            }
+            else
+            {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * the single pass over the query
+     */
+    private void scan()
+    {
+        String query = this.query;
+        int length = query.length();
+        int line = 1;
+
+        // the word that is being read, -1 if there is none
+        int wordStart = -1;
+        int wordLine = 1;
+        int wordPrefix = -1;
+
+        for(int i = 0; i < length; ++i)
+        {
+            char c = query.charAt(i);
+            switch(c)
+            {
+                case ' ':
+                case '\t':
+                    wordStart = this.endWord(wordStart, i, wordLine, wordPrefix);
+                    wordPrefix = -1;
+                    break;
+
+                case '\n':
+                case '\r':
+                case '{':
+                case '}':
+                    wordStart = this.endWord(wordStart, i, wordLine, wordPrefix);
+                    wordPrefix = -1;
+                    this.add(i, i + 1, c == '\n' ? NEWLINE : c == '\r' ? RETURN : c == '{' ? OPEN_BRACE : CLOSE_BRACE, line, -1);
+                    if(c == '\n')
+                        ++line;
+                    break;
+
+                case '\"':
+                {
+                    wordStart = this.endWord(wordStart, i, wordLine, wordPrefix);
+                    wordPrefix = -1;
+                    int start = i;
+                    int startLine = line;
+                    boolean escapes = false;
+                    boolean escaped = false;
+                    for(++i; i < length; ++i)
+                    {
+                        char s = query.charAt(i);
+                        if(s == '\n')
+                            ++line;
+                        // a backslash always starts an escape, also right after another one
+                        if(s == '\\')
+                        {
+                            escaped = true;
+                            escapes = true;
+                        }
+                        else if(escaped)
+                        {
+                            escaped = false;
+                        }
+                        else if(s == '\"')
+                        {
+                            break;
+                        }
+                    }
+                    // a string that is not closed is trimmed, with escapes that is done once they are undone
+                    int end = Math.min(i + 1, length);
+                    this.add(start, escapes ? end : this.trimEnd(start, end), escapes ? ESCAPED_STRING : STRING, startLine, -1);
+                    break;
+                }
+
+                case '<':
+                {
+                    wordStart = this.endWord(wordStart, i, wordLine, wordPrefix);
+                    wordPrefix = -1;
+                    int start = i;
+                    int startLine = line;
+                    for(++i; i < length && query.charAt(i) != '>'; ++i)
+                    {
+                        if(query.charAt(i) == '\n')
+                            ++line;
+                    }
+                    this.addTrimmed(start, Math.min(i + 1, length), URI, startLine, -1);
+                    break;
+                }
+
+                case '#':
+                    wordStart = this.endWord(wordStart, i, wordLine, wordPrefix);
+                    wordPrefix = -1;
+                    // the comment ends with the line, the newline itself is dropped with it
+                    for(++i; i < length && query.charAt(i) != '\n' && query.charAt(i) != '\r'; ++i);
+                    if(i < length && query.charAt(i) == '\n')
+                        ++line;
+                    break;
+
+                case '@':
+                case '^':
+                    if(wordStart < 0 && this.size > 0)
+                    {
+                        // glue the token before it to the front of this word
+                        wordPrefix = this.popToPrefixes();
+                        wordStart = i;
+                        wordLine = this.prefixes[wordPrefix * STRIDE + LINE];
+                    }
+                    else if(wordStart < 0)
+                    {
+                        // it starts the word
+                        wordStart = i;
+                        wordLine = line;
+                    }
+                    break;
+
+                default:
+                    if(wordStart < 0)
+                    {
+                        wordStart = i;
+                        wordLine = line;
+                    }
+            }
+        }
+        this.endWord(wordStart, length, wordLine, wordPrefix);
+    }
+
+    /**
+     * adds the word that runs up to the given end, if there is one
+     *
+     * @return -1, there is no word being read anymore
+     */
+    private int endWord(int start, int end, int line, int prefix)
+    {
+        if(start >= 0)
+        {
+            if(prefix >= 0)
+                this.add(start, this.trimEnd(start, end), WORD, line, prefix);
+            else
+                this.addTrimmed(start, end, WORD, line, -1);
+        }
+        return -1;
+    }
+
+    /**
+     * adds the token without the white space around it, a token that is only white space is left out
+     */
+    private void addTrimmed(int start, int end, int kind, int line, int prefix)
+    {
+        while(start < end && this.query.charAt(start) <= ' ')
+            ++start;
+        end = this.trimEnd(start, end);
+        if(start < end)
+            this.add(start, end, kind, line, prefix);
+    }
+
+    private int trimEnd(int start, int end)
+    {
+        while(end > start && this.query.charAt(end - 1) <= ' ')
+            --end;
+        return end;
+    }
+
+    private void add(int start, int end, int kind, int line, int prefix)
+    {
+        if((this.size + 1) * STRIDE > this.tokens.length)
+        {
+            this.tokens = Arrays.copyOf(this.tokens, this.tokens.length * 2);
+        }
+        int offset = this.size++ * STRIDE;
+        this.tokens[offset + START] = start;
+        this.tokens[offset + END] = end;
+        this.tokens[offset + KIND] = kind;
+        this.tokens[offset + LINE] = line;
+        this.tokens[offset + PREFIX] = prefix;
+    }
+
+    /**
+     * moves the last token to the prefixes
+     *
+     * @return its index in the prefixes
+     */
+    private int popToPrefixes()
+    {
+        if((this.prefixCount + 1) * STRIDE > this.prefixes.length)
+        {
+            this.prefixes = Arrays.copyOf(this.prefixes, Math.max(4, this.prefixCount * 2) * STRIDE);
+        }
+        --this.size;
+        System.arraycopy(this.tokens, this.size * STRIDE, this.prefixes, this.prefixCount * STRIDE, STRIDE);
+        return this.prefixCount++;
+    }
+}
@@ -536,6 +536,9 @@ public class SPARQLQuery
         // setting the graph
         clone.setGraph(this.graph);
 
+        // the original query stays the same
+        clone.originalQuery = this.originalQuery;
+
         // copying the statements
         for(IStatement statement : this.statements)
             clone.getStatements().add(statement.clone());
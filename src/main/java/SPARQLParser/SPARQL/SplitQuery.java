@@ -28,8 +28,8 @@ import java.util.*;
  */
 public class SplitQuery implements Iterable<String>
 {
-    // the variable that will hold the array of query parts
-    private String [] splitQuery = null;
+    // the tokens of the query
+    private QueryLexer lexer;
 
     /**
      * default constructor, expects a valid SPARQL query object
@@ -59,142 +59,14 @@ public class SplitQuery implements Iterable<String>
      * to be added AND the newline to be added as a seperate block. This is useful for constructing
      * something like inner blocks, or keeping count of linenumbers.
      *
+     * The splitting itself is done by the query lexer, the strings of the parts are only made when
+     * the iterator gets to them.
+     *
      * @param query
-     * @return an array of strings that are split based on whitespace characters
      */
     private void performSplitQuery(String query)
     {
-        Vector<String> splitQuery = new Vector<String>();
-
-        String [] myArr;
-
-        String currentBuffer = "";
-
-        boolean inString = false;
-
-        boolean inStringLastWasSpecialChar = false; // to detect /" within a string (this will actually be ///"
-
-        boolean inComments = false;
-
-        boolean inURI = false;
-
-        for(byte b : query.getBytes())
-        {
-            if(!inString && !inComments &&!inURI) {
-                if (((char) b) == ' ' || ((char) b) == '\t') {
-                    currentBuffer = currentBuffer.trim();
-                    if (currentBuffer.length() > 0) splitQuery.add(currentBuffer);
-                    currentBuffer = "";
-                    continue;
-                }
-                if (((char) b) == '\n' || ((char) b) == '\r' || ((char) b) == '{' || ((char) b) == '}') {
-                    currentBuffer = currentBuffer.trim();
-                    if (currentBuffer.length() > 0) splitQuery.add(currentBuffer);
-                    currentBuffer = "";
-                    splitQuery.add("" + ((char) b));
-                    continue;
-                }
-                if (((char) b) == '\"') {
-                    currentBuffer = currentBuffer.trim();
-                    if (currentBuffer.length() > 0) splitQuery.add(currentBuffer);
-                    currentBuffer = "\"";
-                    inString = true;
-                    continue;
-                }
-                if (((char) b) == '<') {
-                    currentBuffer = currentBuffer.trim();
-                    if (currentBuffer.length() > 0) splitQuery.add(currentBuffer);
-                    currentBuffer = "<";
-                    inURI = true;
-                    continue;
-                }
-                if(((char) b) == '#')
-                {
-                    currentBuffer = currentBuffer.trim();
-                    if (currentBuffer.length() > 0) splitQuery.add(currentBuffer);
-                    inComments = true;
-                    continue;
-                }
-                if(((char)b) == '@' && currentBuffer.isEmpty())
-                {
-                    currentBuffer = splitQuery.lastElement();
-                    splitQuery.remove(splitQuery.size() - 1);
-                    currentBuffer = currentBuffer.trim() + "@";
-                    continue;
-                }
-                if(((char)b) == '^' && currentBuffer.isEmpty())
-                {
-                    currentBuffer = splitQuery.lastElement();
-                    splitQuery.remove(splitQuery.size() - 1);
-                    currentBuffer = currentBuffer.trim() + "^";
-                    continue;
-                }
-            }
-            else
-            {
-                if(inString) {
-                    int i = 0;
-                    if(((char)b) == '\\') {
-                        //currentBuffer += ((char) b);
-                        inStringLastWasSpecialChar = true;
-                        continue;
-                    }
-                    if(inStringLastWasSpecialChar)
-                    {
-                        if(((char)b) == '\"')
-                            currentBuffer += "\\" + ((char) b);
-                        else
-//                            currentBuffer += '\\' + ((char)b);
-                            currentBuffer += "\\\\" + ((char) b);
-
-                        inStringLastWasSpecialChar = false;
-                        continue;
-                    }
-
-                    // TODO this is a bad approach, I just put it here now as a fallback
-                    inStringLastWasSpecialChar = false;
-
-                    if (((char) b) == '\"') {
-                        currentBuffer += "\"";
-                        currentBuffer = currentBuffer.trim();
-                        if (currentBuffer.length() > 0) splitQuery.add(currentBuffer);
-                        currentBuffer = "";
-                        inString = false;
-                        continue;
-                    }
-                }
-                if(inURI) {
-                    if (((char) b) == '>') {
-                        currentBuffer += ">";
-                        currentBuffer = currentBuffer.trim();
-                        if (currentBuffer.length() > 0) splitQuery.add(currentBuffer);
-                        currentBuffer = "";
-                        inURI = false;
-                        continue;
-                    }
-                }
-                if(inComments) {
-                    if (((char) b) == '\n' || ((char) b) == '\r') {
-                        inComments = false;
-                    }
-                    continue;
-                }
-            }
-
-            currentBuffer += ((char) b);
-        }
-        currentBuffer = currentBuffer.trim();
-        if(currentBuffer.length()> 0)
-            splitQuery.add(currentBuffer);
-
-        String [] arr = new String[splitQuery.size()];
-
-        for(int i = 0; i < splitQuery.size(); ++i)
-        {
-            arr[i] = splitQuery.elementAt(i);
-        }
-
-        this.splitQuery = arr;
+        this.lexer = new QueryLexer(query);
     }
 
     /**
@@ -213,16 +85,41 @@ public class SplitQuery implements Iterable<String>
      * instead of returning newlines, incrementing the line number and returning the next String object
      * in the splitQuery array.
      *
-     * Peeknext returns the next String object if it exists but does not increment the currentPart index
+     * Peeknext returns the next String object if it exists but does not move on
      */
     public class SplitQueryIterator implements Iterator<String>
     {
-        // the part we are consuming now
-        private int currentPart = 0;
+        /*
+         * the parts of the query in a gap buffer: the parts that were consumed are at the front
+         * [0, gapStart), the parts that are still to come at the back [gapEnd, length). Moving on
+         * moves one part over the gap and replacing the current part only writes next to the gap,
+         * so neither has to copy the rest of the query. A part has the token it comes from (or -1
+         * for parts that were put in by replaceCurrent) and its string, which is only made when it
+         * is needed.
+         */
+        private int [] tokenIds;
+        private String [] splitQuery;
+        private int gapStart = 0;
+        private int gapEnd;
+
+        // the first part at or after gapEnd that is not blank, below gapEnd if it has to be looked up again
+        private int nextNonBlank = -1;
 
         // the line we are currently at
         private int currentLine = 1;
 
+        private SplitQueryIterator()
+        {
+            int gap = 16;
+            this.tokenIds = new int[gap + lexer.size()];
+            this.splitQuery = new String[this.tokenIds.length];
+            this.gapEnd = gap;
+            for(int i = 0; i < lexer.size(); ++i)
+            {
+                this.tokenIds[gap + i] = i;
+            }
+        }
+
         /**
          * forced override from the Iterator&lt;T&gt; interface
          *
@@ -230,25 +127,27 @@ public class SplitQuery implements Iterable<String>
          */
         public boolean hasNext()
         {
-            for(int i = this.currentPart; i < splitQuery.length; ++i)
+            if(this.nextNonBlank < this.gapEnd)
             {
-                if(!splitQuery[i].trim().isEmpty())
+                int i = this.gapEnd;
+                while(i < this.splitQuery.length && this.isBlank(i))
                 {
-                    return true;
+                    ++i;
                 }
+                this.nextNonBlank = i;
             }
-            return false;
+            return this.nextNonBlank < this.splitQuery.length;
         }
 
         /**
          * Same as hasNext() but also return true if the next Strings are newlines or empty. This method is
          * intended to be used together with the nextIncludingNewLines
          *
-         * @return currentPart < splitQuery.length
+         * @return true if there are parts left
          */
         public boolean hasNextIncludingNewLines()
         {
-            return currentPart < splitQuery.length;
+            return this.gapEnd < this.splitQuery.length;
         }
 
         /**
@@ -260,42 +159,36 @@ public class SplitQuery implements Iterable<String>
          */
         public void replaceCurrent(String [] a)
         {
-            // create a new array list that we will parse to be the new array
-            List<String> splitQueryList = new ArrayList<String>();
-
-            // the current part has to be increased because we want
-            // ++currentPart;
-
-            // inserting splitQuery[start ... currentPart] -> splitQueryList
-            for(int i = 0; i < currentPart - 1; ++i)
+            if(this.gapStart == 0)
             {
-                splitQueryList.add(splitQuery[i]);
+                throw new IllegalStateException("There is no current part to replace");
             }
 
-            // inserting a[start ... end] -> splitQueryList
-            for(int i = 0; i < a.length; ++i)
+            // the current part is the last one in front of the gap
+            --this.gapStart;
+            this.splitQuery[this.gapStart] = null;
+            this.ensureGap(a.length);
+
+            // the first string becomes the current part, the others come right after the gap
+            if(a.length > 0)
             {
-                splitQueryList.add(a[i]);
+                this.tokenIds[this.gapStart] = -1;
+                this.splitQuery[this.gapStart++] = a[0];
             }
-
-            // inserting splitQuery[currentPart + 1 ... end] -> splitQueryList
-            for(int i = currentPart; i < splitQuery.length; ++i)
+            for(int i = a.length - 1; i > 0; --i)
             {
-                splitQueryList.add(splitQuery[i]);
+                --this.gapEnd;
+                this.tokenIds[this.gapEnd] = -1;
+                this.splitQuery[this.gapEnd] = a[i];
             }
-
-            // splitQuery <- splitQueryList.toArray()
-            splitQuery = new String [splitQueryList.size()];
-            int i = 0;
-            for(String b : splitQueryList)
-                splitQuery[i++] = b;
+            this.nextNonBlank = -1;
         }
 
         public void breakOff(String breakString)
         {
-            if(currentPart > 0 && currentPart < splitQuery.length)
+            if(this.gapStart > 0 && this.gapEnd < this.splitQuery.length)
             {
-                String toReplace = splitQuery[currentPart - 1];
+                String toReplace = this.part(this.gapStart - 1);
                 if(toReplace.toLowerCase().startsWith(breakString) && toReplace.length() > breakString.length())
                 {
                     String [] toInsert = { toReplace.substring(0, breakString.length()), toReplace.substring(breakString.length(), toReplace.length()) };
@@ -307,30 +200,28 @@ public class SplitQuery implements Iterable<String>
         /**
          * Forced overridden method for the Iterator&lt;T&gt; interface.
          *
-         * if the next block is a newline then the currentLine and currentPart are incremented and this
-         * method recursively calls itself, otherwise the currentPArt is incremented and the splitQuery[currentPart]
-         * is returned
+         * if the next block is a newline then the currentLine is incremented and the newline is
+         * skipped, otherwise the next block is returned
          *
          * @throws NoSuchElementException
-         * @return splitQuery[++currentPart]
+         * @return the next part that is not a newline
          */
         public String next()
         {
             if(this.hasNext())
             {
-                if(splitQuery[currentPart].equals("\n"))
+                while(this.isNewLine(this.gapEnd))
                 {
                     ++this.currentLine;
-                    ++currentPart;
-                    return this.next();
+                    this.moveOn();
                 }
-                return splitQuery[currentPart++];
+                return this.part(this.moveOn());
             }
             throw new NoSuchElementException();
         }
 
         /**
-         * returns the next String oject without incrementing the current part index, this is
+         * returns the next String oject without moving on, this is
          * essantially a peek
          *
          * @return the String that will be returned by the next next() call
@@ -338,27 +229,31 @@ public class SplitQuery implements Iterable<String>
          */
         public String peekNext() throws NoSuchElementException
         {
-            int currentCurrentPart = currentPart;
-            int currentCurrentLine = currentLine;
-            String next = next();
-            currentPart = currentCurrentPart;
-            currentLine = currentCurrentLine;
-            return next;
+            if(this.hasNext())
+            {
+                int i = this.gapEnd;
+                while(this.isNewLine(i))
+                {
+                    ++i;
+                }
+                return this.part(i);
+            }
+            throw new NoSuchElementException();
         }
 
         /**
          * returns the current part including newlines
          *
-         * @return splitQuery[++currentPart]
+         * @return the next part
          */
         public String nextIncludingNewLines()
         {
-            if(currentPart < splitQuery.length)
+            if(this.gapEnd < this.splitQuery.length)
             {
-                if(splitQuery[currentPart].equals("\n")) {
+                if(this.isNewLine(this.gapEnd)) {
                     ++this.currentLine;
                 }
-                return splitQuery[currentPart++];
+                return this.part(this.moveOn());
             }
             throw new NoSuchElementException();
         }
@@ -371,12 +266,11 @@ public class SplitQuery implements Iterable<String>
          */
         public String peekNextIncludingNewLines()
         {
-            int currentCurrentPart = currentPart;
-            int currentCurrentLine = currentLine;
-            String next = nextIncludingNewLines();
-            currentPart = currentCurrentPart;
-            currentLine = currentCurrentLine;
-            return next;
+            if(this.gapEnd < this.splitQuery.length)
+            {
+                return this.part(this.gapEnd);
+            }
+            throw new NoSuchElementException();
         }
 
         /**
@@ -417,18 +311,95 @@ public class SplitQuery implements Iterable<String>
          */
         public String getPrevious(int maxBack)
         {
-            int goBackPos = currentPart - maxBack;
+            int goBackPos = this.gapStart - maxBack;
 
             if(goBackPos < 0)
                 goBackPos = 0;
 
             String toreturn = "";
 
-            for(int i = goBackPos; i < currentPart; ++i)
+            for(int i = goBackPos; i < this.gapStart; ++i)
             {
-                toreturn += " " + splitQuery[i];
+                toreturn += " " + this.part(i);
             }
             return toreturn.trim();
         }
+
+        /**
+         * moves the first part after the gap to the front of it
+         *
+         * @return the index the part has now
+         */
+        private int moveOn()
+        {
+            // the gap can be empty, then the part stays where it is
+            String part = this.splitQuery[this.gapEnd];
+            this.splitQuery[this.gapEnd] = null;
+            this.tokenIds[this.gapStart] = this.tokenIds[this.gapEnd];
+            this.splitQuery[this.gapStart] = part;
+            ++this.gapEnd;
+            return this.gapStart++;
+        }
+
+        /**
+         * makes the gap at least the given size, by doubling the buffer when it is too small
+         */
+        private void ensureGap(int size)
+        {
+            if(this.gapEnd - this.gapStart >= size)
+            {
+                return;
+            }
+
+            int back = this.splitQuery.length - this.gapEnd;
+            int length = Math.max(this.splitQuery.length * 2, this.gapStart + size + back);
+            int [] ids = new int[length];
+            String [] parts = new String[length];
+            System.arraycopy(this.tokenIds, 0, ids, 0, this.gapStart);
+            System.arraycopy(this.splitQuery, 0, parts, 0, this.gapStart);
+            System.arraycopy(this.tokenIds, this.gapEnd, ids, length - back, back);
+            System.arraycopy(this.splitQuery, this.gapEnd, parts, length - back, back);
+
+            this.tokenIds = ids;
+            this.splitQuery = parts;
+            this.gapEnd = length - back;
+            this.nextNonBlank = -1;
+        }
+
+        /**
+         * @return the string of the part at the given index
+         */
+        private String part(int index)
+        {
+            if(this.splitQuery[index] == null)
+            {
+                this.splitQuery[index] = lexer.getToken(this.tokenIds[index]);
+            }
+            return this.splitQuery[index];
+        }
+
+        /**
+         * @return true if the part at the given index is empty or white space, like a newline
+         */
+        private boolean isBlank(int index)
+        {
+            if(this.tokenIds[index] >= 0)
+            {
+                return lexer.isBlank(this.tokenIds[index]);
+            }
+            return this.splitQuery[index].trim().isEmpty();
+        }
+
+        /**
+         * @return true if the part at the given index is a newline
+         */
+        private boolean isNewLine(int index)
+        {
+            if(this.tokenIds[index] >= 0)
+            {
+                return lexer.getKind(this.tokenIds[index]) == QueryLexer.NEWLINE;
+            }
+            return this.splitQuery[index].equals("\n");
+        }
     }
 }
@@ -207,6 +207,14 @@ public class ParenthesesBlock implements IStatement
         }
     }
 
+    /**
+     * @return the statements between the parentheses
+     */
+    public List<IStatement> getStatements()
+    {
+        return this.statements;
+    }
+
     /**
      * @param allowSelect this.allowSelect = allowSelect
      */
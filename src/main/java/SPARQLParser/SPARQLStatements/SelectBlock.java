@@ -317,7 +317,7 @@ public class SelectBlock implements IStatement
         for(IStatement s : this.statements)
             clone.getStatements().add(s.clone());
 
-        return this.clone();
+        return clone;
     }
 
 
@@ -1,10 +1,11 @@
 package delta_service.callback;
 
+import delta_service.config.Configuration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
@@ -19,9 +20,17 @@ import java.net.URL;
  */
 public class CallBack
 {
+    // the outcomes of a delivery: accepted, failed for now or refused for good
+    public static final int DELIVERED = 0;
+    public static final int RETRY = 1;
+    public static final int REJECTED = 2;
+
     // the location to which the call back needs to be made
     private String url;
 
+    // restricts the triples this call back is notified of, null if it gets all of them
+    private CallBackFilter filter;
+
     private static final Logger log = LoggerFactory.getLogger(CallBack.class);
 
     /**
@@ -40,6 +49,22 @@ public class CallBack
         this.url = url;
     }
 
+    /**
+     * default getter for the filter
+     * @return this.filter, null if the call back is not filtered
+     */
+    public CallBackFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * default setter for the filter
+     * @param filter the filter of this call back or null to get all triples
+     */
+    public void setFilter(CallBackFilter filter) {
+        this.filter = filter;
+    }
+
     /**
      * notify will perform a POST request to this.url and send the passed body-parameter raw as
      * the request body.
@@ -47,32 +72,69 @@ public class CallBack
      * @param body the raw form of the request body
      */
     public void notify(String body)
+    {
+        this.notify(NotificationPayload.of(body));
+    }
+
+    /**
+     * notify will perform a POST request to this.url and send the payload as the request body.
+     * The payload is shared with the other call backs, it is written as it is.
+     *
+     * @param payload the encoded request body
+     * @return true if the subscriber accepted the notification
+     */
+    public boolean notify(NotificationPayload payload)
+    {
+        return this.deliver(payload) == DELIVERED;
+    }
+
+    /**
+     * sends the payload like notify does and tells whether it is worth sending it again. A 4xx
+     * answer (other than 408 Request Timeout and 429 Too Many Requests) and a malformed URL will
+     * not change when the notification is sent again.
+     *
+     * @param payload the encoded request body
+     * @return DELIVERED, RETRY or REJECTED
+     */
+    public int deliver(NotificationPayload payload)
     {
         try {
             URL u = new URL(this.url);
-            byte[] postData       = body.getBytes( "UTF-8" );
-            int    postDataLength = postData.length;
             HttpURLConnection connection = (HttpURLConnection) u.openConnection();
 
             connection.setRequestMethod("POST");
             connection.setRequestProperty( "Content-Type", "application/json");
+            if(payload.isGzipped())
+            {
+                connection.setRequestProperty( "Content-Encoding", "gzip");
+            }
             /*
             TODO this is kind of bad practice but I am not sure why I set the 2 headers below
             TODO so I have to find that out before I delete them
              */
 //            connection.setRequestProperty( "Content-Type", "application/x-www-form-urlencoded");
 //            connection.setRequestProperty( "charset", "utf-8");
-            connection.setRequestProperty( "Content-Length", Integer.toString( postDataLength ));
+            connection.setFixedLengthStreamingMode(payload.getLength());
+            connection.setConnectTimeout(Configuration.getIntProperty("callbackConnectTimeout", 5000));
+            connection.setReadTimeout(Configuration.getIntProperty("callbackReadTimeout", 15000));
             connection.setInstanceFollowRedirects( false );
             connection.setUseCaches( false );
 
             connection.setDoOutput(true);
 
-            DataOutputStream wr = new DataOutputStream(connection.getOutputStream());
-            wr.write(postData);
+            OutputStream wr = connection.getOutputStream();
+            payload.writeTo(wr);
             wr.flush();
+            wr.close();
 
-            connection.getResponseCode();
+            int responseCode = connection.getResponseCode();
+            if(responseCode < 200 || responseCode >= 300)
+            {
+                log.error("[!] " + this.url + " answered with " + responseCode);
+                boolean permanent = responseCode >= 400 && responseCode < 500 && responseCode != 408 && responseCode != 429;
+                return permanent ? REJECTED : RETRY;
+            }
+            return DELIVERED;
         }
         catch (ProtocolException e)
         {
@@ -83,12 +145,14 @@ public class CallBack
         {
             log.error("[!] Malformed URL: " + this.url);
             e.printStackTrace();
+            return REJECTED;
         }
         catch(IOException e)
         {
             log.error("[!] Could not connect...");
             e.printStackTrace();
         }
+        return RETRY;
     }
 
     /**
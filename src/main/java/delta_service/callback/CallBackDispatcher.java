@@ -0,0 +1,382 @@
+package delta_service.callback;
+
+import delta_service.config.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A call back dispatcher delivers the notifications of one call back set to one call back. The
+ * notifications wait in
+ * a bounded queue that is drained by the dispatcher's own worker thread, so a slow or unreachable
+ * subscriber only delays its own notifications and never the update that caused them.
+ *
+ * When the service has a delta outbox the dispatcher reads the notifications from the outbox
+ * instead, starting at the committed offset of its call back. A notification is retried (with an
+ * exponential backoff with jitter) until the subscriber accepts it, only then the offset moves on.
+ * A notification the subscriber refuses for good (a 4xx answer other than 408 and 429, or a
+ * malformed URL) or that is still not accepted after callbackMaxRetryTime is logged and skipped,
+ * otherwise one notification would keep the subscriber (and the outbox segments) stuck forever.
+ *
+ * With a batching window (notificationBatchDelay) the notifications that come in during the window
+ * are sent together as one JSON array, the window closes early when the batch reaches
+ * notificationBatchMaxTriples or notificationBatchMaxBytes.
+ */
+public class CallBackDispatcher
+{
+    // the call back to which the notifications are delivered
+    private CallBack callBack;
+
+    // the notifications waiting to be delivered
+    private BlockingQueue<NotificationPayload> payloads;
+
+    // the outbox the notifications are read from, null if there is none
+    private DeltaOutbox outbox;
+
+    // the name of the call back set, only notifications for this set are delivered
+    private String setName;
+
+    // true if the call back has a filter, it then only gets the notifications made for it
+    private volatile boolean filtered;
+
+    // the worker thread delivering the notifications
+    private Thread worker;
+
+    // the batching window in ms, 0 if every notification is sent on its own
+    private int batchDelay = Configuration.getIntProperty("notificationBatchDelay", 0);
+
+    // the size at which a batch is sent before the window ends, 0 for no limit
+    private int batchMaxTriples = Configuration.getIntProperty("notificationBatchMaxTriples", 0);
+    private int batchMaxBytes = Configuration.getIntProperty("notificationBatchMaxBytes", 0);
+
+    // whether an insert and a delete of the same triple in a batch cancel each other
+    private boolean batchCancelPairs = Configuration.getBooleanProperty("notificationBatchCancelPairs", false);
+
+    // the time in ms after which a notification from the outbox is given up, 0 to retry it forever
+    private long maxRetryTime = Configuration.getIntProperty("callbackMaxRetryTime", 86400) * 1000L;
+
+    private static final Logger log = LoggerFactory.getLogger(CallBackDispatcher.class);
+
+    /**
+     * default constructor, creates the queue and starts the worker thread
+     *
+     * @param callBack the call back to deliver to
+     * @param setName the name of the call back set
+     * @param capacity the maximum amount of notifications that can wait
+     */
+    public CallBackDispatcher(CallBack callBack, String setName, int capacity)
+    {
+        this(callBack, setName, capacity, null);
+    }
+
+    /**
+     * creates a dispatcher that reads its notifications from the outbox and starts the worker thread
+     *
+     * @param callBack the call back to deliver to
+     * @param setName the name of the call back set
+     * @param capacity the maximum amount of notifications that can wait if there is no outbox
+     * @param outbox the outbox or null
+     */
+    public CallBackDispatcher(CallBack callBack, String setName, int capacity, DeltaOutbox outbox)
+    {
+        this.callBack = callBack;
+        this.setName = setName;
+        this.payloads = new ArrayBlockingQueue<NotificationPayload>(capacity);
+        this.outbox = outbox;
+        // set before the worker starts, otherwise it can read records for the whole set unfiltered
+        this.filtered = callBack.getFilter() != null;
+
+        this.worker = new Thread(new Runnable() {
+            public void run() {
+                if(CallBackDispatcher.this.outbox == null)
+                    deliverPayloads();
+                else
+                    deliverFromOutbox();
+            }
+        }, "delta-callback-" + setName + "-" + callBack.getUrl());
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * puts the notification in the queue of this call back, this never blocks. With an outbox the
+     * notification is not put in the queue, the worker reads it from the outbox.
+     *
+     * @param payload the notification
+     * @return false if the queue was full and the notification was dropped
+     */
+    public boolean dispatch(NotificationPayload payload)
+    {
+        if(this.outbox != null)
+        {
+            return true;
+        }
+
+        if(!this.payloads.offer(payload))
+        {
+            log.error("[!] Notification queue of " + this.callBack.getUrl() + " is full, dropping a notification");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * tells the dispatcher whether its call back has a filter, when the call back was registered
+     * again. A filtered call back does not get the notifications of the whole set from the outbox,
+     * only the ones that were made for it.
+     *
+     * @param filtered true if the call back has a filter
+     */
+    public void setFiltered(boolean filtered)
+    {
+        this.filtered = filtered;
+    }
+
+    /**
+     * @return the amount of notifications waiting to be delivered, with an outbox the amount of
+     *         bytes of the outbox after the committed offset of the call back (for a filtered call
+     *         back this includes the notifications of other call backs it skips)
+     */
+    public long getBacklog()
+    {
+        if(this.outbox != null)
+        {
+            return this.outbox.getBacklog(this.getSubscriber());
+        }
+        return this.payloads.size();
+    }
+
+    /**
+     * stops the worker thread, notifications that are still waiting are not delivered
+     */
+    public void stop()
+    {
+        this.worker.interrupt();
+    }
+
+    /**
+     * the loop of the worker thread
+     */
+    private void deliverPayloads()
+    {
+        while(!Thread.currentThread().isInterrupted())
+        {
+            try {
+                NotificationPayload payload = this.payloads.take();
+                if(this.batchDelay <= 0)
+                {
+                    this.callBack.notify(payload);
+                    continue;
+                }
+
+                NotificationBatch batch = new NotificationBatch();
+                batch.add(payload);
+                long deadline = System.currentTimeMillis() + this.batchDelay;
+                while(!batch.isFull(this.batchMaxTriples, this.batchMaxBytes))
+                {
+                    long remaining = deadline - System.currentTimeMillis();
+                    payload = remaining > 0 ? this.payloads.poll(remaining, TimeUnit.MILLISECONDS) : null;
+                    if(payload == null)
+                        break;
+                    batch.add(payload);
+                }
+
+                NotificationPayload body = this.getBatchPayload(batch);
+                if(body != null)
+                {
+                    this.callBack.notify(body);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * the loop of the worker thread when there is an outbox
+     */
+    private void deliverFromOutbox()
+    {
+        // the offset is kept per set, a call back can be in several sets
+        String subscriber = this.getSubscriber();
+        long offset = this.outbox.getOffset(subscriber);
+        try {
+            this.deliverFromOutbox(subscriber, offset);
+        } finally {
+            // without a dispatcher the offset expires
+            this.outbox.release(subscriber);
+        }
+    }
+
+    /**
+     * delivers the notifications from the offset on until the worker thread is stopped
+     */
+    private void deliverFromOutbox(String subscriber, long offset)
+    {
+        while(!Thread.currentThread().isInterrupted())
+        {
+            try {
+                DeltaOutbox.Record record = this.outbox.awaitRecord(offset, 1000);
+                if(record == null)
+                {
+                    continue;
+                }
+
+                if(this.batchDelay <= 0)
+                {
+                    NotificationPayload payload = this.isMeantForThis(record, subscriber) ? this.readPayload(record, subscriber) : null;
+                    if(payload != null)
+                    {
+                        this.deliverWithRetry(payload, subscriber, record.getOffset(), record.getNextOffset());
+                    }
+                    offset = record.getNextOffset();
+                    this.outbox.commit(subscriber, offset);
+                    continue;
+                }
+
+                // gather the records of the window, the offset only moves on once the batch is delivered
+                NotificationBatch batch = new NotificationBatch();
+                long start = offset;
+                long deadline = System.currentTimeMillis() + this.batchDelay;
+                while(record != null)
+                {
+                    NotificationPayload payload = this.isMeantForThis(record, subscriber) ? this.readPayload(record, subscriber) : null;
+                    if(payload != null)
+                    {
+                        batch.add(payload);
+                    }
+                    offset = record.getNextOffset();
+                    if(batch.isFull(this.batchMaxTriples, this.batchMaxBytes))
+                        break;
+
+                    long remaining = deadline - System.currentTimeMillis();
+                    record = remaining > 0 ? this.outbox.awaitRecord(offset, remaining) : null;
+                }
+
+                if(batch.size() > 0)
+                {
+                    NotificationPayload body = this.getBatchPayload(batch);
+                    if(body != null)
+                    {
+                        this.deliverWithRetry(body, subscriber, start, offset);
+                    }
+                }
+                this.outbox.commit(subscriber, offset);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return the name of the offset of this call back in the outbox
+     */
+    private String getSubscriber()
+    {
+        return this.setName + "|" + this.callBack.getUrl();
+    }
+
+    /**
+     * a record is meant for the whole set or, for filtered call backs, for one subscriber
+     */
+    private boolean isMeantForThis(DeltaOutbox.Record record, String subscriber)
+    {
+        return (record.getSetName().equals(this.setName) && !this.filtered) || record.getSetName().equals(subscriber);
+    }
+
+    /**
+     * @return the payload of the record or null if it is gone
+     */
+    private NotificationPayload readPayload(DeltaOutbox.Record record, String subscriber)
+    {
+        NotificationPayload payload = this.outbox.readPayload(record);
+        if(payload == null)
+        {
+            log.error("[!] The notification at offset " + record.getOffset() + " for " + subscriber + " was deleted before it was read, skipping it");
+        }
+        return payload;
+    }
+
+    /**
+     * @return the body of the batch or null if there is nothing to send
+     */
+    private NotificationPayload getBatchPayload(NotificationBatch batch)
+    {
+        try {
+            return batch.toPayload(Configuration.getBooleanProperty("gzipNotifications", false), this.batchCancelPairs);
+        } catch (IOException e) {
+            log.error("[!] Could not make a batch for " + this.callBack.getUrl() + ", dropping " + batch.size() + " notifications");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * notifies the call back until it accepts the notification, refuses it for good or the retry
+     * time is over. A notification that is given up is logged with its place in the outbox.
+     *
+     * @param from the offset of the (first) record of the notification
+     * @param to the offset after the (last) record of the notification
+     * @return true if the call back accepted the notification
+     */
+    private boolean deliverWithRetry(NotificationPayload payload, String subscriber, long from, long to) throws InterruptedException
+    {
+        long baseDelay = Configuration.getIntProperty("callbackRetryDelay", 500);
+        long maxDelay = Configuration.getIntProperty("callbackMaxRetryDelay", 60000);
+        long giveUp = System.currentTimeMillis() + this.maxRetryTime;
+
+        int attempt = 0;
+        int outcome;
+        while((outcome = this.callBack.deliver(payload)) != CallBack.DELIVERED)
+        {
+            if(outcome == CallBack.REJECTED)
+            {
+                this.skip(payload, subscriber, from, to, "it was rejected");
+                return false;
+            }
+            if(this.maxRetryTime > 0 && System.currentTimeMillis() >= giveUp)
+            {
+                this.skip(payload, subscriber, from, to, "it was not accepted after " + attempt + " retries");
+                return false;
+            }
+
+            long delay = Math.min(maxDelay, baseDelay << Math.min(attempt++, 20));
+            // somewhere between half and the whole delay, so subscribers that come back are not
+            // flooded by all retries at once
+            long sleep = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+            log.warn("Delivery to " + this.callBack.getUrl() + " failed, retrying in " + sleep + " ms");
+            Thread.sleep(sleep);
+        }
+        return true;
+    }
+
+    /**
+     * logs a notification that is given up, the offset moves past it
+     */
+    private void skip(NotificationPayload payload, String subscriber, long from, long to, String reason)
+    {
+        String json;
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(payload.getLength());
+            InputStream in = payload.openJSON();
+            byte [] buffer = new byte[8192];
+            int read;
+            while((read = in.read(buffer)) > 0)
+            {
+                out.write(buffer, 0, read);
+            }
+            json = out.toString("UTF-8");
+        } catch (IOException e) {
+            json = "(unreadable: " + e.getMessage() + ")";
+        }
+        log.error("[!] Skipping the notification at offsets " + from + " to " + to + " of " + subscriber +
+                " because " + reason + ":\n" + json);
+    }
+}
@@ -0,0 +1,110 @@
+package delta_service.callback;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A call back filter restricts the triples a subscriber is notified of. It can restrict the
+ * graphs, the predicates, the subjects (on a prefix of their URI) and the rdf:types of the subjects.
+ * A triple passes if it passes every restriction that is set, a restriction without values lets
+ * everything pass.
+ *
+ * The types of a subject are the ones in the delta and, for a subject without an effective
+ * rdf:type triple in the delta, the ones it has in the store.
+ */
+public class CallBackFilter
+{
+    private Set<String> graphs = new HashSet<String>();
+    private Set<String> predicates = new HashSet<String>();
+    private Set<String> subjectPrefixes = new HashSet<String>();
+    private Set<String> types = new HashSet<String>();
+
+    /**
+     * reads a filter from the (JSON) map in a registration:
+     * { "graphs":[..], "predicates":[..], "subjectPrefixes":[..], "types":[..] }
+     *
+     * @param filterMap the map, may be null
+     * @return the filter or null if the map does not restrict anything
+     */
+    public static CallBackFilter fromMap(Map<?, ?> filterMap)
+    {
+        if(filterMap == null)
+            return null;
+
+        CallBackFilter filter = new CallBackFilter();
+        addAll(filter.graphs, filterMap.get("graphs"));
+        addAll(filter.predicates, filterMap.get("predicates"));
+        addAll(filter.subjectPrefixes, filterMap.get("subjectPrefixes"));
+        addAll(filter.types, filterMap.get("types"));
+
+        if(filter.graphs.isEmpty() && filter.predicates.isEmpty() && filter.subjectPrefixes.isEmpty() && filter.types.isEmpty())
+            return null;
+        return filter;
+    }
+
+    private static void addAll(Set<String> values, Object list)
+    {
+        if(list instanceof List)
+        {
+            for(Object value : (List<?>) list)
+            {
+                values.add(value.toString());
+            }
+        }
+    }
+
+    /**
+     * checks one triple against this filter, to match a triple against the filters of many
+     * subscribers at once use a call back index
+     *
+     * @return true if a triple in the given graph, with the given subject (with the given types)
+     *         and predicate passes this filter
+     */
+    public boolean matches(String graph, String subject, String predicate, Collection<String> subjectTypes)
+    {
+        if(!this.graphs.isEmpty() && !this.graphs.contains(graph))
+            return false;
+        if(!this.predicates.isEmpty() && !this.predicates.contains(predicate))
+            return false;
+        if(!this.subjectPrefixes.isEmpty())
+        {
+            boolean found = false;
+            for(String prefix : this.subjectPrefixes)
+            {
+                found |= subject.startsWith(prefix);
+            }
+            if(!found)
+                return false;
+        }
+        if(!this.types.isEmpty())
+        {
+            boolean found = false;
+            for(String type : subjectTypes)
+            {
+                found |= this.types.contains(type);
+            }
+            if(!found)
+                return false;
+        }
+        return true;
+    }
+
+    public Set<String> getGraphs() {
+        return graphs;
+    }
+
+    public Set<String> getPredicates() {
+        return predicates;
+    }
+
+    public Set<String> getSubjectPrefixes() {
+        return subjectPrefixes;
+    }
+
+    public Set<String> getTypes() {
+        return types;
+    }
+}
@@ -0,0 +1,187 @@
+package delta_service.callback;
+
+import java.util.*;
+
+/**
+ * The call back index finds the filtered call backs of a set that a triple passes without trying
+ * every filter. Graphs, predicates and types are kept in hash maps, subject prefixes in a trie that
+ * is walked along the subject. Every filter dimension gives the lists of call backs it lets pass
+ * (those that do not restrict it always pass) and a call back matches if it passes all four. Only
+ * the call backs of the dimension that lets the fewest pass are checked against their filter, so the
+ * work per triple depends on the most selective dimension and not on the amount of subscribers.
+ *
+ * An index cannot be changed, when the call backs of a set change a new index is built.
+ */
+public class CallBackIndex
+{
+    private Map<String, List<CallBack>> byGraph = new HashMap<String, List<CallBack>>();
+    private Map<String, List<CallBack>> byPredicate = new HashMap<String, List<CallBack>>();
+    private Map<String, List<CallBack>> byType = new HashMap<String, List<CallBack>>();
+    private PrefixNode subjectPrefixes = new PrefixNode();
+
+    // the call backs that do not restrict a dimension
+    private List<CallBack> anyGraph = new ArrayList<CallBack>();
+    private List<CallBack> anyPredicate = new ArrayList<CallBack>();
+    private List<CallBack> anySubject = new ArrayList<CallBack>();
+    private List<CallBack> anyType = new ArrayList<CallBack>();
+
+    private int size = 0;
+
+    /**
+     * builds the index of the given call backs, call backs without a filter are left out
+     *
+     * @param callBacks the call backs of a set
+     */
+    public CallBackIndex(Collection<CallBack> callBacks)
+    {
+        for(CallBack callBack : callBacks)
+        {
+            CallBackFilter filter = callBack.getFilter();
+            if(filter == null)
+                continue;
+
+            ++this.size;
+            index(this.byGraph, this.anyGraph, filter.getGraphs(), callBack);
+            index(this.byPredicate, this.anyPredicate, filter.getPredicates(), callBack);
+            index(this.byType, this.anyType, filter.getTypes(), callBack);
+
+            if(filter.getSubjectPrefixes().isEmpty())
+            {
+                this.anySubject.add(callBack);
+            }
+            for(String prefix : filter.getSubjectPrefixes())
+            {
+                this.subjectPrefixes.add(prefix, callBack);
+            }
+        }
+    }
+
+    /**
+     * @return true if none of the call backs of the set has a filter
+     */
+    public boolean isEmpty()
+    {
+        return this.size == 0;
+    }
+
+    /**
+     * @return true if a call back of the set filters on the types of the subjects
+     */
+    public boolean hasTypeFilters()
+    {
+        return !this.byType.isEmpty();
+    }
+
+    /**
+     * returns the filtered call backs that a triple passes
+     *
+     * @param graph the graph of the triple
+     * @param subject the subject of the triple
+     * @param predicate the predicate of the triple
+     * @param subjectTypes the types the subject has in the delta or in the store
+     * @return the call backs, an empty set if there are none
+     */
+    public Set<CallBack> match(String graph, String subject, String predicate, Collection<String> subjectTypes)
+    {
+        Candidates candidates = new Candidates(this.anyGraph).add(this.byGraph.get(graph));
+        candidates = Candidates.fewest(candidates, new Candidates(this.anyPredicate).add(this.byPredicate.get(predicate)));
+
+        Candidates passed = new Candidates(this.anySubject);
+        PrefixNode node = this.subjectPrefixes;
+        for(int i = 0; node != null; ++i)
+        {
+            passed.add(node.callBacks);
+            node = i < subject.length() ? node.children.get(subject.charAt(i)) : null;
+        }
+        candidates = Candidates.fewest(candidates, passed);
+
+        passed = new Candidates(this.anyType);
+        for(String type : subjectTypes)
+        {
+            passed.add(this.byType.get(type));
+        }
+        candidates = Candidates.fewest(candidates, passed);
+
+        // a call back can be in more than one of the lists, the set holds it once
+        Set<CallBack> matches = new HashSet<CallBack>();
+        for(List<CallBack> callBacks : candidates.lists)
+        {
+            for(CallBack callBack : callBacks)
+            {
+                if(callBack.getFilter().matches(graph, subject, predicate, subjectTypes))
+                    matches.add(callBack);
+            }
+        }
+        return matches;
+    }
+
+    private static void index(Map<String, List<CallBack>> map, List<CallBack> any, Set<String> values, CallBack callBack)
+    {
+        if(values.isEmpty())
+        {
+            any.add(callBack);
+        }
+        for(String value : values)
+        {
+            if(!map.containsKey(value))
+            {
+                map.put(value, new ArrayList<CallBack>());
+            }
+            map.get(value).add(callBack);
+        }
+    }
+
+    /**
+     * the lists of call backs that pass one dimension for a triple, the lists are not copied
+     */
+    private static class Candidates
+    {
+        private List<List<CallBack>> lists = new ArrayList<List<CallBack>>();
+        private int size = 0;
+
+        private Candidates(List<CallBack> any)
+        {
+            this.add(any);
+        }
+
+        private Candidates add(List<CallBack> callBacks)
+        {
+            if(callBacks != null && !callBacks.isEmpty())
+            {
+                this.lists.add(callBacks);
+                this.size += callBacks.size();
+            }
+            return this;
+        }
+
+        private static Candidates fewest(Candidates candidates, Candidates other)
+        {
+            return other.size < candidates.size ? other : candidates;
+        }
+    }
+
+    /**
+     * a node in the trie of subject prefixes, it holds the call backs of the prefix that ends here
+     */
+    private static class PrefixNode
+    {
+        private Map<Character, PrefixNode> children = new HashMap<Character, PrefixNode>();
+        private List<CallBack> callBacks = new ArrayList<CallBack>();
+
+        private void add(String prefix, CallBack callBack)
+        {
+            PrefixNode node = this;
+            for(int i = 0; i < prefix.length(); ++i)
+            {
+                PrefixNode child = node.children.get(prefix.charAt(i));
+                if(child == null)
+                {
+                    child = new PrefixNode();
+                    node.children.put(prefix.charAt(i), child);
+                }
+                node = child;
+            }
+            node.callBacks.add(callBack);
+        }
+    }
+}
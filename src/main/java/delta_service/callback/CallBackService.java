@@ -1,8 +1,14 @@
 package delta_service.callback;
 
+import delta_service.config.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by langens-jonathan on 10.06.16.
@@ -16,15 +22,42 @@ import java.util.*;
 @Service
 public class CallBackService
 {
-    // the map that contains the call back sets
-    private Map<String, Set<CallBack>> callBackSets;
+    /*
+     * the map that contains the call back sets. The map and the sets in it are never changed, every
+     * change makes a new copy that replaces the old one at once. Notifications only read the map
+     * that is there at that moment and never lock, changes are made one at a time under the lock.
+     */
+    private volatile Map<String, CallBackSet> callBackSets;
+
+    private final Object callBackSetsLock = new Object();
+
+    // every call back has a dispatcher per set it is in, it delivers the notifications of that set
+    private Map<String, CallBackDispatcher> dispatchers;
+
+    // the durable log of all notifications, null if no outboxDirectory is configured
+    private DeltaOutbox outbox;
+
+    private static final Logger log = LoggerFactory.getLogger(CallBackService.class);
 
     /**
      * default constructor
      */
     public CallBackService()
     {
-        this.callBackSets = new HashMap<String, Set<CallBack>>();
+        this.callBackSets = Collections.emptyMap();
+        this.dispatchers = new ConcurrentHashMap<String, CallBackDispatcher>();
+
+        String outboxDirectory = Configuration.getProperty("outboxDirectory", null);
+        if(outboxDirectory != null)
+        {
+            try {
+                this.outbox = new DeltaOutbox(new File(outboxDirectory), Configuration.getIntProperty("outboxSegmentSize", 64 * 1024 * 1024),
+                        Configuration.getIntProperty("outboxOffsetFlushInterval", 1000), Configuration.getIntProperty("outboxOffsetExpiry", 86400) * 1000L);
+            } catch (IOException e) {
+                log.error("[!] Could not open the delta outbox in " + outboxDirectory + ", notifications will not be stored");
+                e.printStackTrace();
+            }
+        }
     }
 
     /**
@@ -34,9 +67,12 @@ public class CallBackService
      */
     public void addCallBackSet(String setName)
     {
-        if(!this.containsCallBackList(setName))
+        synchronized (this.callBackSetsLock)
         {
-            this.callBackSets.put(setName, new HashSet<CallBack>());
+            if(!this.containsCallBackList(setName))
+            {
+                this.putCallBackSet(setName, new CallBackSet(Collections.<CallBack>emptySet()));
+            }
         }
     }
 
@@ -51,20 +87,92 @@ public class CallBackService
     }
 
     /**
-     * Adds a call back ot the set with the given name
+     * Adds a call back ot the set with the given name. If the set already has a call back with the
+     * same URL it is replaced, so a subscriber can change its filter by registering again.
      * @param setName the name of the set to which the call back should be added
      * @param callBack the callback that should be added to the set
      * @throws CallBackSetNotFoundException if the set to which you want to add things isnt in the map of sets
      */
     public void addCallBack(String setName, CallBack callBack) throws CallBackSetNotFoundException
     {
-        if(this.containsCallBackList(setName))
+        synchronized (this.callBackSetsLock)
         {
-            this.callBackSets.get(setName).add(callBack);
+            CallBackSet callBackSet = this.getCallBackSet(setName);
+
+            Set<CallBack> callBacks = new LinkedHashSet<CallBack>(callBackSet.callBacks);
+            callBacks.remove(callBack);
+            callBacks.add(callBack);
+            this.putCallBackSet(setName, new CallBackSet(callBacks));
+
+            // the dispatcher starts right away, with an outbox it continues where it stopped
+            this.getDispatcher(setName, callBack).setFiltered(callBack.getFilter() != null);
         }
-        else
+    }
+
+    /**
+     * Removes the call back with the given URL from the set, its notifications that were not
+     * delivered yet are dropped.
+     * @param setName the name of the set from which the call back should be removed
+     * @param url the URL of the call back
+     * @return true if the set had a call back with that URL
+     * @throws CallBackSetNotFoundException if the set is not in the map of sets
+     */
+    public boolean removeCallBack(String setName, String url) throws CallBackSetNotFoundException
+    {
+        synchronized (this.callBackSetsLock)
         {
-            throw new CallBackSetNotFoundException(setName);
+            CallBackSet callBackSet = this.getCallBackSet(setName);
+
+            Set<CallBack> callBacks = new LinkedHashSet<CallBack>();
+            for(CallBack callBack : callBackSet.callBacks)
+            {
+                if(!callBack.getUrl().equals(url))
+                    callBacks.add(callBack);
+            }
+            if(callBacks.size() == callBackSet.callBacks.size())
+            {
+                return false;
+            }
+
+            this.putCallBackSet(setName, new CallBackSet(callBacks));
+            this.stopDispatcher(setName, url);
+            return true;
+        }
+    }
+
+    /**
+     * Replaces the call backs of the given sets at once, like when the subscribers file is loaded
+     * again. A notification goes either to the old or to the new call backs, never to a mix.
+     * Sets that are not in the map keep their call backs, sets that do not exist yet are created.
+     * @param callBacksPerSet the new call backs per set name
+     */
+    public void replaceCallBacks(Map<String, ? extends Collection<CallBack>> callBacksPerSet)
+    {
+        synchronized (this.callBackSetsLock)
+        {
+            Map<String, CallBackSet> callBackSets = new HashMap<String, CallBackSet>(this.callBackSets);
+            for(String setName : callBacksPerSet.keySet())
+            {
+                Set<CallBack> callBacks = new LinkedHashSet<CallBack>();
+                for(CallBack callBack : callBacksPerSet.get(setName))
+                {
+                    // a later entry for the same URL wins, like with addCallBack
+                    callBacks.remove(callBack);
+                    callBacks.add(callBack);
+                }
+
+                CallBackSet old = callBackSets.put(setName, new CallBackSet(callBacks));
+                for(CallBack callBack : old == null ? Collections.<CallBack>emptySet() : old.callBacks)
+                {
+                    if(!callBacks.contains(callBack))
+                        this.stopDispatcher(setName, callBack.getUrl());
+                }
+                for(CallBack callBack : callBacks)
+                {
+                    this.getDispatcher(setName, callBack).setFiltered(callBack.getFilter() != null);
+                }
+            }
+            this.callBackSets = Collections.unmodifiableMap(callBackSets);
         }
     }
 
@@ -77,11 +185,41 @@ public class CallBackService
      */
     public void notifyCallBacks(String setName, String body) throws CallBackSetNotFoundException
     {
-        if(this.containsCallBackList(setName))
+        this.notifyCallBacks(setName, NotificationPayload.of(body));
+    }
+
+    /**
+     * Calls the notify of each callback for the set with the given name. All call backs get the
+     * same payload, it is encoded only once. The payload is only put in the queue of every call back,
+     * it is delivered by their dispatchers so this method does not wait for the subscribers.
+     * Call backs with a filter are skipped, they get their own payloads through notifyCallBack.
+     * @param setName the name of the set for which all callbacks should be made
+     * @param payload the body the needs to be posted to the call back location
+     * @throws CallBackSetNotFoundException if the set with the given name is not present in the map
+     */
+    public void notifyCallBacks(String setName, NotificationPayload payload) throws CallBackSetNotFoundException
+    {
+        // the set as it is now, changes that are made while notifying do not affect it
+        CallBackSet callBackSet = this.callBackSets.get(setName);
+        if(callBackSet != null)
         {
-            for(CallBack callBack : this.callBackSets.get(setName))
+            if(this.outbox != null)
             {
-                callBack.notify(body);
+                try {
+                    this.outbox.append(setName, payload);
+                } catch (IOException e) {
+                    log.error("[!] Could not store a notification in the delta outbox");
+                    e.printStackTrace();
+                }
+                return;
+            }
+
+            for(CallBack callBack : callBackSet.callBacks)
+            {
+                if(callBack.getFilter() == null)
+                {
+                    this.dispatch(setName, callBack, payload);
+                }
             }
         }
         else
@@ -90,6 +228,46 @@ public class CallBackService
         }
     }
 
+    /**
+     * Notifies one call back of the set with a payload that was made for it alone, like the triples
+     * that passed its filter.
+     * @param setName the name of the set the call back is in
+     * @param callBack the call back
+     * @param payload the body the needs to be posted to the call back location
+     * @throws CallBackSetNotFoundException if the set with the given name is not present in the map
+     */
+    public void notifyCallBack(String setName, CallBack callBack, NotificationPayload payload) throws CallBackSetNotFoundException
+    {
+        if(!this.containsCallBackList(setName))
+        {
+            throw new CallBackSetNotFoundException(setName);
+        }
+
+        if(this.outbox != null)
+        {
+            try {
+                // the record is named after the subscriber so only its dispatcher delivers it
+                this.outbox.append(setName + "|" + callBack.getUrl(), payload);
+            } catch (IOException e) {
+                log.error("[!] Could not store a notification in the delta outbox");
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        this.dispatch(setName, callBack, payload);
+    }
+
+    /**
+     * @param setName the name of the set
+     * @return the index of the filtered call backs of the set, null if the set has no call backs yet
+     */
+    public CallBackIndex getIndex(String setName)
+    {
+        CallBackSet callBackSet = this.callBackSets.get(setName);
+        return callBackSet == null ? null : callBackSet.index;
+    }
+
     /**
      * To check if the set with the given name is present in the map of sets and, if it is, to return
      * if there are callbacks in that set
@@ -98,6 +276,125 @@ public class CallBackService
      */
     public boolean containsCallBacksForSet(String setName)
     {
-        return ((this.containsCallBackList(setName)) && (!this.callBackSets.get(setName).isEmpty()));
+        CallBackSet callBackSet = this.callBackSets.get(setName);
+        return callBackSet != null && !callBackSet.callBacks.isEmpty();
+    }
+
+    /**
+     * @return the amount of notifications waiting to be delivered over all call backs, with a delta
+     *         outbox the amount of bytes of the outbox they still have to read
+     */
+    public long getNotificationBacklog()
+    {
+        long backlog = 0;
+        for(CallBackDispatcher dispatcher : this.dispatchers.values())
+        {
+            backlog += dispatcher.getBacklog();
+        }
+        return backlog;
+    }
+
+    /**
+     * stops the dispatchers of all call backs
+     */
+    public void stop()
+    {
+        for(CallBackDispatcher dispatcher : this.dispatchers.values())
+        {
+            dispatcher.stop();
+        }
+        this.dispatchers.clear();
+        if(this.outbox != null)
+        {
+            this.outbox.close();
+        }
+    }
+
+    private CallBackSet getCallBackSet(String setName) throws CallBackSetNotFoundException
+    {
+        CallBackSet callBackSet = this.callBackSets.get(setName);
+        if(callBackSet == null)
+        {
+            throw new CallBackSetNotFoundException(setName);
+        }
+        return callBackSet;
+    }
+
+    /**
+     * publishes a copy of the map of sets with the given set in it, only call this under the lock
+     */
+    private void putCallBackSet(String setName, CallBackSet callBackSet)
+    {
+        Map<String, CallBackSet> callBackSets = new HashMap<String, CallBackSet>(this.callBackSets);
+        callBackSets.put(setName, callBackSet);
+        this.callBackSets = Collections.unmodifiableMap(callBackSets);
+    }
+
+    /**
+     * hands the payload to the dispatcher of the call back. A call back that was removed after the
+     * notification took its snapshot of the set has no dispatcher anymore and is skipped.
+     */
+    private void dispatch(String setName, CallBack callBack, NotificationPayload payload)
+    {
+        CallBackDispatcher dispatcher = this.dispatchers.get(setName + "|" + callBack.getUrl());
+        if(dispatcher != null)
+        {
+            dispatcher.dispatch(payload);
+        }
+    }
+
+    /**
+     * stops the dispatcher of the call back in the set, with an outbox its offset is forgotten
+     */
+    private void stopDispatcher(String setName, String url)
+    {
+        String key = setName + "|" + url;
+        CallBackDispatcher dispatcher = this.dispatchers.remove(key);
+        if(dispatcher != null)
+        {
+            dispatcher.stop();
+        }
+        if(this.outbox != null)
+        {
+            this.outbox.forget(key);
+        }
+    }
+
+    /**
+     * returns the dispatcher for the given call back in the given set, it is started the first time
+     * it is needed (already knowing whether the call back has a filter)
+     */
+    private CallBackDispatcher getDispatcher(String setName, CallBack callBack)
+    {
+        String key = setName + "|" + callBack.getUrl();
+        CallBackDispatcher dispatcher = this.dispatchers.get(key);
+        if(dispatcher == null)
+        {
+            synchronized (this.dispatchers)
+            {
+                dispatcher = this.dispatchers.get(key);
+                if(dispatcher == null)
+                {
+                    dispatcher = new CallBackDispatcher(callBack, setName, Configuration.getIntProperty("callbackQueueSize", 1000), this.outbox);
+                    this.dispatchers.put(key, dispatcher);
+                }
+            }
+        }
+        return dispatcher;
+    }
+
+    /**
+     * a call back set as it is at one moment, with the index of its filtered call backs
+     */
+    private static class CallBackSet
+    {
+        private final Set<CallBack> callBacks;
+        private final CallBackIndex index;
+
+        private CallBackSet(Set<CallBack> callBacks)
+        {
+            this.callBacks = Collections.unmodifiableSet(callBacks);
+            this.index = new CallBackIndex(callBacks);
+        }
     }
 }
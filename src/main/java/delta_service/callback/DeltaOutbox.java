@@ -0,0 +1,611 @@
+package delta_service.callback;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The delta outbox is a durable, append-only log of all notifications. It is split in segment
+ * files that are memory mapped, so appending a notification is a sequential write in memory and
+ * nothing is lost when the service stops.
+ *
+ * Every notification gets an offset in the log. Each subscriber has a committed offset: the offset
+ * of the first notification it did not receive yet. Those offsets are kept in memory and stored next
+ * to the segments every flush interval (and when the outbox is closed), so after a restart every
+ * subscriber continues where it stopped, or a little before: the notifications of the last interval
+ * before a crash are delivered again. Segments that all subscribers are past are deleted (and
+ * unmapped right away).
+ *
+ * Reading a record only reads its header (the set name and where the payload is) while holding the
+ * monitor that the appends take. Dispatchers skip most records (the ones for other subscribers), the
+ * payload is only copied out of the segment for the records they deliver, without the monitor.
+ *
+ * The offset of a subscriber that has no dispatcher reading it (a subscriber that was not registered
+ * again after a restart, or whose dispatcher stopped) keeps segments from being deleted, it is
+ * dropped once it has been without a dispatcher for the offset expiry.
+ *
+ * A record in a segment is laid out as:
+ *   int length (of what follows), byte flags, [int triple count], short set name length, set name, payload
+ * where bit 0 of the flags tells if the payload is gzipped and bit 1 if the triple count is there.
+ * A length of 0 marks the end of the records in a segment. A segment file is named after the offset
+ * of its first record, the next segment starts at the offset where the previous one ended.
+ */
+public class DeltaOutbox
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final int FLAG_GZIPPED = 1;
+    private static final int FLAG_TRIPLE_COUNT = 2;
+
+    private File directory;
+
+    private int segmentSize;
+
+    // the segments by the offset of their first record
+    private TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+
+    // the offset at which the next record will be written
+    private long endOffset;
+
+    // payloads are copied out of the segments holding the read lock, segments are unmapped holding
+    // the write lock
+    private final ReadWriteLock unmapLock = new ReentrantReadWriteLock();
+
+    // the committed offsets of the subscribers, they are committed without taking the monitor
+    private Map<String, Long> offsets = new ConcurrentHashMap<String, Long>();
+
+    // true if an offset was committed since the offsets were last stored
+    private volatile boolean offsetsChanged = false;
+
+    // the offsets file is written by one thread at a time
+    private final Object offsetsFileLock = new Object();
+
+    private File offsetsFile;
+
+    // stores the offsets every flush interval
+    private Thread offsetsFlusher;
+
+    // the time in ms after which the offset of a subscriber without a dispatcher is dropped, 0 to keep it
+    private long offsetExpiry;
+
+    // the amount of dispatchers that read the offset of a subscriber
+    private final Map<String, Integer> readers = new HashMap<String, Integer>();
+
+    // the time since when the subscribers with an offset have had no dispatcher, guarded by readers
+    private final Map<String, Long> unreadSince = new HashMap<String, Long>();
+
+    private static final Logger log = LoggerFactory.getLogger(DeltaOutbox.class);
+
+    /**
+     * opens the outbox in the given directory, the existing segments and offsets are loaded
+     *
+     * @param directory the directory that holds the outbox
+     * @param segmentSize the size of a segment file in bytes
+     * @param flushInterval the time in ms between two writes of the committed offsets
+     * @param offsetExpiry the time in ms after which the offset of a subscriber without a
+     *        dispatcher is dropped, 0 to keep it until the subscriber is removed
+     * @throws IOException if the directory cannot be used
+     */
+    public DeltaOutbox(File directory, int segmentSize, final long flushInterval, long offsetExpiry) throws IOException
+    {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.offsetExpiry = offsetExpiry;
+
+        if(!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Cannot create outbox directory " + directory);
+        }
+
+        this.offsetsFile = new File(directory, "offsets.properties");
+        if(this.offsetsFile.exists())
+        {
+            Properties stored = new Properties();
+            InputStream in = new FileInputStream(this.offsetsFile);
+            try {
+                stored.load(in);
+            } finally {
+                in.close();
+            }
+            for(String subscriber : stored.stringPropertyNames())
+            {
+                this.offsets.put(subscriber, Long.parseLong(stored.getProperty(subscriber)));
+            }
+        }
+
+        File [] files = directory.listFiles();
+        for(File file : files == null ? new File[0] : files)
+        {
+            if(file.getName().endsWith(SEGMENT_SUFFIX))
+            {
+                long base = Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()));
+                this.segments.put(base, new Segment(base, file, (int) file.length()));
+            }
+        }
+
+        if(this.segments.isEmpty())
+        {
+            this.endOffset = 0;
+            this.addSegment(0, this.segmentSize);
+        }
+        else
+        {
+            // only the last segment can have room left, find where its records end
+            Segment last = this.segments.lastEntry().getValue();
+            int position = 0;
+            while(position + 4 <= last.capacity && last.buffer.getInt(position) > 0)
+            {
+                position += 4 + last.buffer.getInt(position);
+            }
+            this.endOffset = last.base + position;
+            log.info("Opened delta outbox in " + directory + " with " + this.segments.size() + " segments, next offset " + this.endOffset);
+        }
+
+        this.offsetsFlusher = new Thread(new Runnable() {
+            public void run() {
+                while(!Thread.currentThread().isInterrupted())
+                {
+                    try {
+                        Thread.sleep(flushInterval);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    expireOffsets();
+                    storeOffsets();
+                }
+            }
+        }, "delta-outbox-offsets");
+        this.offsetsFlusher.setDaemon(true);
+        this.offsetsFlusher.start();
+    }
+
+    /**
+     * appends a notification to the log and wakes up the subscribers that are waiting for it
+     *
+     * @param setName the name of the call back set the notification is meant for
+     * @param payload the notification
+     * @throws IOException if a new segment cannot be created
+     */
+    public synchronized void append(String setName, NotificationPayload payload) throws IOException
+    {
+        byte [] name = setName.getBytes(UTF8);
+        int length = 1 + 4 + 2 + name.length + payload.getLength();
+
+        Segment segment = this.segments.lastEntry().getValue();
+        int position = (int) (this.endOffset - segment.base);
+
+        // keep room for the end marker
+        if(position + 4 + length + 4 > segment.capacity)
+        {
+            segment.buffer.force();
+            segment = this.addSegment(this.endOffset, Math.max(this.segmentSize, 4 + length + 4));
+            position = 0;
+            this.deleteConsumedSegments();
+        }
+
+        MappedByteBuffer buffer = segment.buffer;
+        buffer.position(position + 4);
+        buffer.put((byte) ((payload.isGzipped() ? FLAG_GZIPPED : 0) | FLAG_TRIPLE_COUNT));
+        buffer.putInt(payload.getTripleCount());
+        buffer.putShort((short) name.length);
+        buffer.put(name);
+        payload.writeTo(buffer);
+        // the length is written last, a record is only seen once it is complete
+        buffer.putInt(position, length);
+
+        this.endOffset += 4 + length;
+        this.notifyAll();
+    }
+
+    /**
+     * returns the header of the record at the given offset, waiting for it if it was not written
+     * yet. The payload is not copied, see readPayload.
+     *
+     * @param offset the offset of the record
+     * @param timeout the maximum time to wait in ms
+     * @return the record or null if there was none within the timeout
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public synchronized Record awaitRecord(long offset, long timeout) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeout;
+        while(offset >= this.endOffset)
+        {
+            long remaining = deadline - System.currentTimeMillis();
+            if(remaining <= 0)
+                return null;
+            this.wait(remaining);
+        }
+
+        // the records before the first segment are gone, continue with the oldest one there is
+        if(offset < this.segments.firstKey())
+        {
+            offset = this.segments.firstKey();
+        }
+
+        Segment segment = this.segments.floorEntry(offset).getValue();
+        int position = (int) (offset - segment.base);
+        int length = segment.buffer.getInt(position);
+
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(position + 4);
+        byte flags = buffer.get();
+        int tripleCount = (flags & FLAG_TRIPLE_COUNT) != 0 ? buffer.getInt() : 0;
+        byte [] name = new byte[buffer.getShort()];
+        buffer.get(name);
+        // a view on the payload, nothing is copied
+        buffer.limit(position + 4 + length);
+        ByteBuffer body = buffer.slice();
+
+        return new Record(new String(name, UTF8), segment, body, (flags & FLAG_GZIPPED) != 0, tripleCount, offset, offset + 4 + length);
+    }
+
+    /**
+     * copies the payload of a record out of its segment, this does not hold up the appends
+     *
+     * @param record a record returned by awaitRecord
+     * @return the notification or null if its segment was deleted in the meantime (the subscriber
+     *         was behind the oldest segment)
+     */
+    public NotificationPayload readPayload(Record record)
+    {
+        this.unmapLock.readLock().lock();
+        try {
+            if(record.segment.unmapped)
+            {
+                return null;
+            }
+            ByteBuffer buffer = record.body.duplicate();
+            byte [] body = new byte[buffer.remaining()];
+            buffer.get(body);
+            return NotificationPayload.wrap(body, record.gzipped, record.tripleCount);
+        } finally {
+            this.unmapLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * returns the committed offset of the subscriber for the dispatcher that starts reading it, the
+     * dispatcher calls release once it stops. A subscriber that is not known yet starts at the end of
+     * the log, it only gets the notifications that come after it
+     *
+     * @param subscriber the URL of the subscriber
+     * @return the offset of the first notification the subscriber did not receive
+     */
+    public synchronized long getOffset(String subscriber)
+    {
+        synchronized (this.readers)
+        {
+            Integer count = this.readers.get(subscriber);
+            this.readers.put(subscriber, count == null ? 1 : count + 1);
+            this.unreadSince.remove(subscriber);
+        }
+
+        Long offset = this.offsets.get(subscriber);
+        if(offset == null)
+        {
+            this.commit(subscriber, this.endOffset);
+            return this.endOffset;
+        }
+        return offset;
+    }
+
+    /**
+     * @param subscriber the URL of the subscriber
+     * @return the amount of bytes in the log after the committed offset of the subscriber, 0 if it
+     *         has no offset
+     */
+    public synchronized long getBacklog(String subscriber)
+    {
+        Long offset = this.offsets.get(subscriber);
+        return offset == null ? 0 : Math.max(0, this.endOffset - offset);
+    }
+
+    /**
+     * is called by a dispatcher that stops reading the offset of the subscriber
+     *
+     * @param subscriber the URL of the subscriber
+     */
+    public void release(String subscriber)
+    {
+        synchronized (this.readers)
+        {
+            Integer count = this.readers.remove(subscriber);
+            if(count != null && count > 1)
+            {
+                this.readers.put(subscriber, count - 1);
+            }
+        }
+    }
+
+    /**
+     * drops the offsets of the subscribers that have had no dispatcher for the offset expiry
+     */
+    private void expireOffsets()
+    {
+        if(this.offsetExpiry <= 0)
+        {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        synchronized (this.readers)
+        {
+            for(String subscriber : this.offsets.keySet())
+            {
+                if(this.readers.containsKey(subscriber))
+                {
+                    continue;
+                }
+
+                Long since = this.unreadSince.get(subscriber);
+                if(since == null)
+                {
+                    this.unreadSince.put(subscriber, now);
+                }
+                else if(now - since >= this.offsetExpiry)
+                {
+                    log.info("Dropping the outbox offset of " + subscriber + ", it has had no dispatcher for " + (now - since) + " ms");
+                    this.offsets.remove(subscriber);
+                    this.unreadSince.remove(subscriber);
+                    this.offsetsChanged = true;
+                }
+            }
+            this.unreadSince.keySet().retainAll(this.offsets.keySet());
+        }
+    }
+
+    /**
+     * commits the offset of the subscriber, it is stored with the next flush
+     *
+     * @param subscriber the URL of the subscriber
+     * @param offset the offset of the first notification the subscriber did not receive
+     */
+    public void commit(String subscriber, long offset)
+    {
+        this.offsets.put(subscriber, offset);
+        this.offsetsChanged = true;
+    }
+
+    /**
+     * writes the committed offsets to the offsets file if one was committed since the last write,
+     * this does not hold up the appends
+     */
+    private void storeOffsets()
+    {
+        synchronized (this.offsetsFileLock)
+        {
+            if(!this.offsetsChanged)
+            {
+                return;
+            }
+            // an offset that is committed while the file is written is stored with the next flush
+            this.offsetsChanged = false;
+
+            Properties stored = new Properties();
+            for(Map.Entry<String, Long> offset : this.offsets.entrySet())
+            {
+                stored.setProperty(offset.getKey(), Long.toString(offset.getValue()));
+            }
+
+            try {
+                // write to a temporary file first so a crash never leaves half an offsets file
+                File tmp = new File(this.directory, "offsets.properties.tmp");
+                OutputStream out = new FileOutputStream(tmp);
+                try {
+                    stored.store(out, "committed offsets of the subscribers");
+                } finally {
+                    out.close();
+                }
+                Files.move(tmp.toPath(), this.offsetsFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                this.offsetsChanged = true;
+                log.error("[!] Could not store the outbox offsets");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * forgets the committed offset of a subscriber that is gone, so it no longer keeps segments
+     * from being deleted
+     *
+     * @param subscriber the subscriber
+     */
+    public void forget(String subscriber)
+    {
+        if(this.offsets.remove(subscriber) != null)
+        {
+            this.offsetsChanged = true;
+            this.storeOffsets();
+        }
+    }
+
+    /**
+     * writes everything to disk
+     */
+    public void close()
+    {
+        this.offsetsFlusher.interrupt();
+        synchronized (this)
+        {
+            for(Segment segment : this.segments.values())
+            {
+                segment.buffer.force();
+            }
+        }
+        this.storeOffsets();
+    }
+
+    private Segment addSegment(long base, int capacity) throws IOException
+    {
+        File file = new File(this.directory, String.format("%020d", base) + SEGMENT_SUFFIX);
+        Segment segment = new Segment(base, file, capacity);
+        this.segments.put(base, segment);
+        return segment;
+    }
+
+    /**
+     * deletes the segments of which all records were received by all subscribers
+     */
+    private void deleteConsumedSegments()
+    {
+        long minimum = this.endOffset;
+        for(long offset : this.offsets.values())
+        {
+            minimum = Math.min(minimum, offset);
+        }
+
+        // a segment can go if the next one starts at or before the minimum
+        while(this.segments.size() > 1)
+        {
+            Map.Entry<Long, Segment> first = this.segments.firstEntry();
+            Long next = this.segments.higherKey(first.getKey());
+            if(next > minimum)
+                break;
+            this.segments.remove(first.getKey());
+            // a payload that is being copied out of the segment is copied before it is unmapped
+            this.unmapLock.writeLock().lock();
+            try {
+                first.getValue().unmapped = true;
+                unmap(first.getValue().buffer);
+            } finally {
+                this.unmapLock.writeLock().unlock();
+            }
+            if(!first.getValue().file.delete())
+            {
+                log.warn("Could not delete outbox segment " + first.getValue().file);
+            }
+        }
+    }
+
+    /**
+     * releases the mapping of a deleted segment right away instead of once the buffer is garbage
+     * collected, so its memory and disk space are given back. The buffer must not be used after this.
+     */
+    private static void unmap(MappedByteBuffer buffer)
+    {
+        try {
+            try {
+                // java 9 and later
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } catch (NoSuchMethodException e) {
+                // java 8
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if(cleaner != null)
+                {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch (Exception e) {
+            log.warn("Could not unmap an outbox segment, it is unmapped once it is garbage collected");
+        }
+    }
+
+    /**
+     * a segment file and its mapping
+     */
+    private static class Segment
+    {
+        private long base;
+        private File file;
+        private int capacity;
+        private MappedByteBuffer buffer;
+
+        // true once the segment is deleted, guarded by the unmap lock
+        private boolean unmapped = false;
+
+        private Segment(long base, File file, int capacity) throws IOException
+        {
+            this.base = base;
+            this.file = file;
+            this.capacity = capacity;
+
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                this.buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            } finally {
+                // the mapping stays valid after the file is closed
+                randomAccessFile.close();
+            }
+        }
+    }
+
+    /**
+     * the header of a notification in the outbox, its payload is read with readPayload
+     */
+    public static class Record
+    {
+        private String setName;
+        private Segment segment;
+        private ByteBuffer body;
+        private boolean gzipped;
+        private int tripleCount;
+        private long offset;
+        private long nextOffset;
+
+        private Record(String setName, Segment segment, ByteBuffer body, boolean gzipped, int tripleCount, long offset, long nextOffset)
+        {
+            this.setName = setName;
+            this.segment = segment;
+            this.body = body;
+            this.gzipped = gzipped;
+            this.tripleCount = tripleCount;
+            this.offset = offset;
+            this.nextOffset = nextOffset;
+        }
+
+        /**
+         * @return the name of the call back set the notification is meant for
+         */
+        public String getSetName()
+        {
+            return this.setName;
+        }
+
+        /**
+         * @return the length of the payload in bytes
+         */
+        public int getLength()
+        {
+            return this.body.remaining();
+        }
+
+        /**
+         * @return the offset of this record
+         */
+        public long getOffset()
+        {
+            return this.offset;
+        }
+
+        /**
+         * @return the offset of the record after this one
+         */
+        public long getNextOffset()
+        {
+            return this.nextOffset;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package delta_service.callback;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+/**
+ * A notification batch gathers the notifications for one call back during a batching window, so
+ * they are sent in one request. The body of that request is a JSON array that holds the
+ * notifications in the order in which they were made:
+ * [ { "query":"..", "delta":[..] }, { "query":"..", "delta":[..] } ]
+ *
+ * The batch can also cancel the changes that undo each other: if the same triple is inserted and
+ * then deleted (or deleted and then inserted) in the same graph within the batch, both are left
+ * out. Notifications that have no changes left are left out as well.
+ */
+public class NotificationBatch
+{
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private List<NotificationPayload> payloads = new ArrayList<NotificationPayload>();
+
+    private int tripleCount = 0;
+
+    private long byteCount = 0;
+
+    /**
+     * adds a notification to the batch
+     *
+     * @param payload the notification
+     */
+    public void add(NotificationPayload payload)
+    {
+        this.payloads.add(payload);
+        this.tripleCount += payload.getTripleCount();
+        this.byteCount += payload.getLength();
+    }
+
+    /**
+     * @return the amount of notifications in the batch
+     */
+    public int size()
+    {
+        return this.payloads.size();
+    }
+
+    /**
+     * @param maxTriples the maximum amount of triples, 0 for no maximum
+     * @param maxBytes the maximum amount of bytes, 0 for no maximum
+     * @return true if the batch should be sent without waiting for the end of the window
+     */
+    public boolean isFull(int maxTriples, int maxBytes)
+    {
+        return (maxTriples > 0 && this.tripleCount >= maxTriples) || (maxBytes > 0 && this.byteCount >= maxBytes);
+    }
+
+    /**
+     * makes the body of the batch
+     *
+     * @param gzip true if the body should be gzipped
+     * @param cancelPairs true if inserts and deletes of the same triple should cancel each other
+     * @return the body or null if all changes cancelled each other
+     * @throws IOException if a notification in the batch cannot be read
+     */
+    public NotificationPayload toPayload(boolean gzip, boolean cancelPairs) throws IOException
+    {
+        if(cancelPairs)
+        {
+            return this.toCancelledPayload(gzip);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE, this.byteCount + this.payloads.size() + 2));
+        out.write('[');
+        byte [] buffer = new byte[8192];
+        for(int i = 0; i < this.payloads.size(); ++i)
+        {
+            if(i > 0)
+                out.write(',');
+            InputStream in = this.payloads.get(i).openJSON();
+            int read;
+            while((read = in.read(buffer)) > 0)
+            {
+                out.write(buffer, 0, read);
+            }
+            in.close();
+        }
+        out.write(']');
+        return NotificationPayload.of(out.toByteArray(), gzip, this.tripleCount);
+    }
+
+    private NotificationPayload toCancelledPayload(boolean gzip) throws IOException
+    {
+        List<ObjectNode> notifications = new ArrayList<ObjectNode>();
+        for(NotificationPayload payload : this.payloads)
+        {
+            InputStream in = payload.openJSON();
+            try {
+                notifications.add((ObjectNode) mapper.readTree(in));
+            } finally {
+                in.close();
+            }
+        }
+
+        /*
+         * walk over all changes in order, per type and graph we remember the change that is still
+         * open for every triple. When a triple comes in the other array than its open change,
+         * both are marked and the triple has no open change anymore.
+         */
+        Map<List<Object>, Change> open = new HashMap<List<Object>, Change>();
+        Map<JsonNode, Set<Integer>> cancelled = new IdentityHashMap<JsonNode, Set<Integer>>();
+        for(ObjectNode notification : notifications)
+        {
+            for(JsonNode delta : notification.path("delta"))
+            {
+                for(String kind : new String[]{"inserts", "deletes"})
+                {
+                    JsonNode array = delta.get(kind);
+                    if(array == null || !array.isArray())
+                        continue;
+
+                    for(int i = 0; i < array.size(); ++i)
+                    {
+                        List<Object> key = Arrays.<Object>asList(delta.path("type").asText(), delta.path("graph").asText(), array.get(i));
+                        Change change = open.get(key);
+                        if(change == null || change.kind.equals(kind))
+                        {
+                            open.put(key, new Change(kind, array, i));
+                            continue;
+                        }
+
+                        mark(cancelled, change.array, change.index);
+                        mark(cancelled, array, i);
+                        open.remove(key);
+                    }
+                }
+            }
+        }
+
+        // remove the cancelled triples and what became empty
+        ArrayNode batch = mapper.createArrayNode();
+        int tripleCount = 0;
+        for(ObjectNode notification : notifications)
+        {
+            ArrayNode deltas = mapper.createArrayNode();
+            for(JsonNode delta : notification.path("delta"))
+            {
+                int changes = 0;
+                for(String kind : new String[]{"inserts", "deletes"})
+                {
+                    JsonNode array = delta.get(kind);
+                    if(array == null || !array.isArray())
+                        continue;
+
+                    Set<Integer> removed = cancelled.get(array);
+                    if(removed != null)
+                    {
+                        ArrayNode kept = mapper.createArrayNode();
+                        for(int i = 0; i < array.size(); ++i)
+                        {
+                            if(!removed.contains(i))
+                                kept.add(array.get(i));
+                        }
+                        ((ObjectNode) delta).set(kind, kept);
+                        array = kept;
+                    }
+                    changes += array.size();
+                }
+                if(changes > 0)
+                {
+                    deltas.add(delta);
+                    tripleCount += changes;
+                }
+            }
+            if(deltas.size() > 0)
+            {
+                notification.set("delta", deltas);
+                batch.add(notification);
+            }
+        }
+
+        if(batch.size() == 0)
+        {
+            return null;
+        }
+        return NotificationPayload.of(mapper.writeValueAsBytes(batch), gzip, tripleCount);
+    }
+
+    private static void mark(Map<JsonNode, Set<Integer>> cancelled, JsonNode array, int index)
+    {
+        if(!cancelled.containsKey(array))
+        {
+            cancelled.put(array, new HashSet<Integer>());
+        }
+        cancelled.get(array).add(index);
+    }
+
+    /**
+     * a change that was not cancelled (yet): the triple at the index of the inserts or deletes array
+     */
+    private static class Change
+    {
+        private String kind;
+        private JsonNode array;
+        private int index;
+
+        private Change(String kind, JsonNode array, int index)
+        {
+            this.kind = kind;
+            this.array = array;
+            this.index = index;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package delta_service.callback;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A notification payload is the body of a notification, encoded once and then shared by all
+ * call backs that have to receive it. The bytes cannot be changed after the payload is made, so
+ * every call back can write them from its own thread.
+ *
+ * A payload can be gzipped when it is made, in that case the call backs send it with a
+ * Content-Encoding: gzip header.
+ */
+public final class NotificationPayload
+{
+    private final byte [] body;
+
+    private final boolean gzipped;
+
+    // the amount of triples in the notification, 0 if it is not known
+    private final int tripleCount;
+
+    private NotificationPayload(byte [] body, boolean gzipped, int tripleCount)
+    {
+        this.body = body;
+        this.gzipped = gzipped;
+        this.tripleCount = tripleCount;
+    }
+
+    /**
+     * makes a payload of the given bytes, the array is owned by the payload afterwards
+     *
+     * @param body the JSON body encoded in UTF-8
+     * @param gzip true if the body should be gzipped
+     * @return the payload
+     */
+    public static NotificationPayload of(byte [] body, boolean gzip)
+    {
+        return of(body, gzip, 0);
+    }
+
+    /**
+     * makes a payload of the given bytes, the array is owned by the payload afterwards
+     *
+     * @param body the JSON body encoded in UTF-8
+     * @param gzip true if the body should be gzipped
+     * @param tripleCount the amount of triples in the notification
+     * @return the payload
+     */
+    public static NotificationPayload of(byte [] body, boolean gzip, int tripleCount)
+    {
+        if(!gzip)
+        {
+            return new NotificationPayload(body, false, tripleCount);
+        }
+
+        try {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4 + 64);
+            GZIPOutputStream out = new GZIPOutputStream(compressed);
+            out.write(body);
+            out.close();
+            return new NotificationPayload(compressed.toByteArray(), true, tripleCount);
+        } catch (IOException e) {
+            // a byte array stream does not throw
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * makes a payload of bytes that are already in their final form, like the ones read back
+     * from the outbox
+     */
+    static NotificationPayload wrap(byte [] body, boolean gzipped, int tripleCount)
+    {
+        return new NotificationPayload(body, gzipped, tripleCount);
+    }
+
+    /**
+     * makes an uncompressed payload of the given string
+     *
+     * @param body the JSON body
+     * @return the payload
+     */
+    public static NotificationPayload of(String body)
+    {
+        try {
+            return new NotificationPayload(body.getBytes("UTF-8"), false, 0);
+        } catch (IOException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the length of the body in bytes, as it is sent
+     */
+    public int getLength()
+    {
+        return this.body.length;
+    }
+
+    /**
+     * @return true if the body is gzipped
+     */
+    public boolean isGzipped()
+    {
+        return this.gzipped;
+    }
+
+    /**
+     * @return the amount of triples in the notification, 0 if it is not known
+     */
+    public int getTripleCount()
+    {
+        return this.tripleCount;
+    }
+
+    /**
+     * @return a stream of the uncompressed JSON body
+     * @throws IOException if a gzipped body cannot be read
+     */
+    public InputStream openJSON() throws IOException
+    {
+        InputStream in = new ByteArrayInputStream(this.body);
+        return this.gzipped ? new GZIPInputStream(in) : in;
+    }
+
+    /**
+     * writes the body (as it is sent) to the given stream
+     *
+     * @param out the stream to write to
+     * @throws IOException if the stream cannot be written
+     */
+    public void writeTo(OutputStream out) throws IOException
+    {
+        out.write(this.body);
+    }
+
+    /**
+     * writes the body (as it is sent) to the given buffer
+     */
+    void writeTo(ByteBuffer buffer)
+    {
+        buffer.put(this.body);
+    }
+}
@@ -59,4 +59,72 @@ public class Configuration {
     {
         return Configuration.getProperties().getProperty(name);
     }
+
+    /**
+     * returns the property with the given name, if the property is not set (or no
+     * properties file could be loaded) the default value is returned
+     *
+     * @param name the name of the property
+     * @param defaultValue the value to return when the property is not set
+     * @return the value of the property
+     */
+    public static String getProperty(String name, String defaultValue)
+    {
+        String value = Configuration.getPropertyOrNull(name);
+        if(value == null)
+        {
+            return defaultValue;
+        }
+        return value;
+    }
+
+    /**
+     * returns the property with the given name parsed as an int, if the property
+     * is not set (or no properties file could be loaded) the default value is returned
+     *
+     * @param name the name of the property
+     * @param defaultValue the value to return when the property is not set
+     * @return the int value of the property
+     */
+    public static int getIntProperty(String name, int defaultValue)
+    {
+        String value = Configuration.getPropertyOrNull(name);
+        if(value == null)
+        {
+            return defaultValue;
+        }
+        return Integer.parseInt(value);
+    }
+
+    /**
+     * returns the property with the given name parsed as a boolean, if the property
+     * is not set (or no properties file could be loaded) the default value is returned
+     *
+     * @param name the name of the property
+     * @param defaultValue the value to return when the property is not set
+     * @return the boolean value of the property
+     */
+    public static boolean getBooleanProperty(String name, boolean defaultValue)
+    {
+        String value = Configuration.getPropertyOrNull(name);
+        if(value == null)
+        {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value);
+    }
+
+    private static String getPropertyOrNull(String name)
+    {
+        if(Configuration.getProperties() == null)
+        {
+            return null;
+        }
+        String value = Configuration.getProperties().getProperty(name);
+        if(value == null || value.trim().isEmpty())
+        {
+            return null;
+        }
+        return value.trim();
+    }
 }
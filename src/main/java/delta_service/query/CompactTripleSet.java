@@ -0,0 +1,209 @@
+package delta_service.query;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A set of triples that stores every triple as a row of int IDs from a term dictionary instead of
+ * as a triple object. The rows are kept in one int array and an open addressing hash table on
+ * those rows takes care of the deduplication.
+ *
+ * Triple objects are only created when the set is iterated, changing such a triple has no effect
+ * on the set. Triples cannot be removed one by one, the set can only be cleared.
+ */
+public class CompactTripleSet extends AbstractSet<Triple>
+{
+    // the subject, predicate, object, object type, object language and whether the object is a URI
+    private static final int STRIDE = 6;
+
+    private TermDictionary dictionary;
+
+    // the triples, STRIDE ints per triple
+    private int [] rows = new int[16 * STRIDE];
+
+    private int size = 0;
+
+    // the hash table, it holds the row number + 1 of a triple or 0 for an empty slot
+    private int [] table = new int[32];
+
+    /**
+     * @param dictionary the dictionary in which the terms of the triples are stored, sets that
+     *                   share a dictionary share their terms
+     */
+    public CompactTripleSet(TermDictionary dictionary)
+    {
+        this.dictionary = dictionary;
+    }
+
+    @Override
+    public boolean add(Triple triple)
+    {
+        int [] row = {
+                this.dictionary.intern(triple.getSubject()),
+                this.dictionary.intern(triple.getPredicate()),
+                this.dictionary.intern(triple.getObjectString()),
+                this.dictionary.intern(triple.getObjectType()),
+                this.dictionary.intern(triple.getObjectLanguage()),
+                triple.isObjectIsURI() ? 1 : 0
+        };
+
+        int slot = this.findSlot(row);
+        if(this.table[slot] != 0)
+        {
+            return false;
+        }
+
+        if((this.size + 1) * STRIDE > this.rows.length)
+        {
+            this.rows = Arrays.copyOf(this.rows, this.rows.length * 2);
+        }
+        System.arraycopy(row, 0, this.rows, this.size * STRIDE, STRIDE);
+        this.table[slot] = ++this.size;
+
+        // keep the table at most half full
+        if(this.size * 2 > this.table.length)
+        {
+            this.rehash();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object object)
+    {
+        if(!(object instanceof Triple))
+        {
+            return false;
+        }
+
+        Triple triple = (Triple) object;
+        int [] row = {
+                this.dictionary.getId(triple.getSubject()),
+                this.dictionary.getId(triple.getPredicate()),
+                this.dictionary.getId(triple.getObjectString()),
+                this.dictionary.getId(triple.getObjectType()),
+                this.dictionary.getId(triple.getObjectLanguage()),
+                triple.isObjectIsURI() ? 1 : 0
+        };
+
+        for(int i = 0; i < STRIDE - 1; ++i)
+        {
+            if(row[i] == TermDictionary.UNKNOWN)
+                return false;
+        }
+
+        return this.table[this.findSlot(row)] != 0;
+    }
+
+    @Override
+    public Iterator<Triple> iterator()
+    {
+        return new Iterator<Triple>() {
+            private int next = 0;
+
+            public boolean hasNext() {
+                return this.next < size;
+            }
+
+            public Triple next() {
+                if(!this.hasNext())
+                {
+                    throw new NoSuchElementException();
+                }
+                return getTriple(this.next++);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException("triples cannot be removed from a compact triple set");
+            }
+        };
+    }
+
+    @Override
+    public int size()
+    {
+        return this.size;
+    }
+
+    @Override
+    public void clear()
+    {
+        this.size = 0;
+        Arrays.fill(this.table, 0);
+    }
+
+    /**
+     * @return the dictionary in which the terms of this set are stored
+     */
+    public TermDictionary getDictionary()
+    {
+        return this.dictionary;
+    }
+
+    private Triple getTriple(int index)
+    {
+        int offset = index * STRIDE;
+
+        Triple triple = new Triple();
+        triple.setSubject(this.dictionary.getTerm(this.rows[offset]));
+        triple.setPredicate(this.dictionary.getTerm(this.rows[offset + 1]));
+        triple.setObjectString(this.dictionary.getTerm(this.rows[offset + 2]));
+        triple.setObjectType(this.dictionary.getTerm(this.rows[offset + 3]));
+        triple.setObjectLanguage(this.dictionary.getTerm(this.rows[offset + 4]));
+        triple.setObjectIsURI(this.rows[offset + 5] == 1);
+        return triple;
+    }
+
+    /**
+     * @return the slot that holds the given row or the empty slot where it belongs
+     */
+    private int findSlot(int [] row)
+    {
+        int mask = this.table.length - 1;
+        int slot = this.hash(row, 0) & mask;
+        while(this.table[slot] != 0 && !this.rowEquals(this.table[slot] - 1, row))
+        {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean rowEquals(int index, int [] row)
+    {
+        int offset = index * STRIDE;
+        for(int i = 0; i < STRIDE; ++i)
+        {
+            if(this.rows[offset + i] != row[i])
+                return false;
+        }
+        return true;
+    }
+
+    private int hash(int [] values, int offset)
+    {
+        int hash = 1;
+        for(int i = 0; i < STRIDE; ++i)
+        {
+            hash = 31 * hash + values[offset + i];
+        }
+        // spread the bits, the table size is a power of two
+        return hash ^ (hash >>> 16);
+    }
+
+    private void rehash()
+    {
+        this.table = new int[this.table.length * 2];
+        int mask = this.table.length - 1;
+        for(int index = 0; index < this.size; ++index)
+        {
+            int slot = this.hash(this.rows, index * STRIDE) & mask;
+            while(this.table[slot] != 0)
+            {
+                slot = (slot + 1) & mask;
+            }
+            this.table[slot] = index + 1;
+        }
+    }
+}
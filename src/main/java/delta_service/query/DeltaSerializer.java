@@ -0,0 +1,211 @@
+package delta_service.query;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.URLEncoder;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The delta serializer writes the notifications for the subscribers in one pass with a Jackson
+ * generator. A notification looks like:
+ * {
+ *   "query":"<the URL encoded update query>",
+ *   "delta":[
+ *     { "type":"potential", "graph":"<graph>", "inserts":[ triples ], "deletes":[ triples ] }
+ *   ]
+ * }
+ * and every triple like:
+ *   { "s":{"value":"..","type":"uri"}, "p":{"value":"..","type":"uri"}, "o":{"value":"..","type":"literal","lang":"..","datatype":".."} }
+ *
+ * The object strings of triples are kept in their query form, they are unescaped before they are
+ * written so the generator can escape them the JSON way.
+ */
+public class DeltaSerializer
+{
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    /**
+     * @param query the update query that caused the delta
+     * @param diff the difference triples per graph
+     * @param effective true for the effective changes, false for the potential ones
+     * @return the notification encoded in UTF-8
+     * @throws IOException if the notification cannot be written
+     */
+    public byte [] serialize(String query, Map<String, DifferenceTriples> diff, boolean effective) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256 + query.length() + 200 * this.countTriples(diff, effective));
+        this.write(out, query, diff, effective);
+        return out.toByteArray();
+    }
+
+    /**
+     * @param diff the difference triples per graph
+     * @param effective true for the effective changes, false for the potential ones
+     * @return the amount of triples a notification of the delta holds
+     */
+    public int countTriples(Map<String, DifferenceTriples> diff, boolean effective)
+    {
+        int triples = 0;
+        for(DifferenceTriples differenceTriples : diff.values())
+        {
+            if(effective)
+                triples += differenceTriples.getEffectiveInsertTriples().size() + differenceTriples.getEffectiveDeleteTriples().size();
+            else
+                triples += differenceTriples.getAllInsertTriples().size() + differenceTriples.getAllDeleteTriples().size();
+        }
+        return triples;
+    }
+
+    /**
+     * writes the notification to the given stream
+     *
+     * @param out the stream, it is not closed
+     * @param query the update query that caused the delta
+     * @param diff the difference triples per graph
+     * @param effective true for the effective changes, false for the potential ones
+     * @throws IOException if the notification cannot be written
+     */
+    public void write(OutputStream out, String query, Map<String, DifferenceTriples> diff, boolean effective) throws IOException
+    {
+        JsonGenerator generator = jsonFactory.createGenerator(out, JsonEncoding.UTF8);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+        generator.writeStartObject();
+        generator.writeStringField("query", URLEncoder.encode(query, "UTF-8"));
+        generator.writeArrayFieldStart("delta");
+        for(String graph : diff.keySet())
+        {
+            DifferenceTriples differenceTriples = diff.get(graph);
+
+            generator.writeStartObject();
+            generator.writeStringField("type", effective ? "effective" : "potential");
+            generator.writeStringField("graph", graph);
+            if(effective)
+                this.writeChanges(generator, differenceTriples.getEffectiveInsertTriples(), differenceTriples.getEffectiveDeleteTriples());
+            else
+                this.writeChanges(generator, differenceTriples.getAllInsertTriples(), differenceTriples.getAllDeleteTriples());
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+
+        generator.close();
+    }
+
+    /**
+     * @return the inserts and deletes as the fields of a JSON object, without the surrounding
+     *         '{' and '}'
+     */
+    public String getChangesAsJSON(Set<Triple> inserts, Set<Triple> deletes)
+    {
+        try {
+            StringWriter writer = new StringWriter();
+            JsonGenerator generator = jsonFactory.createGenerator(writer);
+            generator.writeStartObject();
+            this.writeChanges(generator, inserts, deletes);
+            generator.writeEndObject();
+            generator.close();
+
+            String json = writer.toString();
+            return json.substring(1, json.length() - 1);
+        } catch (IOException e) {
+            // a string writer does not throw
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void writeChanges(JsonGenerator generator, Set<Triple> inserts, Set<Triple> deletes) throws IOException
+    {
+        generator.writeArrayFieldStart("inserts");
+        for(Triple triple : inserts)
+        {
+            this.writeTriple(generator, triple);
+        }
+        generator.writeEndArray();
+
+        generator.writeArrayFieldStart("deletes");
+        for(Triple triple : deletes)
+        {
+            this.writeTriple(generator, triple);
+        }
+        generator.writeEndArray();
+    }
+
+    private void writeTriple(JsonGenerator generator, Triple triple) throws IOException
+    {
+        generator.writeStartObject();
+
+        generator.writeObjectFieldStart("s");
+        generator.writeStringField("value", triple.getSubject());
+        generator.writeStringField("type", "uri");
+        generator.writeEndObject();
+
+        generator.writeObjectFieldStart("p");
+        generator.writeStringField("value", triple.getPredicate());
+        generator.writeStringField("type", "uri");
+        generator.writeEndObject();
+
+        generator.writeObjectFieldStart("o");
+        if(triple.isObjectIsURI())
+        {
+            generator.writeStringField("value", triple.getObjectString());
+            generator.writeStringField("type", "uri");
+        }
+        else
+        {
+            generator.writeStringField("value", unescape(triple.getObjectString()));
+            generator.writeStringField("type", "literal");
+        }
+        if(triple.getObjectLanguage() != null && !triple.getObjectLanguage().isEmpty())
+            generator.writeStringField("lang", triple.getObjectLanguage());
+        if(triple.getObjectType() != null && !triple.getObjectType().isEmpty())
+            generator.writeStringField("datatype", triple.getObjectType());
+        generator.writeEndObject();
+
+        generator.writeEndObject();
+    }
+
+    /**
+     * undoes the escape sequences of a SPARQL string, a string without them is returned as is
+     */
+    private static String unescape(String value)
+    {
+        int i = value.indexOf('\\');
+        if(i < 0)
+            return value;
+
+        StringBuilder unescaped = new StringBuilder(value.length());
+        unescaped.append(value, 0, i);
+        for(; i < value.length(); ++i)
+        {
+            char c = value.charAt(i);
+            if(c != '\\' || i + 1 == value.length())
+            {
+                unescaped.append(c);
+                continue;
+            }
+
+            char next = value.charAt(++i);
+            switch(next)
+            {
+                case 'n': unescaped.append('\n'); break;
+                case 'r': unescaped.append('\r'); break;
+                case 't': unescaped.append('\t'); break;
+                case 'b': unescaped.append('\b'); break;
+                case 'f': unescaped.append('\f'); break;
+                case '\"': unescaped.append('\"'); break;
+                case '\'': unescaped.append('\''); break;
+                case '\\': unescaped.append('\\'); break;
+                default: unescaped.append(c).append(next);
+            }
+        }
+        return unescaped.toString();
+    }
+}
@@ -0,0 +1,378 @@
+package delta_service.query;
+
+import delta_service.callback.CallBackFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The delta stream pushes the deltas to consumers that keep a server-sent events connection open,
+ * so they do not need to run an HTTP server of their own. Every delta gets a sequence number. The
+ * sequence numbers start at 1 again when the service restarts, so the id of an event is the epoch of
+ * the stream (the time it was started) and the sequence number: "epoch-sequence".
+ *
+ * The last deltas are kept in a ring buffer that is bounded by the amount of deltas and by their
+ * size (the newest delta is always kept). A consumer that reconnects with the id of the last event
+ * it got (the Last-Event-ID header or the since parameter) continues right after it, as long as that
+ * delta is still in the buffer. If it is not, the consumer gets a "gap" event and continues with the
+ * oldest delta there is. A consumer that reconnects with the id of an event from before a restart
+ * (another epoch, or a sequence number that was not given out yet) gets a "gap" event that tells it
+ * the stream restarted, and continues with the first delta since the restart.
+ *
+ * Nothing is kept while there are no consumers, and the triples of a delta (which are only needed
+ * to filter it) are only kept while a consumer has a filter. A filtered consumer gets a "gap" event
+ * for a delta that was kept without its triples.
+ *
+ * Every consumer has its own thread that reads from the buffer, so a slow consumer only falls
+ * behind itself. A consumer can have a filter, it then only gets the triples that pass it.
+ */
+public class DeltaStream
+{
+    // the last deltas, the delta with sequence number n is at n % capacity
+    private Event [] ring;
+
+    // the epoch of the stream, it is part of the event ids so ids from before a restart are recognized
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+
+    // the sequence number the next delta will get
+    private long nextSequence = 1;
+
+    // the sequence number of the oldest delta in the ring, the ones up to nextSequence are all there
+    private long oldestSequence = 1;
+
+    // the maximum size of the deltas in the ring and their current size, in bytes
+    private long maximumBytes;
+    private long bytes = 0;
+
+    // the amount of connected consumers, of those that have a filter and of those that filter on types
+    private int consumerCount = 0;
+    private int filteredConsumerCount = 0;
+    private int typeFilteredConsumerCount = 0;
+
+    // the time in ms after which an idle connection gets a keep-alive comment
+    private long heartbeat;
+
+    private DeltaSerializer deltaSerializer = new DeltaSerializer();
+
+    private ExecutorService consumers;
+
+    private static final Logger log = LoggerFactory.getLogger(DeltaStream.class);
+
+    /**
+     * @param capacity the amount of deltas that is kept for consumers that reconnect
+     * @param maximumBytes the maximum size of the deltas that are kept
+     * @param heartbeat the time in ms after which an idle connection gets a keep-alive comment
+     */
+    public DeltaStream(int capacity, long maximumBytes, long heartbeat)
+    {
+        this.ring = new Event[capacity];
+        this.maximumBytes = maximumBytes;
+        this.heartbeat = heartbeat;
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        this.consumers = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "delta-stream-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * adds a delta to the stream and wakes up the consumers
+     *
+     * @param query the update query that caused the delta
+     * @param diff the difference triples per graph
+     * @param potentialJson the notification of the potential changes
+     * @param effectiveJson the notification of the effective changes
+     */
+    public synchronized void publish(String query, Map<String, DifferenceTriples> diff, byte [] potentialJson, byte [] effectiveJson)
+    {
+        long sequence = this.nextSequence++;
+        if(this.consumerCount == 0)
+        {
+            // nobody reads the delta, a consumer that reconnects gets a gap
+            while(this.oldestSequence < sequence)
+            {
+                this.dropOldest();
+            }
+            this.oldestSequence = this.nextSequence;
+            return;
+        }
+
+        Event event = new Event(sequence, query, this.filteredConsumerCount > 0 ? diff : null, potentialJson, effectiveJson);
+        if(sequence - this.oldestSequence >= this.ring.length)
+        {
+            // the delta in the slot goes first
+            this.dropOldest();
+        }
+        this.ring[(int) (sequence % this.ring.length)] = event;
+        this.bytes += event.size;
+        while(this.oldestSequence < sequence && this.bytes > this.maximumBytes)
+        {
+            this.dropOldest();
+        }
+        this.notifyAll();
+    }
+
+    private void dropOldest()
+    {
+        int index = (int) (this.oldestSequence % this.ring.length);
+        this.bytes -= this.ring[index].size;
+        this.ring[index] = null;
+        ++this.oldestSequence;
+    }
+
+    /**
+     * @return true if a connected consumer filters on the types of the subjects
+     */
+    public synchronized boolean hasTypeFilters()
+    {
+        return this.typeFilteredConsumerCount > 0;
+    }
+
+    /**
+     * starts sending the deltas to the given emitter
+     *
+     * @param emitter the emitter of the consumer's connection
+     * @param since the id of the last event the consumer got (or only its sequence number), null to
+     *        only get new deltas
+     * @param effective true for the effective changes, false for the potential ones
+     * @param filter the filter of the consumer or null
+     */
+    public void subscribe(final SseEmitter emitter, String since, final boolean effective, final CallBackFilter filter)
+    {
+        // the sequence number of the last delta the consumer got and whether that was in this epoch
+        Long sinceSequence = null;
+        boolean sameEpoch = true;
+        if(since != null && !since.isEmpty())
+        {
+            int dash = since.indexOf('-');
+            try {
+                sinceSequence = Long.parseLong(since.substring(dash + 1));
+                sameEpoch = dash < 0 || since.substring(0, dash).equals(this.epoch);
+            } catch (NumberFormatException e) {
+                log.warn("Ignoring delta stream event id " + since);
+            }
+        }
+
+        final long start;
+        final boolean restarted;
+        synchronized (this)
+        {
+            restarted = sinceSequence != null && (!sameEpoch || sinceSequence >= this.nextSequence);
+            if(sinceSequence == null)
+                start = this.nextSequence;
+            else if(restarted)
+                start = 1;
+            else
+                start = sinceSequence + 1;
+            ++this.consumerCount;
+            if(filter != null)
+                ++this.filteredConsumerCount;
+            if(filter != null && !filter.getTypes().isEmpty())
+                ++this.typeFilteredConsumerCount;
+        }
+
+        final Consumer consumer = new Consumer();
+        Runnable close = new Runnable() {
+            public void run() {
+                consumer.closed = true;
+            }
+        };
+        emitter.onCompletion(close);
+        emitter.onTimeout(close);
+
+        this.consumers.execute(new Runnable() {
+            public void run() {
+                try {
+                    if(restarted)
+                    {
+                        emitter.send(SseEmitter.event().name("gap").data("{\"restarted\":true}", MediaType.APPLICATION_JSON));
+                    }
+                    streamTo(emitter, consumer, start, effective, filter);
+                } catch (IOException e) {
+                    // the consumer went away
+                    log.debug("Delta stream consumer disconnected: " + e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    synchronized (DeltaStream.this)
+                    {
+                        --DeltaStream.this.consumerCount;
+                        if(filter != null)
+                            --DeltaStream.this.filteredConsumerCount;
+                        if(filter != null && !filter.getTypes().isEmpty())
+                            --DeltaStream.this.typeFilteredConsumerCount;
+                    }
+                }
+                emitter.complete();
+            }
+        });
+    }
+
+    /**
+     * stops the threads of all consumers
+     */
+    public void stop()
+    {
+        this.consumers.shutdownNow();
+    }
+
+    /**
+     * the loop of a consumer's thread
+     */
+    private void streamTo(SseEmitter emitter, Consumer consumer, long sequence, boolean effective, CallBackFilter filter) throws IOException, InterruptedException
+    {
+        while(!consumer.closed && !Thread.currentThread().isInterrupted())
+        {
+            Event event = null;
+            long oldest = sequence;
+            synchronized (this)
+            {
+                if(sequence >= this.nextSequence)
+                {
+                    this.wait(this.heartbeat);
+                }
+                oldest = Math.max(sequence, this.oldestSequence);
+                if(oldest < this.nextSequence)
+                {
+                    event = this.ring[(int) (oldest % this.ring.length)];
+                }
+            }
+
+            // nothing is sent while holding the lock, a slow consumer must not hold up the updates
+            if(oldest > sequence)
+            {
+                sendGap(emitter, sequence, oldest - 1);
+                sequence = oldest;
+            }
+
+            if(event == null)
+            {
+                emitter.send(SseEmitter.event().comment("keep-alive"));
+                continue;
+            }
+
+            if(filter != null && event.diff == null)
+            {
+                // the delta was kept while no consumer had a filter, it cannot be filtered
+                sendGap(emitter, event.sequence, event.sequence);
+                sequence = event.sequence + 1;
+                continue;
+            }
+
+            String json = this.getJSON(event, effective, filter);
+            if(json != null)
+            {
+                emitter.send(SseEmitter.event().id(this.epoch + "-" + event.sequence).name(effective ? "effective" : "potential").data(json, MediaType.APPLICATION_JSON));
+            }
+            sequence = event.sequence + 1;
+        }
+    }
+
+    private static void sendGap(SseEmitter emitter, long from, long to) throws IOException
+    {
+        emitter.send(SseEmitter.event().name("gap").data("{\"from\":" + from + ",\"to\":" + to + "}", MediaType.APPLICATION_JSON));
+    }
+
+    /**
+     * @return the notification of the event for a consumer, null if no triple passes its filter
+     */
+    private String getJSON(Event event, boolean effective, CallBackFilter filter) throws IOException
+    {
+        if(filter == null)
+        {
+            return new String(effective ? event.effectiveJson : event.potentialJson, "UTF-8");
+        }
+
+        Map<String, DifferenceTriples> filtered = new HashMap<String, DifferenceTriples>();
+        for(String graph : event.diff.keySet())
+        {
+            DifferenceTriples differenceTriples = event.diff.get(graph);
+            Map<String, Set<String>> subjectTypes = differenceTriples.getSubjectTypes(effective);
+            DifferenceTriples matched = new DifferenceTriples();
+
+            for(Triple triple : effective ? differenceTriples.getEffectiveInsertTriples() : differenceTriples.getAllInsertTriples())
+            {
+                if(matches(filter, graph, triple, subjectTypes))
+                {
+                    if(effective)
+                        matched.addEffectiveInsertTriple(triple);
+                    else
+                        matched.addAllInsertTriple(triple);
+                }
+            }
+            for(Triple triple : effective ? differenceTriples.getEffectiveDeleteTriples() : differenceTriples.getAllDeleteTriples())
+            {
+                if(matches(filter, graph, triple, subjectTypes))
+                {
+                    if(effective)
+                        matched.addEffectiveDeleteTripel(triple);
+                    else
+                        matched.addAllDeleteTripel(triple);
+                }
+            }
+
+            if(matched.getAllInsertTriples().size() + matched.getAllDeleteTriples().size()
+                    + matched.getEffectiveInsertTriples().size() + matched.getEffectiveDeleteTriples().size() > 0)
+            {
+                filtered.put(graph, matched);
+            }
+        }
+
+        if(filtered.isEmpty())
+        {
+            return null;
+        }
+        return new String(this.deltaSerializer.serialize(event.query, filtered, effective), "UTF-8");
+    }
+
+    private static boolean matches(CallBackFilter filter, String graph, Triple triple, Map<String, Set<String>> subjectTypes)
+    {
+        Set<String> types = subjectTypes.get(triple.getSubject());
+        return filter.matches(graph, triple.getSubject(), triple.getPredicate(), types == null ? Collections.<String>emptySet() : types);
+    }
+
+    /**
+     * a delta in the ring buffer
+     */
+    private static class Event
+    {
+        private long sequence;
+        private String query;
+        private Map<String, DifferenceTriples> diff;
+        private byte [] potentialJson;
+        private byte [] effectiveJson;
+
+        // the size of the notifications, the triples (if they are kept) are counted as big as both
+        private long size;
+
+        private Event(long sequence, String query, Map<String, DifferenceTriples> diff, byte [] potentialJson, byte [] effectiveJson)
+        {
+            this.sequence = sequence;
+            this.query = query;
+            this.diff = diff;
+            this.potentialJson = potentialJson;
+            this.effectiveJson = effectiveJson;
+            this.size = (potentialJson.length + effectiveJson.length) * (diff == null ? 1 : 2);
+        }
+    }
+
+    /**
+     * the state of a consumer's connection
+     */
+    private static class Consumer
+    {
+        private volatile boolean closed = false;
+    }
+}
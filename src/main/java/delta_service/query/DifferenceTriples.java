@@ -1,6 +1,9 @@
 package delta_service.query;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -12,9 +15,14 @@ import java.util.Set;
  * be updated, one set for all triples that will be deleted on a
  * certain data set, on set for all triples that will effectivly be
  * updated and one set for all triples that will effectivly be deleted.
+ *
+ * The sets are compact triple sets that share one term dictionary, the
+ * setters copy the given triples into such a set.
  */
 public class DifferenceTriples
 {
+    private static final String RDF_TYPE = "http://www.w3.org/1999/02/22-rdf-syntax-ns#type";
+
     // a set with all triples that will be updated in the store
     private Set<Triple> allInsertTriples;
 
@@ -27,15 +35,22 @@ public class DifferenceTriples
     // a set will all triples that will EFFECTIVLY be deleted from the graph
     private Set<Triple> effectiveDeleteTriples;
 
+    // the terms of the triples in all 4 sets, each term is stored only once
+    private TermDictionary dictionary;
+
+    // the types the subjects have in the store, for the subjects that have no type in the changes
+    private Map<String, Set<String>> storedSubjectTypes = new HashMap<String, Set<String>>();
+
     /**
      * default constructor
      */
     public DifferenceTriples()
     {
-        this.allInsertTriples = new HashSet<Triple>();
-        this.allDeleteTriples = new HashSet<Triple>();
-        this.effectiveInsertTriples = new HashSet<Triple>();
-        this.effectiveDeleteTriples = new HashSet<Triple>();
+        this.dictionary = new TermDictionary();
+        this.allInsertTriples = new CompactTripleSet(this.dictionary);
+        this.allDeleteTriples = new CompactTripleSet(this.dictionary);
+        this.effectiveInsertTriples = new CompactTripleSet(this.dictionary);
+        this.effectiveDeleteTriples = new CompactTripleSet(this.dictionary);
     }
 
     /**
@@ -81,63 +96,7 @@ public class DifferenceTriples
      */
     public String getPotentialChangesAsJSON()
     {
-        String jsonString = "";
-
-        jsonString += "\"inserts\":[";
-
-        for(Triple t : this.getAllInsertTriples())
-        {
-            String type = "literal";
-            if(t.isObjectIsURI())type = "uri";
-
-            jsonString += "{";
-            jsonString += "\"s\":{\"value\":\"" + t.getSubject() + "\", \"type\":\"uri\"},";
-            jsonString += "\"p\":{\"value\":\"" +  t.getPredicate() + "\", \"type\":\"uri\"},";
-            jsonString += "\"o\":{\"value\":\"" + t.getObjectString() + "\", \"type\":\"" + type + "\"";
-
-            if(t.getObjectLanguage() != null && !t.getObjectLanguage().isEmpty())
-                jsonString += ", \"lang\":\"" + t.getObjectLanguage() + "\"";
-
-            if(t.getObjectType() != null && !t.getObjectType().isEmpty())
-                jsonString += ", \"datatype\":\"" + t.getObjectType() + "\"";
-
-            jsonString += "}},";
-        }
-
-        if(!this.getAllInsertTriples().isEmpty())
-        {
-            jsonString = jsonString.substring(0, jsonString.length() - 1);
-        }
-
-        jsonString += "],\"deletes\":[";
-
-        for(Triple t : this.getAllDeleteTriples())
-        {
-            String type = "literal";
-            if(t.isObjectIsURI())type = "uri";
-
-            jsonString += "{";
-            jsonString += "\"s\":{\"value\":\"" + t.getSubject() + "\", \"type\":\"uri\"},";
-            jsonString += "\"p\":{\"value\":\"" +  t.getPredicate() + "\", \"type\":\"uri\"},";
-            jsonString += "\"o\":{\"value\":\"" + t.getObjectString() + "\", \"type\":\"" + type + "\"";
-
-            if(t.getObjectLanguage() != null && !t.getObjectLanguage().isEmpty())
-                jsonString += ", \"lang\":\"" + t.getObjectLanguage() + "\"";
-
-            if(t.getObjectType() != null && !t.getObjectType().isEmpty())
-                jsonString += ", \"datatype\":\"" + t.getObjectType() + "\"";
-
-            jsonString += "}},";
-        }
-
-        if(!this.getAllDeleteTriples().isEmpty())
-        {
-            jsonString = jsonString.substring(0, jsonString.length() - 1);
-        }
-
-        jsonString += "]";
-
-        return jsonString;
+        return new DeltaSerializer().getChangesAsJSON(this.getAllInsertTriples(), this.getAllDeleteTriples());
     }
 
 
@@ -148,69 +107,85 @@ public class DifferenceTriples
      */
     public String getEffectiveChangesAsJSON()
     {
-        String jsonString = "";
-
-        jsonString += "\"inserts\":[";
+        return new DeltaSerializer().getChangesAsJSON(this.getEffectiveInsertTriples(), this.getEffectiveDeleteTriples());
+    }
 
-        for(Triple t : this.getEffectiveInsertTriples())
+    /**
+     * collects the types of the subjects, a subject has a type if an rdf:type triple for it is
+     * inserted or deleted or if the type was added with addStoredSubjectType
+     *
+     * @param effective true to look at the effective changes, false for the potential ones
+     * @return the types per subject
+     */
+    public Map<String, Set<String>> getSubjectTypes(boolean effective)
+    {
+        Map<String, Set<String>> subjectTypes = new HashMap<String, Set<String>>();
+        collectSubjectTypes(effective ? this.effectiveInsertTriples : this.allInsertTriples, subjectTypes);
+        collectSubjectTypes(effective ? this.effectiveDeleteTriples : this.allDeleteTriples, subjectTypes);
+        for(Map.Entry<String, Set<String>> stored : this.storedSubjectTypes.entrySet())
         {
-            String type = "uri";
-            if(t.getObjectType().toLowerCase().contains("string") ||
-                    t.getObjectType().toLowerCase().contains("literal"))
+            if(!subjectTypes.containsKey(stored.getKey()))
             {
-                type = "literal";
+                subjectTypes.put(stored.getKey(), new HashSet<String>());
             }
-            String oString = t.getObjectString();
-            if(oString.startsWith("\""))
-                oString = oString.substring(1, oString.length());
-            if(oString.length()>3)
-                if(oString.substring(0, oString.length() - 2).endsWith("@"))
-                    oString = oString.substring(0, oString.length() - 3);
-            if(oString.endsWith("\""))
-                oString = oString.substring(0, oString.length() - 1);
-            jsonString += "{";
-            jsonString += "\"s\":{\"value\":\"" + t.getSubject() + "\", \"type\":\"uri\"},";
-            jsonString += "\"p\":{\"value\":\"" +  t.getPredicate() + "\", \"type\":\"uri\"},";
-            jsonString += "\"o\":{\"value\":\"" + oString + "\", \"type\":\"" + type + "\"}},";
-        }
-
-        if(!this.getEffectiveInsertTriples().isEmpty())
-        {
-            jsonString = jsonString.substring(0, jsonString.length() - 1);
+            subjectTypes.get(stored.getKey()).addAll(stored.getValue());
         }
+        return subjectTypes;
+    }
 
-        jsonString += "],\"deletes\":[";
+    /**
+     * the changes do not know the type of a subject that only has other predicates changed (or
+     * whose rdf:type triple was already in the store, so it is not an effective change). The types
+     * of these subjects have to be looked up in the store.
+     *
+     * @return the subjects that have no rdf:type triple in the effective changes
+     */
+    public Set<String> getUntypedSubjects()
+    {
+        Map<String, Set<String>> subjectTypes = new HashMap<String, Set<String>>();
+        collectSubjectTypes(this.effectiveInsertTriples, subjectTypes);
+        collectSubjectTypes(this.effectiveDeleteTriples, subjectTypes);
 
-        for(Triple t : this.getEffectiveDeleteTriples())
+        Set<String> untypedSubjects = new HashSet<String>();
+        for(Set<Triple> triples : Arrays.asList(this.allInsertTriples, this.allDeleteTriples, this.effectiveInsertTriples, this.effectiveDeleteTriples))
         {
-            String type = "uri";
-            if(t.getObjectType().toLowerCase().contains("string") ||
-                    t.getObjectType().toLowerCase().contains("literal"))
+            for(Triple triple : triples)
             {
-                type = "literal";
+                if(!subjectTypes.containsKey(triple.getSubject()))
+                    untypedSubjects.add(triple.getSubject());
             }
-            String oString = t.getObjectString();
-            if(oString.startsWith("\""))
-                oString = oString.substring(1, oString.length());
-            if(oString.length()>3)
-                if(oString.substring(0, oString.length() - 2).endsWith("@"))
-                    oString = oString.substring(0, oString.length() - 3);
-            if(oString.endsWith("\""))
-                oString = oString.substring(0, oString.length() - 1);
-            jsonString += "{";
-            jsonString += "\"s\":{\"value\":\"" + t.getSubject() + "\", \"type\":\"uri\"},";
-            jsonString += "\"p\":{\"value\":\"" +  t.getPredicate() + "\", \"type\":\"uri\"},";
-            jsonString += "\"o\":{\"value\":\"" + oString + "\", \"type\":\"" + type + "\"}},";
         }
+        return untypedSubjects;
+    }
 
-        if(!this.getEffectiveDeleteTriples().isEmpty())
+    /**
+     * adds a type that a subject has in the store
+     *
+     * @param subject the subject
+     * @param type the type it has in the graph of these changes
+     */
+    public void addStoredSubjectType(String subject, String type)
+    {
+        if(!this.storedSubjectTypes.containsKey(subject))
         {
-            jsonString = jsonString.substring(0, jsonString.length() - 1);
+            this.storedSubjectTypes.put(subject, new HashSet<String>());
         }
+        this.storedSubjectTypes.get(subject).add(type);
+    }
 
-        jsonString += "]";
-
-        return jsonString;
+    private static void collectSubjectTypes(Set<Triple> triples, Map<String, Set<String>> subjectTypes)
+    {
+        for(Triple triple : triples)
+        {
+            if(triple.isObjectIsURI() && RDF_TYPE.equals(triple.getPredicate()))
+            {
+                if(!subjectTypes.containsKey(triple.getSubject()))
+                {
+                    subjectTypes.put(triple.getSubject(), new HashSet<String>());
+                }
+                subjectTypes.get(triple.getSubject()).add(triple.getObjectString());
+            }
+        }
     }
 
     /**
@@ -226,7 +201,8 @@ public class DifferenceTriples
      * @pre allInsertTriples should not be null
      */
     public void setAllInsertTriples(Set<Triple> allInsertTriples) {
-        this.allInsertTriples = allInsertTriples;
+        this.allInsertTriples = new CompactTripleSet(this.dictionary);
+        this.allInsertTriples.addAll(allInsertTriples);
     }
 
     /**
@@ -242,7 +218,8 @@ public class DifferenceTriples
      * @pre allDeleteTriples should not be null
      */
     public void setAllDeleteTriples(Set<Triple> allDeleteTriples) {
-        this.allDeleteTriples = allDeleteTriples;
+        this.allDeleteTriples = new CompactTripleSet(this.dictionary);
+        this.allDeleteTriples.addAll(allDeleteTriples);
     }
 
     /**
@@ -258,7 +235,8 @@ public class DifferenceTriples
      * @pre effectiveDeleteTriples should not be null
      */
     public void setEffectiveDeleteTriples(Set<Triple> effectiveDeleteTriples) {
-        this.effectiveDeleteTriples = effectiveDeleteTriples;
+        this.effectiveDeleteTriples = new CompactTripleSet(this.dictionary);
+        this.effectiveDeleteTriples.addAll(effectiveDeleteTriples);
     }
 
     /**
@@ -274,6 +252,7 @@ public class DifferenceTriples
      * @pre effectiveInsertTriples should not be null
      */
     public void setEffectiveInsertTriples(Set<Triple> effectiveInsertTriples) {
-        this.effectiveInsertTriples = effectiveInsertTriples;
+        this.effectiveInsertTriples = new CompactTripleSet(this.dictionary);
+        this.effectiveInsertTriples.addAll(effectiveInsertTriples);
     }
 }
@@ -0,0 +1,466 @@
+package delta_service.query;
+
+import SPARQLParser.SPARQL.InvalidSPARQLException;
+
+import java.io.IOException;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The ground data chunker reads an update request from a reader and cuts its INSERT DATA and
+ * DELETE DATA operations into updates of about the given amount of triples, each with the prefixes
+ * of the request. Only the chunk that is being read is kept in memory, so a bulk load of any size
+ * can be passed on without ever holding the whole body.
+ *
+ * A chunk is only cut after a statement ends (a '.' at the top of the block or the end of a GRAPH
+ * block), the text of the statements is passed on as it is. The chunker does not have to understand
+ * the triples, the chunks are parsed like any other update afterwards. It does have to know where
+ * strings, IRI's and comments are, so the characters in them are never mistaken for the end of a
+ * statement.
+ *
+ * Blank nodes are scoped to the operation they are in, an operation with a blank node ('_:', '['
+ * or a collection) is therefore not cut anymore from the blank node on. Everything from the first
+ * operation that is not INSERT DATA or DELETE DATA on is passed on as a single update, as it was
+ * sent.
+ */
+public class GroundDataChunker
+{
+    private PushbackReader in;
+
+    // the amount of triples after which a chunk is cut
+    private int chunkSize;
+
+    // the prefix and base declarations of the request so far, every chunk starts with them
+    private StringBuilder prologue = new StringBuilder();
+
+    // the keywords of the operation being read ("INSERT DATA" or "DELETE DATA"), null between operations
+    private String operation;
+
+    // the start of the GRAPH block being read, like "GRAPH <http://graph> {", null outside one
+    private String graphHeader;
+
+    // the depth of the braces in the operation, 1 at the top of its block
+    private int depth;
+
+    // the text of the chunk that is being read and the amount of triples in it
+    private StringBuilder body = new StringBuilder();
+    private int triples;
+
+    // where the statement that is being read starts in the body
+    private int statementStart;
+
+    // true if there is a term after the last separator, it is a triple once it is closed
+    private boolean pendingTriple;
+
+    // false once the operation has a blank node, it is not cut anymore then
+    private boolean splittable;
+
+    private boolean done = false;
+
+    /**
+     * @param reader the reader with the update request, it is read to the end but not closed
+     * @param chunkSize the amount of triples after which a chunk is cut
+     */
+    public GroundDataChunker(Reader reader, int chunkSize)
+    {
+        this.in = new PushbackReader(reader, 2);
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    /**
+     * reads the next chunk of the request
+     *
+     * @return the next update query or null if the whole request was read
+     * @throws IOException if the reader cannot be read
+     * @throws InvalidSPARQLException if the request ends inside an operation
+     */
+    public String next() throws IOException, InvalidSPARQLException
+    {
+        while(!this.done)
+        {
+            if(this.operation == null)
+            {
+                String rest = this.readOperationHead();
+                if(rest != null)
+                {
+                    this.done = true;
+                    return rest;
+                }
+                if(this.operation == null)
+                {
+                    this.done = true;
+                    return null;
+                }
+            }
+
+            String chunk = this.readChunk();
+            if(chunk != null)
+            {
+                return chunk;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * reads up to the block of the next operation. The prefix and base declarations are added to
+     * the prologue, if the operation is ground data it is started.
+     *
+     * @return null if a ground data operation was started or the request ended, otherwise the
+     *         rest of the request as one update
+     */
+    private String readOperationHead() throws IOException
+    {
+        StringBuilder head = new StringBuilder();
+        List<String> tokens = new ArrayList<String>();
+
+        int c;
+        while((c = this.in.read()) != -1 && c != '{')
+        {
+            head.append((char) c);
+            if(c == '#')
+            {
+                this.skipComment(head);
+            }
+            else if(c == '<')
+            {
+                StringBuilder iri = new StringBuilder("<");
+                this.readUntil('>', iri);
+                head.append(iri, 1, iri.length());
+                tokens.add(iri.toString());
+            }
+            else if(c == ';')
+            {
+                tokens.add(";");
+            }
+            else if(!Character.isWhitespace(c))
+            {
+                StringBuilder word = new StringBuilder().append((char) c);
+                int w;
+                while((w = this.in.read()) != -1 && !Character.isWhitespace(w) && w != '<' && w != '{' && w != ';' && w != '#')
+                {
+                    word.append((char) w);
+                }
+                if(w != -1)
+                    this.in.unread(w);
+                head.append(word, 1, word.length());
+                tokens.add(word.toString());
+            }
+        }
+
+        // the declarations go to the prologue, what is left has to be the keywords of the operation
+        StringBuilder declarations = new StringBuilder();
+        List<String> keywords = new ArrayList<String>();
+        for(int i = 0; i < tokens.size(); ++i)
+        {
+            String token = tokens.get(i);
+            if(token.equalsIgnoreCase("PREFIX") && i + 2 < tokens.size())
+            {
+                declarations.append("PREFIX ").append(tokens.get(i + 1)).append(" ").append(tokens.get(i + 2)).append("\n");
+                i += 2;
+            }
+            else if(token.equalsIgnoreCase("BASE") && i + 1 < tokens.size())
+            {
+                declarations.append("BASE ").append(tokens.get(++i)).append("\n");
+            }
+            else if(!token.equals(";"))
+            {
+                keywords.add(token.toUpperCase());
+            }
+        }
+
+        if(c == -1 && keywords.isEmpty())
+        {
+            // only declarations or nothing at all, there is nothing left to update
+            return null;
+        }
+
+        if(c == '{' && keywords.size() == 2 && keywords.get(1).equals("DATA") &&
+                (keywords.get(0).equals("INSERT") || keywords.get(0).equals("DELETE")))
+        {
+            this.prologue.append(declarations);
+            this.operation = keywords.get(0) + " DATA";
+            this.depth = 1;
+            this.graphHeader = null;
+            this.body = new StringBuilder();
+            this.triples = 0;
+            this.statementStart = 0;
+            this.pendingTriple = false;
+            this.splittable = true;
+            return null;
+        }
+
+        // not ground data, the rest of the request is passed on as it is (without the ';' that
+        // separated it from the operation before it)
+        int start = 0;
+        while(start < head.length() && (Character.isWhitespace(head.charAt(start)) || head.charAt(start) == ';'))
+        {
+            ++start;
+        }
+        StringBuilder rest = new StringBuilder(this.prologue).append(head, start, head.length());
+        if(c == '{')
+        {
+            rest.append('{');
+            char [] buffer = new char[8192];
+            int read;
+            while((read = this.in.read(buffer)) != -1)
+            {
+                rest.append(buffer, 0, read);
+            }
+        }
+        return rest.toString();
+    }
+
+    /**
+     * reads the block of the operation until the chunk is full or the operation ends
+     *
+     * @return the chunk or null if the operation ended without triples
+     */
+    private String readChunk() throws IOException, InvalidSPARQLException
+    {
+        int c;
+        while((c = this.in.read()) != -1)
+        {
+            switch(c)
+            {
+                case '\"':
+                case '\'':
+                    this.readString((char) c);
+                    this.pendingTriple = true;
+                    break;
+
+                case '<':
+                    this.body.append('<');
+                    this.readUntil('>', this.body);
+                    this.pendingTriple = true;
+                    break;
+
+                case '#':
+                    this.skipComment(null);
+                    this.body.append('\n');
+                    break;
+
+                case '{':
+                    if(++this.depth == 2)
+                    {
+                        this.graphHeader = this.body.substring(this.statementStart).trim() + " {";
+                    }
+                    else
+                    {
+                        // data does not nest any deeper, the store will tell what is wrong with it
+                        this.splittable = false;
+                    }
+                    this.body.append('{');
+                    this.pendingTriple = false;
+                    this.statementStart = this.body.length();
+                    break;
+
+                case '}':
+                    if(this.pendingTriple)
+                    {
+                        ++this.triples;
+                        this.pendingTriple = false;
+                    }
+                    if(--this.depth == 0)
+                    {
+                        // the end of the operation
+                        String chunk = this.triples > 0 ? this.cut(false) : null;
+                        this.operation = null;
+                        return chunk;
+                    }
+                    this.body.append('}');
+                    this.statementStart = this.body.length();
+                    if(this.depth == 1)
+                    {
+                        this.graphHeader = null;
+                        if(this.isFull())
+                            return this.cut(true);
+                    }
+                    break;
+
+                case '.':
+                {
+                    int next = this.in.read();
+                    if(next != -1)
+                        this.in.unread(next);
+                    this.body.append('.');
+
+                    // a '.' that is followed by anything else is part of a number or a name
+                    if(next == -1 || Character.isWhitespace(next) || next == '}' || next == '#')
+                    {
+                        if(this.pendingTriple)
+                        {
+                            ++this.triples;
+                            this.pendingTriple = false;
+                        }
+                        this.statementStart = this.body.length();
+                        if(this.depth <= 2 && this.isFull())
+                            return this.cut(true);
+                    }
+                    else
+                    {
+                        this.pendingTriple = true;
+                    }
+                    break;
+                }
+
+                case ',':
+                case ';':
+                    // every separator closes one object, the statement goes on
+                    this.body.append((char) c);
+                    if(this.pendingTriple)
+                    {
+                        ++this.triples;
+                        this.pendingTriple = false;
+                    }
+                    break;
+
+                case '[':
+                case '(':
+                    this.splittable = false;
+                    this.body.append((char) c);
+                    this.pendingTriple = true;
+                    break;
+
+                case '_':
+                {
+                    int next = this.in.read();
+                    if(next != -1)
+                        this.in.unread(next);
+                    if(next == ':')
+                        this.splittable = false;
+                    this.body.append('_');
+                    this.pendingTriple = true;
+                    break;
+                }
+
+                default:
+                    this.body.append((char) c);
+                    if(!Character.isWhitespace(c))
+                        this.pendingTriple = true;
+            }
+        }
+
+        throw new InvalidSPARQLException("The update ends inside its " + this.operation + " block");
+    }
+
+    private boolean isFull()
+    {
+        return this.splittable && this.triples >= this.chunkSize;
+    }
+
+    /**
+     * makes an update of the chunk that was read and starts the next one
+     *
+     * @param split true if the operation goes on after the chunk
+     */
+    private String cut(boolean split)
+    {
+        StringBuilder chunk = new StringBuilder(this.prologue.length() + this.body.length() + 32);
+        chunk.append(this.prologue).append(this.operation).append(" {\n").append(this.body);
+        if(split && this.graphHeader != null)
+        {
+            chunk.append("\n}");
+        }
+        chunk.append("\n}");
+
+        this.body = new StringBuilder();
+        this.triples = 0;
+        if(split && this.graphHeader != null)
+        {
+            this.body.append(this.graphHeader).append('\n');
+        }
+        this.statementStart = this.body.length();
+        return chunk.toString();
+    }
+
+    /**
+     * reads a string that started with the given quote into the body, long strings (three quotes)
+     * included
+     */
+    private void readString(char quote) throws IOException
+    {
+        this.body.append(quote);
+        int second = this.in.read();
+        if(second == quote)
+        {
+            int third = this.in.read();
+            if(third != quote)
+            {
+                // an empty string
+                this.body.append(quote);
+                if(third != -1)
+                    this.in.unread(third);
+                return;
+            }
+            this.body.append(quote).append(quote);
+
+            // a long string ends with three quotes that are not escaped
+            int quotes = 0;
+            int c;
+            while(quotes < 3 && (c = this.in.read()) != -1)
+            {
+                this.body.append((char) c);
+                if(c == '\\')
+                {
+                    quotes = 0;
+                    c = this.in.read();
+                    if(c != -1)
+                        this.body.append((char) c);
+                }
+                else
+                {
+                    quotes = c == quote ? quotes + 1 : 0;
+                }
+            }
+            return;
+        }
+
+        int c = second;
+        while(c != -1)
+        {
+            this.body.append((char) c);
+            if(c == quote)
+                return;
+            if(c == '\\')
+            {
+                c = this.in.read();
+                if(c != -1)
+                    this.body.append((char) c);
+            }
+            c = this.in.read();
+        }
+    }
+
+    /**
+     * reads up to and including the given character into the builder
+     */
+    private void readUntil(char end, StringBuilder builder) throws IOException
+    {
+        int c;
+        while((c = this.in.read()) != -1)
+        {
+            builder.append((char) c);
+            if(c == end)
+                return;
+        }
+    }
+
+    /**
+     * skips the rest of a comment line, the newline is not skipped. With a builder the comment is
+     * kept in it.
+     */
+    private void skipComment(StringBuilder builder) throws IOException
+    {
+        int c;
+        while((c = this.in.read()) != -1 && c != '\n' && c != '\r')
+        {
+            if(builder != null)
+                builder.append((char) c);
+        }
+        if(c != -1)
+            this.in.unread(c);
+    }
+}
@@ -0,0 +1,282 @@
+package delta_service.query;
+
+import SPARQLParser.SPARQL.SplitQuery;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The ground triple parser turns the contents of a ground update block (an INSERT DATA or
+ * DELETE DATA block, so without unknowns and without a where block) into triple objects
+ * without asking the store anything.
+ *
+ * It understands the triples as they are written in such a block:
+ * - IRI's between '<' and '>' and prefixed names (which are expanded with the query's prefixes)
+ * - 'a' as predicate
+ * - literals with a language tag or a datatype, numbers and booleans
+ * - the ',' and ';' shorthands
+ *
+ * Anything else (blank nodes, collections, unknown prefixes, ...) makes the parser give up, in
+ * that case null is returned and the caller has to fall back on asking the store.
+ */
+public class GroundTripleParser
+{
+    private static final String RDF_TYPE = "http://www.w3.org/1999/02/22-rdf-syntax-ns#type";
+    private static final String XSD = "http://www.w3.org/2001/XMLSchema#";
+
+    // the prefixes declared in the query
+    private Map<String, String> prefixes;
+
+    /**
+     * default constructor
+     *
+     * @param prefixes the prefixes declared in the query that contains the block
+     */
+    public GroundTripleParser(Map<String, String> prefixes)
+    {
+        this.prefixes = prefixes;
+    }
+
+    /**
+     * parses the triples in the given block
+     *
+     * @param block the contents of a ground update block, without the surrounding '{' and '}'
+     * @return the triples in the block or null if the block contains something this parser
+     *         does not understand
+     */
+    public List<Triple> parse(String block)
+    {
+        List<String> tokens = this.tokenize(block);
+        List<Triple> triples = new ArrayList<Triple>();
+
+        String subject = null;
+        String predicate = null;
+
+        for(int i = 0; i < tokens.size(); ++i)
+        {
+            String token = tokens.get(i);
+
+            if(subject == null)
+            {
+                if(token.equals("."))
+                    continue;
+                subject = this.parseIRI(token);
+                if(subject == null)
+                    return null;
+                continue;
+            }
+
+            if(predicate == null)
+            {
+                if(token.equals("a"))
+                    predicate = RDF_TYPE;
+                else
+                    predicate = this.parseIRI(token);
+                if(predicate == null)
+                    return null;
+                continue;
+            }
+
+            // a datatype given with an IRI is a token of its own
+            if(token.endsWith("^^") && i + 1 < tokens.size() && tokens.get(i + 1).startsWith("<"))
+            {
+                token += tokens.get(++i);
+            }
+
+            Triple triple = this.parseObject(token);
+            if(triple == null)
+                return null;
+            triple.setSubject(subject);
+            triple.setPredicate(predicate);
+            triples.add(triple);
+
+            // what follows the object determines what is reused for the next triple
+            String separator = i + 1 < tokens.size() ? tokens.get(++i) : ".";
+            if(separator.equals("."))
+            {
+                subject = null;
+                predicate = null;
+            }
+            else if(separator.equals(";"))
+            {
+                predicate = null;
+                // a ';' may be followed directly by the end of the statement
+                if(i + 1 < tokens.size() && tokens.get(i + 1).equals("."))
+                {
+                    ++i;
+                    subject = null;
+                }
+            }
+            else if(!separator.equals(","))
+            {
+                return null;
+            }
+        }
+
+        if(subject != null)
+            return null;
+
+        return triples;
+    }
+
+    /**
+     * splits the block with the query splitter and then breaks the ',', ';' and '.' separators
+     * off the tokens they were glued to
+     */
+    private List<String> tokenize(String block)
+    {
+        List<String> tokens = new ArrayList<String>();
+
+        Iterator<String> iterator = new SplitQuery(block).iterator();
+        while(iterator.hasNext())
+        {
+            String token = iterator.next().trim();
+            if(token.isEmpty())
+                continue;
+
+            if(token.startsWith("<") || token.startsWith("\""))
+            {
+                // the splitter keeps these whole, but a language tag or a prefixed datatype
+                // may have a separator glued to it
+                this.addWithTrailingSeparator(tokens, token);
+                continue;
+            }
+
+            int start = 0;
+            for(int i = 0; i < token.length(); ++i)
+            {
+                char c = token.charAt(i);
+                if(c == ',' || c == ';')
+                {
+                    if(i > start)
+                        this.addWithTrailingSeparator(tokens, token.substring(start, i));
+                    tokens.add("" + c);
+                    start = i + 1;
+                }
+            }
+            if(start < token.length())
+                this.addWithTrailingSeparator(tokens, token.substring(start));
+        }
+
+        return tokens;
+    }
+
+    private void addWithTrailingSeparator(List<String> tokens, String token)
+    {
+        if(token.length() > 1 && !token.endsWith(">") && (token.endsWith(".") || token.endsWith(",") || token.endsWith(";")))
+        {
+            // the last character of a string is the closing quote so a separator behind it
+            // is never part of the literal
+            if(!token.startsWith("\"") || token.lastIndexOf('\"') < token.length() - 1)
+            {
+                tokens.add(token.substring(0, token.length() - 1));
+                tokens.add(token.substring(token.length() - 1));
+                return;
+            }
+        }
+        tokens.add(token);
+    }
+
+    /**
+     * @param token an IRI between '<' and '>' or a prefixed name
+     * @return the full IRI or null if the token is no IRI or uses an unknown prefix
+     */
+    private String parseIRI(String token)
+    {
+        if(token.startsWith("<") && token.endsWith(">"))
+        {
+            return token.substring(1, token.length() - 1);
+        }
+
+        int colon = token.indexOf(':');
+        if(colon < 0 || token.startsWith("_:") || token.startsWith("?") || token.startsWith("$"))
+        {
+            return null;
+        }
+
+        String prefix = token.substring(0, colon);
+        if(!this.prefixes.containsKey(prefix))
+        {
+            return null;
+        }
+        return this.prefixes.get(prefix) + token.substring(colon + 1);
+    }
+
+    /**
+     * @param token the object of a triple
+     * @return a triple with only the object filled in or null if the object is not understood
+     */
+    private Triple parseObject(String token)
+    {
+        Triple triple = new Triple();
+
+        if(token.startsWith("\""))
+        {
+            int closingQuote = token.lastIndexOf('\"');
+            if(closingQuote == 0)
+                return null;
+
+            // the splitter rewrites escape sequences, the store has to tell us what they are
+            if(token.substring(0, closingQuote).indexOf('\\') >= 0)
+                return null;
+
+            // the literal is kept in its escaped form, like the other triples in the delta
+            triple.setObjectString(token.substring(1, closingQuote));
+
+            String suffix = token.substring(closingQuote + 1).trim();
+            if(suffix.startsWith("@"))
+            {
+                triple.setObjectLanguage(suffix.substring(1));
+            }
+            else if(suffix.startsWith("^^"))
+            {
+                String datatype = this.parseIRI(suffix.substring(2).trim());
+                if(datatype == null)
+                    return null;
+                triple.setObjectType(datatype);
+            }
+            else if(!suffix.isEmpty())
+            {
+                return null;
+            }
+            return triple;
+        }
+
+        if(token.equals("true") || token.equals("false"))
+        {
+            triple.setObjectString(token);
+            triple.setObjectType(XSD + "boolean");
+            return triple;
+        }
+
+        if(token.matches("[+-]?[0-9]+"))
+        {
+            triple.setObjectString(token);
+            triple.setObjectType(XSD + "integer");
+            return triple;
+        }
+
+        if(token.matches("[+-]?[0-9]*\\.[0-9]+"))
+        {
+            triple.setObjectString(token);
+            triple.setObjectType(XSD + "decimal");
+            return triple;
+        }
+
+        if(token.matches("[+-]?([0-9]+\\.?[0-9]*|\\.[0-9]+)[eE][+-]?[0-9]+"))
+        {
+            triple.setObjectString(token);
+            triple.setObjectType(XSD + "double");
+            return triple;
+        }
+
+        String iri = this.parseIRI(token);
+        if(iri == null)
+            return null;
+        triple.setObjectString(iri);
+        triple.setObjectIsURI(true);
+        return triple;
+    }
+}
@@ -4,6 +4,7 @@ import SPARQLParser.SPARQL.SPARQLQuery;
 
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Created by langens-jonathan on 07.11.16.
@@ -20,6 +21,12 @@ public class QueryInfo {
     public Response response;
     public String id;
 
+    // the moment (in ms) the query was put in the update queue
+    public long registeredAt;
+
+    // completed with the store's response once the update has been processed
+    public CompletableFuture<Response> future = new CompletableFuture<Response>();
+
     public QueryInfo()
     {
         this.id = UUID.randomUUID().toString();
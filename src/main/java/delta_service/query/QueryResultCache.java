@@ -0,0 +1,419 @@
+package delta_service.query;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The query result cache keeps the responses of the store to read queries. A response is kept
+ * under the query (without the comments and the white space that do not matter) and the values
+ * of the key headers it was asked with. The request headers are passed on to the store, so every
+ * header that can change the answer (the Accept header, but also the authorization and the session
+ * headers) has to be a key header, otherwise the response to one session is served to another. The
+ * cache is bounded by the size of the responses in it, the least recently used ones go first.
+ *
+ * Every update that goes through the service tells the cache which predicates it changes in which
+ * graphs, the responses of the queries with a footprint (see ReadQueryFootprint) that holds one of
+ * those changes are dropped once the update has been written. The keys are indexed by the
+ * predicates of their footprint (and by graph for the footprints that match any predicate), so a
+ * written update only looks at the responses it may have changed.
+ *
+ * A query that is sent to the store while an update is being written may or may not see that
+ * update, its response is only kept if no update that touches its footprint was being written or
+ * was written since the query was sent. For this every written update gets an epoch, the last ones
+ * are remembered with what they changed.
+ *
+ * Updates that do not go through the service are not seen, with an expiry the responses are
+ * dropped after a while anyway.
+ */
+public class QueryResultCache
+{
+    // the amount of written updates that is remembered to check the responses that come in against
+    private static final int REMEMBERED_WRITES = 256;
+
+    private Cache<String, CachedResponse> responses;
+
+    // the (lower case) names of the request headers that are part of the key
+    private List<String> keyHeaders;
+
+    // the updates that are being written and the last ones that were written, newest first
+    private List<Write> pendingWrites = new ArrayList<Write>();
+    private Deque<Write> recentWrites = new ArrayDeque<Write>();
+
+    // the epoch of the last update that was written
+    private long epoch = 0;
+
+    private AtomicLong invalidations = new AtomicLong();
+
+    // the keys of the kept responses by the predicates of their footprint
+    private Map<String, Set<String>> keysByPredicate = new HashMap<String, Set<String>>();
+
+    // the keys of the kept responses that match any predicate, by the graphs of their footprint
+    private Map<String, Set<String>> anyPredicateKeysByGraph = new HashMap<String, Set<String>>();
+
+    // the keys of the kept responses that match any predicate in any graph
+    private Set<String> anyPredicateKeys = new HashSet<String>();
+
+    /**
+     * @param maximumBytes the maximum size of the responses (and their queries) that are kept
+     * @param expiry the seconds after which a response is dropped, 0 to keep it until it is invalidated
+     * @param keyHeaders the names of the request headers that are part of the key
+     */
+    public QueryResultCache(long maximumBytes, int expiry, List<String> keyHeaders)
+    {
+        this.keyHeaders = new ArrayList<String>();
+        for(String header : keyHeaders)
+        {
+            if(!header.trim().isEmpty())
+                this.keyHeaders.add(header.trim().toLowerCase());
+        }
+
+        CacheBuilder<String, CachedResponse> builder = CacheBuilder.newBuilder()
+                .maximumWeight(maximumBytes)
+                .weigher(new Weigher<String, CachedResponse>() {
+                    @Override
+                    public int weigh(String key, CachedResponse cachedResponse) {
+                        return 2 * key.length() + cachedResponse.weight;
+                    }
+                })
+                .removalListener(new RemovalListener<String, CachedResponse>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<String, CachedResponse> notification) {
+                        unindex(notification.getKey(), notification.getValue().footprint);
+                    }
+                })
+                .recordStats();
+        if(expiry > 0)
+        {
+            builder.expireAfterWrite(expiry, TimeUnit.SECONDS);
+        }
+        this.responses = builder.build();
+    }
+
+    /**
+     * @param query the query
+     * @param headers the headers of the request
+     * @return the key under which the response to the query is kept
+     */
+    public String key(String query, Map<String, String> headers)
+    {
+        Map<String, String> values = new HashMap<String, String>();
+        for(String header : headers.keySet())
+        {
+            values.put(header.toLowerCase(), headers.get(header));
+        }
+
+        StringBuilder key = new StringBuilder();
+        for(String header : this.keyHeaders)
+        {
+            String value = values.get(header);
+            key.append(header).append(value == null ? "" : "=" + value.trim()).append('\n');
+        }
+        return key.append(ReadQueryFootprint.normalize(query)).toString();
+    }
+
+    /**
+     * @param key the key of the query
+     * @return the kept response or null
+     */
+    public Response get(String key)
+    {
+        CachedResponse cachedResponse = this.responses.getIfPresent(key);
+        return cachedResponse == null ? null : cachedResponse.response;
+    }
+
+    /**
+     * @return the epoch to pass to put for a query that is about to be sent to the store
+     */
+    public synchronized long getEpoch()
+    {
+        return this.epoch;
+    }
+
+    /**
+     * keeps the response to a query, unless an update that touches its footprint was being written
+     * or was written since the query was sent
+     *
+     * @param key the key of the query
+     * @param footprint the footprint of the query
+     * @param response the response of the store
+     * @param since the epoch from before the query was sent
+     * @return true if the response is kept
+     */
+    public synchronized boolean put(String key, ReadQueryFootprint footprint, Response response, long since)
+    {
+        if(this.epoch - since > this.recentWrites.size())
+        {
+            // some of the updates since then are forgotten already
+            return false;
+        }
+        for(Write write : this.pendingWrites)
+        {
+            if(write.touches(footprint))
+                return false;
+        }
+        for(Write write : this.recentWrites)
+        {
+            if(write.epoch <= since)
+                break;
+            if(write.touches(footprint))
+                return false;
+        }
+
+        // indexed first, a response that is evicted right away is unindexed by the removal listener
+        // (which waits for the monitor)
+        this.index(key, footprint);
+        this.responses.put(key, new CachedResponse(footprint, response));
+        return true;
+    }
+
+    /**
+     * is called right before an update is written to the store
+     *
+     * @param diff the delta of the update
+     * @return the write to pass to endWrite once the update has been written (or has failed)
+     */
+    public Object startWrite(Map<String, DifferenceTriples> diff)
+    {
+        Write write = new Write(diff);
+        synchronized(this)
+        {
+            this.pendingWrites.add(write);
+        }
+        return write;
+    }
+
+    /**
+     * is called once an update has been written to the store (or has failed to), drops the
+     * responses it may have changed
+     *
+     * @param started what startWrite returned for the update
+     */
+    public synchronized void endWrite(Object started)
+    {
+        Write write = (Write) started;
+        this.pendingWrites.remove(write);
+        if(write.predicates.isEmpty())
+        {
+            // the update did not change anything
+            return;
+        }
+
+        write.epoch = ++this.epoch;
+        this.recentWrites.addFirst(write);
+        if(this.recentWrites.size() > REMEMBERED_WRITES)
+        {
+            this.recentWrites.removeLast();
+        }
+
+        for(String key : this.getCandidates(write))
+        {
+            CachedResponse cachedResponse = this.responses.asMap().get(key);
+            if(cachedResponse != null && write.touches(cachedResponse.footprint))
+            {
+                this.responses.invalidate(key);
+                this.invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return the keys of the kept responses the write may have changed
+     */
+    private Set<String> getCandidates(Write write)
+    {
+        Set<String> candidates = new HashSet<String>(this.anyPredicateKeys);
+        for(Map.Entry<String, Set<String>> graph : write.predicates.entrySet())
+        {
+            if(graph.getKey().isEmpty())
+            {
+                // the default graph can be any graph
+                for(Set<String> keys : this.anyPredicateKeysByGraph.values())
+                {
+                    candidates.addAll(keys);
+                }
+            }
+            else
+            {
+                addAll(candidates, this.anyPredicateKeysByGraph.get(graph.getKey()));
+            }
+            for(String predicate : graph.getValue())
+            {
+                addAll(candidates, this.keysByPredicate.get(predicate));
+            }
+        }
+        return candidates;
+    }
+
+    private static void addAll(Set<String> candidates, Set<String> keys)
+    {
+        if(keys != null)
+            candidates.addAll(keys);
+    }
+
+    private void index(String key, ReadQueryFootprint footprint)
+    {
+        if(footprint.getPredicates() != null)
+        {
+            for(String predicate : footprint.getPredicates())
+            {
+                bucket(this.keysByPredicate, predicate).add(key);
+            }
+        }
+        else if(footprint.getGraphs() != null)
+        {
+            for(String graph : footprint.getGraphs())
+            {
+                bucket(this.anyPredicateKeysByGraph, graph).add(key);
+            }
+        }
+        else
+        {
+            this.anyPredicateKeys.add(key);
+        }
+    }
+
+    /**
+     * is called (on the thread that changed the cache) once a response is dropped
+     */
+    private synchronized void unindex(String key, ReadQueryFootprint footprint)
+    {
+        if(this.responses.asMap().containsKey(key))
+        {
+            // the response was kept again since, under the same query and so the same footprint
+            return;
+        }
+
+        if(footprint.getPredicates() != null)
+        {
+            for(String predicate : footprint.getPredicates())
+            {
+                unbucket(this.keysByPredicate, predicate, key);
+            }
+        }
+        else if(footprint.getGraphs() != null)
+        {
+            for(String graph : footprint.getGraphs())
+            {
+                unbucket(this.anyPredicateKeysByGraph, graph, key);
+            }
+        }
+        else
+        {
+            this.anyPredicateKeys.remove(key);
+        }
+    }
+
+    private static Set<String> bucket(Map<String, Set<String>> index, String name)
+    {
+        Set<String> keys = index.get(name);
+        if(keys == null)
+        {
+            keys = new HashSet<String>();
+            index.put(name, keys);
+        }
+        return keys;
+    }
+
+    private static void unbucket(Map<String, Set<String>> index, String name, String key)
+    {
+        Set<String> keys = index.get(name);
+        if(keys != null && keys.remove(key) && keys.isEmpty())
+        {
+            index.remove(name);
+        }
+    }
+
+    /**
+     * @return the hits, misses, hit rate, evictions and invalidations of the cache
+     */
+    public Map<String, Object> getStatistics()
+    {
+        CacheStats stats = this.responses.stats();
+        Map<String, Object> statistics = new HashMap<String, Object>();
+        statistics.put("size", this.responses.size());
+        statistics.put("hits", stats.hitCount());
+        statistics.put("misses", stats.missCount());
+        statistics.put("hitRate", stats.hitRate());
+        statistics.put("evictions", stats.evictionCount());
+        statistics.put("invalidations", this.invalidations.get());
+        return statistics;
+    }
+
+    /**
+     * a kept response with the footprint of its query
+     */
+    private static class CachedResponse
+    {
+        private ReadQueryFootprint footprint;
+        private Response response;
+        private int weight;
+
+        private CachedResponse(ReadQueryFootprint footprint, Response response)
+        {
+            this.footprint = footprint;
+            this.response = response;
+            this.weight = 2 * response.responseText.length();
+            for(Map.Entry<String, String> header : response.responseHeaders.entrySet())
+            {
+                this.weight += 2 * (header.getKey().length() + header.getValue().length());
+            }
+        }
+    }
+
+    /**
+     * an update that is being written or was written, with the predicates it changes per graph
+     */
+    private static class Write
+    {
+        private Map<String, Set<String>> predicates = new HashMap<String, Set<String>>();
+        private long epoch;
+
+        private Write(Map<String, DifferenceTriples> diff)
+        {
+            for(String graph : diff.keySet())
+            {
+                Set<String> graphPredicates = new HashSet<String>();
+                for(Triple triple : diff.get(graph).getEffectiveInsertTriples())
+                {
+                    graphPredicates.add(triple.getPredicate());
+                }
+                for(Triple triple : diff.get(graph).getEffectiveDeleteTriples())
+                {
+                    graphPredicates.add(triple.getPredicate());
+                }
+                if(!graphPredicates.isEmpty())
+                {
+                    this.predicates.put(graph, graphPredicates);
+                }
+            }
+        }
+
+        private boolean touches(ReadQueryFootprint footprint)
+        {
+            for(Map.Entry<String, Set<String>> graph : this.predicates.entrySet())
+            {
+                for(String predicate : graph.getValue())
+                {
+                    if(footprint.isTouchedBy(graph.getKey(), predicate))
+                        return true;
+                }
+            }
+            return false;
+        }
+    }
+}
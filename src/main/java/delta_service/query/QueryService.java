@@ -4,18 +4,32 @@ import SPARQLParser.SPARQL.InvalidSPARQLException;
 import SPARQLParser.SPARQL.SPARQLQuery;
 import SPARQLParser.SPARQLStatements.BlockStatement;
 import SPARQLParser.SPARQLStatements.IStatement;
+import SPARQLParser.SPARQLStatements.ParenthesesBlock;
 import SPARQLParser.SPARQLStatements.UpdateBlockStatement;
+import SPARQLParser.SPARQLStatements.WhereBlockStatement;
 import delta_service.callback.CallBack;
+import delta_service.callback.CallBackFilter;
+import delta_service.callback.CallBackIndex;
 import delta_service.callback.CallBackService;
 import delta_service.callback.CallBackSetNotFoundException;
+import delta_service.callback.NotificationPayload;
 import delta_service.config.Configuration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.net.URLEncoder;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by langens-jonathan on 31.05.16.
@@ -29,129 +43,1162 @@ public class QueryService
     public SPARQLService sparqlService;
     private CallBackService callBackService;
 
-    private Queue<QueryInfo> updateQueries = new ArrayDeque<QueryInfo>();
-    private List<QueryInfo> processedQueries = new ArrayList<QueryInfo>();
-    private QueryInfo currentQuery = null;
+    /*
+     * the update pipeline: update queries are put in bounded lanes that are each drained by their
+     * own writer thread. Every graph belongs to one lane, so updates on the same graph are processed
+     * in the order in which they came in while updates on graphs in different lanes run in parallel.
+     */
+    private UpdateLane[] updateLanes;
+
+    // tickets are put in the lanes under this lock, so they have the same order in every lane
+    private final Object updateLanesLock = new Object();
+
+    // statistics on the time update queries spend waiting in the queue
+    private AtomicLong processedUpdateQueries = new AtomicLong();
+    private AtomicLong totalUpdateWaitTime = new AtomicLong();
+    private AtomicLong maxUpdateWaitTime = new AtomicLong();
+
+    // writes the delta notifications for the subscribers
+    private DeltaSerializer deltaSerializer = new DeltaSerializer();
+
+    // the parsed form of the queries that were seen last
+    private QueryTypeCache queryTypeCache = new QueryTypeCache(Configuration.getIntProperty("parseCacheLength", 1000000));
+
+    // the responses to read queries, null if they are not kept
+    private QueryResultCache queryResultCache = createQueryResultCache();
+
+    // the maximum size of a response that is kept, larger ones are streamed
+    private int queryCacheMaxEntryBytes = Configuration.getIntProperty("queryCacheMaxEntryBytes", 1048576);
+
+    // pushes the deltas to the consumers of the server-sent events stream
+    private DeltaStream deltaStream = new DeltaStream(Configuration.getIntProperty("deltaStreamBufferSize", 1000),
+            Configuration.getIntProperty("deltaStreamBufferBytes", 64 * 1024 * 1024), Configuration.getIntProperty("deltaStreamHeartbeat", 15000));
+
+    // the effective deltas of the graphs touched by an update are calculated in parallel on this executor
+    private ExecutorService effectiveExecutor;
+
+    // streamed update requests are read and the chunks of large ground data updates are written
+    // to the store on this executor
+    private ExecutorService chunkExecutor;
+
+    private static final Logger log = LoggerFactory.getLogger(QueryService.class);
+
+    public QueryService() {
+        this.sparqlService = new SPARQLService();
+
+        this.callBackService = new CallBackService();
+        this.callBackService.addCallBackSet("allDifferences");
+        this.callBackService.addCallBackSet("potentialDifferences");
+        this.callBackService.addCallBackSet("effectiveDifferences");
+
+        this.startUpdateLanes();
+    }
+
+    public Response postSPARQLResponse(String location, String query, Map<String, String> headers) throws IOException
+    {
+        return this.sparqlService.postSPARQLResponse(location, query, headers);
+    }
+
+    public void addCallBack(String setName, String callBackLocation)
+    {
+        this.addCallBack(setName, callBackLocation, null);
+    }
+
+    public void addCallBack(String setName, String callBackLocation, CallBackFilter filter)
+    {
+        CallBack callback = new CallBack();
+        callback.setUrl(callBackLocation);
+        callback.setFilter(filter);
+        try {
+            this.callBackService.addCallBack(setName, callback);
+        } catch (CallBackSetNotFoundException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public boolean removeCallBack(String setName, String callBackLocation)
+    {
+        try {
+            return this.callBackService.removeCallBack(setName, callBackLocation);
+        } catch (CallBackSetNotFoundException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * replaces the call backs of the given sets at once, the sets that are not in the map keep
+     * their call backs
+     *
+     * @param callBackLocationsPerSet the locations of the new call backs per set name
+     */
+    public void replaceCallBacks(Map<String, List<String>> callBackLocationsPerSet)
+    {
+        Map<String, List<CallBack>> callBacksPerSet = new HashMap<String, List<CallBack>>();
+        for(String setName : callBackLocationsPerSet.keySet())
+        {
+            List<CallBack> callBacks = new ArrayList<CallBack>();
+            for(String callBackLocation : callBackLocationsPerSet.get(setName))
+            {
+                CallBack callback = new CallBack();
+                callback.setUrl(callBackLocation);
+                callBacks.add(callback);
+            }
+            callBacksPerSet.put(setName, callBacks);
+        }
+        this.callBackService.replaceCallBacks(callBacksPerSet);
+    }
+
+    public void notifyCallBacks(String setname, String message)
+    {
+        try {
+            this.callBackService.notifyCallBacks(setname, message);
+        } catch (CallBackSetNotFoundException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void notifyCallBacks(String setname, NotificationPayload payload)
+    {
+        try {
+            this.callBackService.notifyCallBacks(setname, payload);
+        } catch (CallBackSetNotFoundException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @param queryString the query
+     * @return the parsed query
+     * @throws InvalidSPARQLException if the query is not valid SPARQL
+     */
+    public SPARQLQuery parseQuery(String queryString) throws InvalidSPARQLException
+    {
+        return new SPARQLQuery(queryString);
+    }
+
+    /**
+     * @param queryString the query
+     * @return the type of the query, from the type cache if the read query was seen before
+     * @throws InvalidSPARQLException if the type cannot be found
+     */
+    public SPARQLQuery.Type getQueryType(String queryString) throws InvalidSPARQLException
+    {
+        return this.queryTypeCache.extractType(queryString);
+    }
+
+    /**
+     * @return the hits, misses and hit rate of the query type cache
+     */
+    public Map<String, Object> getParseCacheStatistics()
+    {
+        return this.queryTypeCache.getStatistics();
+    }
+
+    private static QueryResultCache createQueryResultCache()
+    {
+        int bytes = Configuration.getIntProperty("queryCacheBytes", 0);
+        if(bytes <= 0)
+        {
+            return null;
+        }
+        String keyHeaders = Configuration.getProperty("queryCacheKeyHeaders", "accept,authorization,cookie,mu-session-id,mu-auth-allowed-groups");
+        return new QueryResultCache(bytes, Configuration.getIntProperty("queryCacheExpiry", 0), Arrays.asList(keyHeaders.split(",")));
+    }
+
+    /**
+     * @return true if read queries are answered through the query result cache
+     */
+    public boolean isQueryCacheEnabled()
+    {
+        return this.queryResultCache != null;
+    }
+
+    /**
+     * Answers a read query through the query result cache. A kept response is returned as it is.
+     * Otherwise the query is sent to the store: a successful response of at most queryCacheMaxEntryBytes
+     * is kept (unless an update that touches the query was written in the meantime) and returned, any
+     * other response (an error or a larger one) is streamed to the client. The responses to queries
+     * that must not be kept are always streamed.
+     *
+     * @param queryString the read query
+     * @param headers the headers of the request, the key headers are part of the key of the response
+     * @param servletResponse the response to stream to
+     * @return the response or null if it has been streamed to the client already
+     * @throws IOException if the store cannot be reached or the client went away
+     */
+    public Response processReadQuery(String queryString, Map<String, String> headers, HttpServletResponse servletResponse) throws IOException
+    {
+        String key = this.queryResultCache.key(queryString, headers);
+        Response response = this.queryResultCache.get(key);
+        if(response != null)
+        {
+            return response;
+        }
+
+        String url = Configuration.getProperty("queryURL") + "?query=" + URLEncoder.encode(queryString, "UTF-8");
+        ReadQueryFootprint footprint = ReadQueryFootprint.of(queryString);
+        if(footprint == null)
+        {
+            this.sparqlService.streamSPARQLResponse(url, headers, servletResponse);
+            return null;
+        }
+
+        long since = this.queryResultCache.getEpoch();
+        response = this.sparqlService.bufferOrStreamSPARQLResponse(url, headers, servletResponse, this.queryCacheMaxEntryBytes);
+        if(response != null)
+        {
+            this.queryResultCache.put(key, footprint, response, since);
+        }
+        return response;
+    }
+
+    /**
+     * @return the hits, misses, hit rate, evictions and invalidations of the query result cache,
+     *         null if it is turned off
+     */
+    public Map<String, Object> getQueryCacheStatistics()
+    {
+        return this.queryResultCache == null ? null : this.queryResultCache.getStatistics();
+    }
+
+    /**
+     * Starts pushing the deltas to a consumer of the delta stream.
+     *
+     * @param emitter the emitter of the consumer's connection
+     * @param since the id of the last event the consumer got, null to only get new deltas
+     * @param effective true for the effective changes, false for the potential ones
+     * @param filter the filter of the consumer or null
+     */
+    public void subscribeToDeltas(SseEmitter emitter, String since, boolean effective, CallBackFilter filter)
+    {
+        this.deltaStream.subscribe(emitter, since, effective, filter);
+    }
+
+    /**
+     * Puts the update query in the update pipeline.
+     *
+     * @param sparqlQuery the update query
+     * @return a future that will be completed with the store's response once the update has been
+     *         processed, or completed exceptionally if processing failed
+     * @throws UpdateQueueFullException if the update queue already holds the configured amount of
+     *         queries, the caller should retry later
+     */
+    public CompletableFuture<Response> registerUpdateQuery(QueryInfo sparqlQuery) throws UpdateQueueFullException
+    {
+        Set<UpdateLane> lanes = this.getUpdateLanes(sparqlQuery.query);
+
+        synchronized (this.updateLanesLock)
+        {
+            for(UpdateLane lane : lanes)
+            {
+                if(!lane.hasRemainingCapacity())
+                {
+                    throw new UpdateQueueFullException(lane.getCapacity());
+                }
+            }
+
+            sparqlQuery.registeredAt = System.currentTimeMillis();
+            UpdateTicket ticket = new UpdateTicket(sparqlQuery, lanes.size());
+            for(UpdateLane lane : lanes)
+            {
+                lane.offer(ticket);
+            }
+        }
+
+        return sparqlQuery.future;
+    }
+
+    /**
+     * Processes an update request while it is being read. The ground data chunker cuts its INSERT
+     * DATA and DELETE DATA operations in chunks of 'updateChunkSize' triples, every chunk is put in
+     * the update pipeline like any other update and the next chunk is only read once the store has
+     * answered. So no more than one chunk of the request is ever in memory, the subscribers are
+     * notified of the delta of every chunk.
+     *
+     * The request is read and processed on the chunk executor, the calling thread returns right away.
+     *
+     * @param reader the reader with the update request
+     * @param headers the headers of the request
+     * @param endpoint the update endpoint
+     * @return a future that will be completed with the response of the store to the last chunk (null
+     *         if the request held no updates), or completed exceptionally with an IOException if the
+     *         request cannot be read or a chunk could not be processed, an InvalidSPARQLException if
+     *         the request is not a valid update or an UpdateQueueFullException if a chunk found the
+     *         update queue full. The chunks before the one that failed have been processed.
+     */
+    public CompletableFuture<Response> processUpdateStream(final Reader reader, final Map<String, String> headers, final String endpoint)
+    {
+        final CompletableFuture<Response> future = new CompletableFuture<Response>();
+        this.chunkExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    future.complete(processUpdateChunks(reader, headers, endpoint));
+                }
+                catch (Exception e)
+                {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * reads the chunks of the update request and processes them one after the other
+     */
+    private Response processUpdateChunks(Reader reader, Map<String, String> headers, String endpoint) throws IOException, InvalidSPARQLException, UpdateQueueFullException
+    {
+        // every update that is read holds as many chunks as can be written at the same time
+        int depth = Math.max(1, Configuration.getIntProperty("updateChunkPipelineDepth", 4));
+        GroundDataChunker chunker = new GroundDataChunker(reader, Configuration.getIntProperty("updateChunkSize", 10000) * depth);
+
+        Response response = null;
+        int chunks = 0;
+        String chunk;
+        while((chunk = chunker.next()) != null)
+        {
+            QueryInfo queryInfo = new QueryInfo();
+            queryInfo.headers = new HashMap<String, String>(headers);
+            queryInfo.endpoint = endpoint;
+            queryInfo.originalQuery = chunk;
+            // the chunks are not put in the parse cache, they are never sent again
+            queryInfo.query = new SPARQLQuery(chunk);
+            if(!queryInfo.query.getType().equals(SPARQLQuery.Type.UPDATE))
+            {
+                throw new InvalidSPARQLException("Only updates can be sent as application/sparql-update");
+            }
+
+            response = this.awaitUpdateQuery(queryInfo);
+            ++chunks;
+        }
+
+        if(Configuration.logImportantQueries)
+        {
+            log.info("Processed a streamed update request in " + chunks + " chunks");
+        }
+        return response;
+    }
+
+    /**
+     * puts the update query in the pipeline and waits until it has been processed
+     */
+    private Response awaitUpdateQuery(QueryInfo queryInfo) throws IOException, UpdateQueueFullException
+    {
+        try {
+            return this.registerUpdateQuery(queryInfo).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for an update");
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * @return the amount of update queries that are waiting to be processed, an update query that
+     *         waits in more than one lane is counted for each lane
+     */
+    public int getUpdateQueueDepth()
+    {
+        int depth = 0;
+        for(UpdateLane lane : this.updateLanes)
+        {
+            depth += lane.getDepth();
+        }
+        return depth;
+    }
+
+    /**
+     * @return the maximum amount of update queries that can wait to be processed
+     */
+    public int getUpdateQueueCapacity()
+    {
+        int capacity = 0;
+        for(UpdateLane lane : this.updateLanes)
+        {
+            capacity += lane.getCapacity();
+        }
+        return capacity;
+    }
+
+    /**
+     * @return the amount of lanes in which update queries are processed in parallel
+     */
+    public int getUpdateLaneCount()
+    {
+        return this.updateLanes.length;
+    }
+
+    /**
+     * @return the average time (in ms) an update query waited in the queue before being processed
+     */
+    public long getAverageUpdateWaitTime()
+    {
+        long processed = this.processedUpdateQueries.get();
+        if(processed == 0)
+        {
+            return 0;
+        }
+        return this.totalUpdateWaitTime.get() / processed;
+    }
+
+    /**
+     * @return the longest time (in ms) an update query waited in the queue before being processed
+     */
+    public long getMaxUpdateWaitTime()
+    {
+        return this.maxUpdateWaitTime.get();
+    }
+
+    /**
+     * @return the amount of update queries that have been processed since startup
+     */
+    public long getProcessedUpdateQueries()
+    {
+        return this.processedUpdateQueries.get();
+    }
+
+    /**
+     * @return the amount of notifications that are waiting to be delivered to the subscribers, with a
+     *         delta outbox the amount of bytes of the outbox they still have to read
+     */
+    public long getNotificationBacklog()
+    {
+        return this.callBackService == null ? 0 : this.callBackService.getNotificationBacklog();
+    }
+
+    /**
+     * creates the configured amount of update lanes, each with the configured depth and its own
+     * writer thread
+     */
+    private void startUpdateLanes()
+    {
+        int laneCount = Configuration.getIntProperty("updateLanes", Runtime.getRuntime().availableProcessors());
+        int laneSize = Configuration.getIntProperty("updateQueueSize", 1000);
+
+        this.updateLanes = new UpdateLane[Math.max(1, laneCount)];
+        for(int i = 0; i < this.updateLanes.length; ++i)
+        {
+            this.updateLanes[i] = new UpdateLane(this, i, laneSize);
+        }
+
+        int effectiveThreads = Configuration.getIntProperty("effectiveDiffThreads", 4);
+        this.effectiveExecutor = Executors.newFixedThreadPool(Math.max(1, effectiveThreads), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "delta-effective-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        // every update bounds its own amount of chunks in flight and every streamed request is read
+        // by one thread, so the pool itself is not bounded
+        this.chunkExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "delta-chunk-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
 
-    public List<QueryInfo> getProcessedQueries(){return this.processedQueries;}
-    public QueryInfo getCurrentQuery(){return this.currentQuery;}
+    @PreDestroy
+    public void stopUpdateLanes()
+    {
+        if(this.updateLanes != null)
+        {
+            for(UpdateLane lane : this.updateLanes)
+            {
+                lane.stop();
+            }
+        }
+        if(this.effectiveExecutor != null)
+        {
+            this.effectiveExecutor.shutdownNow();
+        }
+        if(this.chunkExecutor != null)
+        {
+            this.chunkExecutor.shutdownNow();
+        }
+        this.deltaStream.stop();
+        this.sparqlService.close();
+        if(this.callBackService != null)
+        {
+            this.callBackService.stop();
+        }
+    }
+
+    /**
+     * Returns the lanes in which the update query has to be put. These are the lanes of all graphs
+     * the query writes to or reads from. An update on the default graph (no WITH and no GRAPH
+     * statement) may see every graph, it is put in all lanes.
+     *
+     * @param parsedQuery the parsed update query
+     * @return the lanes for the graphs touched by the query
+     */
+    private Set<UpdateLane> getUpdateLanes(SPARQLQuery parsedQuery)
+    {
+        Set<String> graphs = this.getTouchedGraphs(parsedQuery);
+
+        Set<UpdateLane> lanes = new LinkedHashSet<UpdateLane>();
+        if(graphs.contains(""))
+        {
+            lanes.addAll(Arrays.asList(this.updateLanes));
+            return lanes;
+        }
+
+        for(String graph : graphs)
+        {
+            lanes.add(this.updateLanes[(graph.hashCode() & Integer.MAX_VALUE) % this.updateLanes.length]);
+        }
+        return lanes;
+    }
+
+    /**
+     * Collects the graphs an update query operates on. For every update block this is the graph
+     * of the block (or the graph of the query if the block has none) together with the graphs of
+     * its GRAPH statements and those of its where block.
+     *
+     * @param parsedQuery the parsed update query
+     * @return the names of the touched graphs, "" stands for the default graph
+     */
+    private Set<String> getTouchedGraphs(SPARQLQuery parsedQuery)
+    {
+        Set<String> graphs = new HashSet<String>();
+        for(IStatement statement : parsedQuery.getStatements())
+        {
+            this.collectGraphs(statement, parsedQuery.getGraph(), graphs);
+        }
+        return graphs;
+    }
+
+    private void collectGraphs(IStatement statement, String defaultGraph, Set<String> graphs)
+    {
+        List<IStatement> innerStatements = null;
+
+        if(statement.getType().equals(IStatement.StatementType.UPDATEBLOCK))
+        {
+            UpdateBlockStatement updateBlockStatement = (UpdateBlockStatement) statement;
+            if(!updateBlockStatement.getUpdateType().equals(BlockStatement.BLOCKTYPE.DELETE_INSERT))
+            {
+                String graph = updateBlockStatement.getGraph();
+                graphs.add(graph.isEmpty() ? defaultGraph : graph);
+            }
+            if(updateBlockStatement.getWhereBlock() != null)
+            {
+                this.collectGraphs(updateBlockStatement.getWhereBlock(), defaultGraph, graphs);
+            }
+            innerStatements = updateBlockStatement.getStatements();
+        }
+        else if(statement.getType().equals(IStatement.StatementType.WHEREBLOCK))
+        {
+            innerStatements = ((WhereBlockStatement) statement).getStatements();
+        }
+        else if(statement.getType().equals(IStatement.StatementType.PARENTHESESBLOCK))
+        {
+            String graph = statement.getGraph();
+            if(graph != null && !graph.isEmpty())
+            {
+                graphs.add(graph);
+            }
+            innerStatements = ((ParenthesesBlock) statement).getStatements();
+        }
+
+        if(innerStatements != null)
+        {
+            for(IStatement innerStatement : innerStatements)
+            {
+                this.collectGraphs(innerStatement, defaultGraph, graphs);
+            }
+        }
+    }
+
+    /**
+     * processes a single update query and completes its future with the result
+     *
+     * @param queryInfo the update query taken from the queue
+     */
+    void processNextQuery(QueryInfo queryInfo)
+    {
+        this.recordWaitTime(queryInfo);
+
+        try {
+            this.processUpdateQuery(queryInfo);
+            queryInfo.future.complete(queryInfo.response);
+        }
+        catch (Exception e)
+        {
+            queryInfo.headers.put("ERROR", e.getLocalizedMessage());
+            e.printStackTrace();
+            queryInfo.future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Processes a batch of consecutive update queries from the same lane as one update. The
+     * queries are combined into a single update request for the store and a single delta
+     * calculation, every query in the batch gets the response of that combined request and
+     * the subscribers are notified once for the whole batch.
+     *
+     * the queries in the batch are expected to be groupable (see canBeGrouped)
+     *
+     * @param batch the update queries to process together
+     */
+    void processUpdateBatch(List<QueryInfo> batch)
+    {
+        if(batch.size() == 1)
+        {
+            this.processNextQuery(batch.get(0));
+            return;
+        }
+
+        QueryInfo first = batch.get(0);
+        QueryInfo combined = new QueryInfo();
+        combined.headers = first.headers;
+        combined.endpoint = first.endpoint;
+        combined.query = new SPARQLQuery();
+        combined.query.setType(SPARQLQuery.Type.UPDATE);
+        combined.query.setGraph(this.getTouchedGraphs(first.query).iterator().next());
+
+        StringBuilder combinedQuery = new StringBuilder();
+        for(QueryInfo queryInfo : batch)
+        {
+            this.recordWaitTime(queryInfo);
+
+            combined.query.getPrefixes().putAll(queryInfo.query.getPrefixes());
+            for(IStatement statement : queryInfo.query.getStatements())
+            {
+                combined.query.getStatements().add(statement.clone());
+            }
+
+            // SPARQL 1.1 allows several update operations, each with its own prologue, separated by ';'
+            if(combinedQuery.length() > 0)
+            {
+                combinedQuery.append(" ;\n");
+            }
+            combinedQuery.append(queryInfo.originalQuery);
+        }
+        combined.originalQuery = combinedQuery.toString();
+
+        if(Configuration.logImportantQueries)
+        {
+            log.info("Group commit of " + batch.size() + " update queries on <" + combined.query.getGraph() + ">");
+        }
+
+        try {
+            this.processUpdateQuery(combined);
+            for(QueryInfo queryInfo : batch)
+            {
+                queryInfo.response = combined.response;
+                queryInfo.future.complete(combined.response);
+            }
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            for(QueryInfo queryInfo : batch)
+            {
+                queryInfo.headers.put("ERROR", e.getLocalizedMessage());
+                queryInfo.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * An update query can be the start of a group commit if it only consists of ground data blocks
+     * (INSERT DATA or DELETE DATA, without unknowns and without a where block) that all go in
+     * the same direction and that all operate on the same graph.
+     *
+     * Mixing inserts and deletes is not allowed because then the delta of the combined update
+     * would no longer equal the deltas of the separate updates applied one after the other.
+     *
+     * @param queryInfo the update query
+     * @return true if the query can be combined with similar queries
+     */
+    boolean canBeGrouped(QueryInfo queryInfo)
+    {
+        if(!Configuration.getBooleanProperty("groupCommit", false))
+        {
+            return false;
+        }
+
+        return this.getGroundDataDirection(queryInfo.query) != null && this.getTouchedGraphs(queryInfo.query).size() == 1;
+    }
+
+    /**
+     * @param parsedQuery the parsed update query
+     * @return INSERT or DELETE if the query only consists of ground data blocks (without unknowns
+     *         and without a where block) that all go in that direction, null otherwise
+     */
+    private BlockStatement.BLOCKTYPE getGroundDataDirection(SPARQLQuery parsedQuery)
+    {
+        BlockStatement.BLOCKTYPE direction = null;
+        for(IStatement statement : parsedQuery.getStatements())
+        {
+            if(!statement.getType().equals(IStatement.StatementType.UPDATEBLOCK))
+            {
+                return null;
+            }
+            UpdateBlockStatement updateBlockStatement = (UpdateBlockStatement) statement;
+            if(updateBlockStatement.getWhereBlock() != null || !updateBlockStatement.getUnknowns().isEmpty())
+            {
+                return null;
+            }
+            if(updateBlockStatement.getUpdateType().equals(BlockStatement.BLOCKTYPE.DELETE_INSERT))
+            {
+                return null;
+            }
+            if(direction != null && !direction.equals(updateBlockStatement.getUpdateType()))
+            {
+                return null;
+            }
+            direction = updateBlockStatement.getUpdateType();
+        }
+        return direction;
+    }
+
+    /**
+     * checks if the next query in a lane can join the batch that was started with the first query.
+     * Both have to be groupable, have to go in the same direction on the same graph, have to be sent
+     * to the same endpoint with the same headers and must not declare a prefix differently.
+     *
+     * @param first the query that started the batch
+     * @param next the query that would join the batch
+     * @return true if next can be processed together with first
+     */
+    boolean canBeGroupedWith(QueryInfo first, QueryInfo next)
+    {
+        if(!this.canBeGrouped(next))
+        {
+            return false;
+        }
+
+        UpdateBlockStatement firstBlock = (UpdateBlockStatement) first.query.getStatements().get(0);
+        UpdateBlockStatement nextBlock = (UpdateBlockStatement) next.query.getStatements().get(0);
+        if(!firstBlock.getUpdateType().equals(nextBlock.getUpdateType()))
+        {
+            return false;
+        }
 
-    private boolean isProcessingUpdateQueries = false;
+        if(!this.getTouchedGraphs(first.query).equals(this.getTouchedGraphs(next.query)))
+        {
+            return false;
+        }
 
-    private static final Logger log = LoggerFactory.getLogger(QueryService.class);
+        if(first.endpoint == null ? next.endpoint != null : !first.endpoint.equals(next.endpoint))
+        {
+            return false;
+        }
 
-    public QueryService() {
-        this.sparqlService = new SPARQLService();
+        for(String prefix : next.query.getPrefixes().keySet())
+        {
+            if(first.query.getPrefixes().containsKey(prefix) &&
+                    !first.query.getPrefixes().get(prefix).equals(next.query.getPrefixes().get(prefix)))
+            {
+                return false;
+            }
+        }
 
-        this.callBackService = new CallBackService();
-        this.callBackService.addCallBackSet("allDifferences");
-        this.callBackService.addCallBackSet("potentialDifferences");
-        this.callBackService.addCallBackSet("effectiveDifferences");
+        return this.withoutContentLength(first.headers).equals(this.withoutContentLength(next.headers));
     }
 
-    public Response postSPARQLResponse(String location, String query, Map<String, String> headers) throws IOException
+    private Map<String, String> withoutContentLength(Map<String, String> headers)
     {
-        return this.sparqlService.postSPARQLResponse(location, query, headers);
+        Map<String, String> filtered = new HashMap<String, String>();
+        for(String header : headers.keySet())
+        {
+            if(!header.equalsIgnoreCase("content-length"))
+            {
+                filtered.put(header.toLowerCase(), headers.get(header));
+            }
+        }
+        return filtered;
     }
 
-    public void addCallBack(String setName, String callBackLocation)
+    private void recordWaitTime(QueryInfo queryInfo)
     {
-        CallBack callback = new CallBack();
-        callback.setUrl(callBackLocation);
-        try {
-            this.callBackService.addCallBack(setName, callback);
-        } catch (CallBackSetNotFoundException e) {
-            e.printStackTrace();
+        long waitTime = System.currentTimeMillis() - queryInfo.registeredAt;
+        this.processedUpdateQueries.incrementAndGet();
+        this.totalUpdateWaitTime.addAndGet(waitTime);
+
+        long maxWaitTime = this.maxUpdateWaitTime.get();
+        while(waitTime > maxWaitTime && !this.maxUpdateWaitTime.compareAndSet(maxWaitTime, waitTime))
+        {
+            maxWaitTime = this.maxUpdateWaitTime.get();
         }
     }
 
-    public void notifyCallBacks(String setname, String message)
+    public void processUpdateQuery(QueryInfo queryInfo) throws InvalidSPARQLException, IOException {
+            SPARQLQuery parsedQuery = queryInfo.query;
+
+            // a ground data update of more than one chunk is written chunk by chunk
+            int chunkSize = Configuration.getIntProperty("updateChunkSize", 10000);
+            if(chunkSize > 0 && this.getGroundDataDirection(parsedQuery) != null)
+            {
+                GroundDataChunker chunker = new GroundDataChunker(new StringReader(queryInfo.originalQuery), chunkSize);
+                String first = chunker.next();
+                String second = first == null ? null : chunker.next();
+                if(second != null)
+                {
+                    this.processUpdateInChunks(queryInfo, chunker, Arrays.asList(first, second));
+                    return;
+                }
+            }
+
+            // 1. calculate the difference triples (for this we want the state of the DB as before the update)
+            Map<String, DifferenceTriples> diff = this.getDifferenceTriples(parsedQuery);
+
+            // 2. perform the actual query on the DB
+            queryInfo.response = this.writeUpdate(queryInfo.endpoint, queryInfo.originalQuery, queryInfo.headers, diff);
+
+            // 3. notify the callback endpoints and the consumers of the delta stream
+            this.publishDelta(queryInfo.originalQuery, diff);
+    }
+
+    /**
+     * Writes a ground data update to the store in chunks of 'updateChunkSize' triples, with at most
+     * 'updateChunkPipelineDepth' chunks on their way to the store at the same time. Every chunk is
+     * parsed on its own and its delta is calculated right before it is written, the deltas of all
+     * chunks are merged and the subscribers get one notification for the whole update.
+     *
+     * The chunks of an update all go in the same direction, so a triple that is in several chunks
+     * is effective in the merged delta exactly when it is effective for the update as a whole.
+     *
+     * If a chunk fails no more chunks are started, the subscribers are notified of the chunks that
+     * were written and the update fails.
+     *
+     * @param queryInfo the update
+     * @param chunker the chunker reading the update
+     * @param firstChunks the chunks that were already read from the chunker
+     */
+    private void processUpdateInChunks(final QueryInfo queryInfo, GroundDataChunker chunker, List<String> firstChunks) throws IOException, InvalidSPARQLException
     {
-        try {
-            this.callBackService.notifyCallBacks(setname, message);
-        } catch (CallBackSetNotFoundException e) {
-            e.printStackTrace();
+        int depth = Math.max(1, Configuration.getIntProperty("updateChunkPipelineDepth", 4));
+        CompletionService<WrittenChunk> completionService = new ExecutorCompletionService<WrittenChunk>(this.chunkExecutor);
+        Deque<String> readAhead = new ArrayDeque<String>(firstChunks);
+
+        Map<String, DifferenceTriples> diff = new HashMap<String, DifferenceTriples>();
+        Throwable failure = null;
+        int inFlight = 0;
+        int written = 0;
+
+        String chunk = readAhead.poll();
+        while(true)
+        {
+            while(chunk != null && failure == null && inFlight < depth)
+            {
+                final String chunkQuery = chunk;
+                completionService.submit(new Callable<WrittenChunk>() {
+                    @Override
+                    public WrittenChunk call() throws Exception {
+                        Map<String, DifferenceTriples> chunkDiff = getDifferenceTriples(new SPARQLQuery(chunkQuery));
+                        Response response = writeUpdate(queryInfo.endpoint, chunkQuery, queryInfo.headers, chunkDiff);
+                        return new WrittenChunk(chunkDiff, response);
+                    }
+                });
+                ++inFlight;
+
+                try {
+                    chunk = readAhead.isEmpty() ? chunker.next() : readAhead.poll();
+                } catch (InvalidSPARQLException e) {
+                    failure = e;
+                }
+            }
+
+            if(inFlight == 0)
+            {
+                break;
+            }
+
+            try {
+                WrittenChunk writtenChunk = completionService.take().get();
+                this.mergeDelta(writtenChunk.diff, diff);
+                queryInfo.response = writtenChunk.response;
+                ++written;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = new InterruptedIOException("interrupted while writing the chunks of an update");
+                break;
+            } catch (ExecutionException e) {
+                if(failure == null)
+                    failure = e.getCause();
+            }
+            --inFlight;
+        }
+
+        if(Configuration.logImportantQueries)
+        {
+            log.info("Wrote " + written + " chunks of a ground data update");
+        }
+
+        // the subscribers are told about every chunk that made it to the store
+        if(!diff.isEmpty())
+        {
+            this.publishDelta(queryInfo.originalQuery, diff);
+        }
+
+        if(failure != null)
+        {
+            throw new IOException("The update failed after " + written + " of its chunks were written: " + failure.getMessage(), failure);
         }
     }
 
-    public void registerUpdateQuery(QueryInfo sparqlQuery)
+    /**
+     * sends an update to the store, the responses to read queries it changes are dropped from the
+     * query result cache once it has been written
+     *
+     * @param endpoint the update endpoint
+     * @param query the update
+     * @param headers the headers to send with it
+     * @param diff the delta of the update
+     * @return the response of the store
+     */
+    private Response writeUpdate(String endpoint, String query, Map<String, String> headers, Map<String, DifferenceTriples> diff) throws IOException
     {
-        this.updateQueries.add(sparqlQuery);
-        this.startProcessingUpdateQueries();
+        if(this.queryResultCache == null)
+        {
+            return this.postSPARQLResponse(endpoint, query, headers);
+        }
+
+        Object write = this.queryResultCache.startWrite(diff);
+        try {
+            return this.postSPARQLResponse(endpoint, query, headers);
+        } finally {
+            this.queryResultCache.endWrite(write);
+        }
     }
 
-    public void processNextQuery()
+    /**
+     * adds the triples of the delta of a chunk to the delta of the whole update
+     */
+    private void mergeDelta(Map<String, DifferenceTriples> chunkDiff, Map<String, DifferenceTriples> diff)
     {
-        if(this.updateQueries.size() > 0) {
-            this.isProcessingUpdateQueries = true;
-            this.currentQuery = this.updateQueries.remove();
-            try {
-                this.processUpdateQuery(this.currentQuery);
-            }
-            catch (Exception e)
+        for(String graph : chunkDiff.keySet())
+        {
+            if(!diff.containsKey(graph))
             {
-                this.currentQuery.headers.put("ERROR", e.getLocalizedMessage());
-                e.printStackTrace();
-            }
-            finally {
-                this.processedQueries.add(this.currentQuery);
-                this.currentQuery = null;
-                if (this.updateQueries.size() > 0) {
-                    this.processNextQuery();
-                } else {
-                    this.isProcessingUpdateQueries = false;
-                }
+                diff.put(graph, new DifferenceTriples());
             }
+            DifferenceTriples from = chunkDiff.get(graph);
+            DifferenceTriples to = diff.get(graph);
+            to.getAllInsertTriples().addAll(from.getAllInsertTriples());
+            to.getAllDeleteTriples().addAll(from.getAllDeleteTriples());
+            to.getEffectiveInsertTriples().addAll(from.getEffectiveInsertTriples());
+            to.getEffectiveDeleteTriples().addAll(from.getEffectiveDeleteTriples());
+        }
+    }
+
+    /**
+     * notifies the callback endpoints and the consumers of the delta stream of the delta of an
+     * update, the delta must not be changed afterwards
+     *
+     * @param query the update query
+     * @param diff the delta of the update per graph
+     */
+    private void publishDelta(String query, Map<String, DifferenceTriples> diff) throws IOException
+    {
+        if(this.hasTypeFilters())
+        {
+            this.lookUpSubjectTypes(diff);
+        }
+
+        // the JSON notifications are encoded once and shared by all subscribers
+        byte [] potJson = this.deltaSerializer.serialize(query, diff, false);
+        byte [] effectiveJson = this.deltaSerializer.serialize(query, diff, true);
+
+        if(Configuration.logDeltaResults)
+        {
+            log.info("Delta effectives:\n" + new String(effectiveJson, "UTF-8"));
+            log.info("Delta potential:\n" + new String(potJson, "UTF-8"));
         }
+
+        this.deltaStream.publish(query, diff, potJson, effectiveJson);
+        // batches are gzipped when they are sent, the notifications in them are not
+        boolean gzip = Configuration.getBooleanProperty("gzipNotifications", false) && Configuration.getIntProperty("notificationBatchDelay", 0) <= 0;
+        this.notifyCallBacks("potentialDifferences", NotificationPayload.of(potJson, gzip, this.deltaSerializer.countTriples(diff, false)));
+        this.notifyCallBacks("effectiveDifferences", NotificationPayload.of(effectiveJson, gzip, this.deltaSerializer.countTriples(diff, true)));
+        this.notifyFilteredCallBacks("potentialDifferences", query, diff, false, gzip);
+        this.notifyFilteredCallBacks("effectiveDifferences", query, diff, true, gzip);
     }
 
-    public void startProcessingUpdateQueries()
+    /**
+     * @return true if a call back or a consumer of the delta stream filters on the types of the subjects
+     */
+    private boolean hasTypeFilters()
     {
-        if(this.isProcessingUpdateQueries == false)
+        for(String setName : Arrays.asList("potentialDifferences", "effectiveDifferences"))
         {
-            this.processNextQuery();
+            CallBackIndex index = this.callBackService.getIndex(setName);
+            if(index != null && index.hasTypeFilters())
+                return true;
         }
+        return this.deltaStream.hasTypeFilters();
     }
 
-    public void processUpdateQuery(QueryInfo queryInfo) throws InvalidSPARQLException, IOException {
-            // 1. calculate the difference triples (for this we want the state of the DB as before the update)
-            SPARQLQuery parsedQuery = queryInfo.query;
-            Map<String, DifferenceTriples> diff = this.getDifferenceTriples(parsedQuery);
+    /**
+     * Looks up the types of the subjects that have no rdf:type triple in the delta, the type
+     * filters would not know them otherwise. Every graph is looked up on the effective executor.
+     * The update was written already, if the types cannot be looked up the delta is published with
+     * the types it holds itself.
+     */
+    private void lookUpSubjectTypes(Map<String, DifferenceTriples> diff)
+    {
+        List<Future<?>> lookups = new ArrayList<Future<?>>();
+        for(final String graph : diff.keySet())
+        {
+            final DifferenceTriples differenceTriples = diff.get(graph);
+            final Set<String> subjects = differenceTriples.getUntypedSubjects();
+            if(subjects.isEmpty())
+                continue;
+
+            lookups.add(this.effectiveExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    getStoredSubjectTypes(graph, subjects, differenceTriples);
+                    return null;
+                }
+            }));
+        }
+
+        for(Future<?> lookup : lookups)
+        {
+            try {
+                lookup.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warn("Interrupted while looking up the types of the subjects of a delta");
+                return;
+            } catch (ExecutionException e) {
+                log.warn("Could not look up the types of the subjects of a delta, the type filters only see the types in the delta", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * selects the types the given subjects have in the graph, in chunks of 'effectiveChunkSize'
+     * subjects, and adds them to the difference triples of the graph
+     */
+    @SuppressWarnings("unchecked")
+    private void getStoredSubjectTypes(String graph, Set<String> subjects, DifferenceTriples differenceTriples) throws IOException
+    {
+        int chunkSize = Configuration.getIntProperty("effectiveChunkSize", 500);
+        List<String> subjectList = new ArrayList<String>(subjects);
 
-            // 2. prepare the JSON responses
-            String potJson = "{\"query\":\"" + URLEncoder.encode(queryInfo.originalQuery, "UTF-8") + "\", \"delta\":[";
-            String effectiveJson = "{\"query\":\"" + URLEncoder.encode(queryInfo.originalQuery, "UTF-8") + "\", \"delta\":[";
+        for(int start = 0; start < subjectList.size(); start += chunkSize)
+        {
+            int end = Math.min(start + chunkSize, subjectList.size());
 
-            for (String g : diff.keySet()) {
-                potJson += "{\"type\":\"potential\",\"graph\":\"" + g + "\"," + diff.get(g).getPotentialChangesAsJSON() + "},";
-                effectiveJson += "{\"type\":\"effective\",\"graph\":\"" + g + "\"," + diff.get(g).getEffectiveChangesAsJSON() + "},";
+            StringBuilder query = new StringBuilder("SELECT ?s ?t WHERE {\nVALUES ?s {\n");
+            for(int i = start; i < end; ++i)
+            {
+                query.append("<").append(subjectList.get(i)).append(">\n");
             }
+            query.append("}\nGRAPH <").append(graph).append("> { ?s a ?t . }\n}");
 
-            if (!diff.keySet().isEmpty()) {
-                potJson = potJson.substring(0, potJson.length() - 1);
-                effectiveJson = effectiveJson.substring(0, effectiveJson.length() - 1);
+            if(Configuration.logAllQueries)
+            {
+                log.info("Getting the types of the subjects of a delta with:\n" + query);
             }
 
-            potJson += "]}";
-            effectiveJson += "]}";
+            for(Map<String, Object> binding : this.sparqlService.getBindingsViaPost(Configuration.getProperty("queryURL"), query.toString()))
+            {
+                Map<String, Object> subject = (Map<String, Object>) binding.get("s");
+                Map<String, Object> type = (Map<String, Object>) binding.get("t");
+                if("uri".equals(type.get("type")))
+                {
+                    differenceTriples.addStoredSubjectType((String) subject.get("value"), (String) type.get("value"));
+                }
+            }
+        }
+    }
 
-        if(Configuration.logDeltaResults)
+    /**
+     * Sends every call back with a filter in the set its own notification, with only the triples
+     * that passed its filter. The triples are routed through the index of the set, call backs that
+     * got no triples are not notified.
+     */
+    private void notifyFilteredCallBacks(String setName, String query, Map<String, DifferenceTriples> diff, boolean effective, boolean gzip) throws IOException
+    {
+        CallBackIndex index = this.callBackService.getIndex(setName);
+        if(index == null || index.isEmpty())
         {
-            log.info("Delta effectives:\n" + effectiveJson);
-            log.info("Delta potential:\n" + potJson);
+            return;
         }
 
-            // 3. perform the actual query on the DB
-            queryInfo.response = this.postSPARQLResponse(queryInfo.endpoint, queryInfo.originalQuery, queryInfo.headers);
+        Map<CallBack, Map<String, DifferenceTriples>> routed = new HashMap<CallBack, Map<String, DifferenceTriples>>();
+        for(String graph : diff.keySet())
+        {
+            DifferenceTriples differenceTriples = diff.get(graph);
+            Set<Triple> inserts = effective ? differenceTriples.getEffectiveInsertTriples() : differenceTriples.getAllInsertTriples();
+            Set<Triple> deletes = effective ? differenceTriples.getEffectiveDeleteTriples() : differenceTriples.getAllDeleteTriples();
+
+            // the types of the subjects, in the delta or (with a type filter) in the store
+            Map<String, Set<String>> subjectTypes = differenceTriples.getSubjectTypes(effective);
+
+            this.routeTriples(index, graph, inserts, true, effective, subjectTypes, routed);
+            this.routeTriples(index, graph, deletes, false, effective, subjectTypes, routed);
+        }
 
-            // 4. notify the callback endpoints
-            this.notifyCallBacks("potentialDifferences", potJson);
-            this.notifyCallBacks("effectiveDifferences", effectiveJson);
+        for(CallBack callBack : routed.keySet())
+        {
+            byte [] json = this.deltaSerializer.serialize(query, routed.get(callBack), effective);
+            int triples = this.deltaSerializer.countTriples(routed.get(callBack), effective);
+            try {
+                this.callBackService.notifyCallBack(setName, callBack, NotificationPayload.of(json, gzip, triples));
+            } catch (CallBackSetNotFoundException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
-            this.isProcessingUpdateQueries = false;
+    private void routeTriples(CallBackIndex index, String graph, Set<Triple> triples, boolean inserts, boolean effective,
+                              Map<String, Set<String>> subjectTypes, Map<CallBack, Map<String, DifferenceTriples>> routed)
+    {
+        for(Triple triple : triples)
+        {
+            Set<String> types = subjectTypes.get(triple.getSubject());
+            Set<CallBack> matches = index.match(graph, triple.getSubject(), triple.getPredicate(), types == null ? Collections.<String>emptySet() : types);
+            for(CallBack callBack : matches)
+            {
+                if(!routed.containsKey(callBack))
+                {
+                    routed.put(callBack, new HashMap<String, DifferenceTriples>());
+                }
+                Map<String, DifferenceTriples> callBackDiff = routed.get(callBack);
+                if(!callBackDiff.containsKey(graph))
+                {
+                    callBackDiff.put(graph, new DifferenceTriples());
+                }
+                DifferenceTriples differenceTriples = callBackDiff.get(graph);
+
+                if(effective && inserts)
+                    differenceTriples.addEffectiveInsertTriple(triple);
+                else if(effective)
+                    differenceTriples.addEffectiveDeleteTripel(triple);
+                else if(inserts)
+                    differenceTriples.addAllInsertTriple(triple);
+                else
+                    differenceTriples.addAllDeleteTripel(triple);
+            }
+        }
     }
 
-    public QueryService(SPARQLService service){this.sparqlService = service;}
+    public QueryService(SPARQLService service)
+    {
+        this.sparqlService = service;
+        this.startUpdateLanes();
+    }
 
     /**
      * Returns a map that projects graph names on DifferenceTriples-objects. Those DifferenceTriples-objects
@@ -231,7 +1278,7 @@ public class QueryService
          * we loop over the blocks in the query, for every block the idea is:
          *  1. find out on which graph it operates (if none than it's the graph for the entire query
          *  2. remove all graph statements for the block
-         *  3. transform it into a construct
+         *  3. read the triples from the block if it is ground, otherwise transform it into a construct
          *  4. whatever comes out will be the potential difference triples
          */
         for(IStatement statement : clonedQuery.getStatements()) {
@@ -254,41 +1301,33 @@ public class QueryService
                 updateBlockStatement.replaceGraphStatements("");
 
                 /*
-                 * step 3. transforming it into a construct
+                 * step 3. a ground block (INSERT DATA, DELETE DATA) already holds its triples so
+                 *         those are read from the block itself, without asking the store
                  */
-                String extractQuery = queryPrefix + "WITH <" + originalGraph + ">\n";
-                extractQuery += "CONSTRUCT\n{\n";
+                List<Triple> triples = null;
 
-                for(IStatement innerStatement : updateBlockStatement.getStatements())
+                if(updateBlockStatement.getWhereBlock() == null && updateBlockStatement.getUnknowns().isEmpty())
                 {
-                    extractQuery += innerStatement.toString() + "\n";
-                }
-
-                extractQuery += "}\nWHERE\n{\n";
+                    String block = "";
+                    for(IStatement innerStatement : updateBlockStatement.getStatements())
+                    {
+                        block += innerStatement.toString() + "\n";
+                    }
+                    triples = new GroundTripleParser(parsedQuery.getPrefixes()).parse(block);
 
-                if(updateBlockStatement.getWhereBlock() != null) {
-                    for (IStatement whereStatement : updateBlockStatement.getWhereBlock().getStatements()) {
-                        extractQuery += whereStatement.toString() + "\n";
+                    if(Configuration.logImportantQueries && triples != null)
+                    {
+                        log.info("Extracted " + triples.size() + " triples from ground block without a construct");
                     }
                 }
 
-                extractQuery += "}";
-
-                if(Configuration.logImportantQueries)
+                if(triples == null)
                 {
-                    if(updateBlockStatement.getUpdateType().equals(BlockStatement.BLOCKTYPE.INSERT))
-                    {
-                        log.info("Query to extract insert block:\n" + extractQuery);
-                    }
-                    else
-                    {
-                        log.info("Query to extract delete block:\n" + extractQuery);
-                    }
+                    triples = this.getConstructTriples(queryPrefix, originalGraph, updateBlockStatement);
                 }
 
                 /*
-                 * step 4. transforming the construct query in a set of triples, we will automatically
-                 *         add the triples to the differenceTriples object for that graph in the map
+                 * step 4. adding the triples to the differenceTriples object for that graph in the map
                  */
                 Set<Triple> insertTriples = null;
                 Set<Triple> deleteTriples = null;
@@ -299,17 +1338,6 @@ public class QueryService
                 insertTriples = differenceTriplesMap.get(originalGraph).getAllInsertTriples();
                 deleteTriples = differenceTriplesMap.get(originalGraph).getAllDeleteTriples();
 
-                /*
-                 * TODO: make sure that the authentication headers are set and passed if Configuration has them
-                 * for query user and pwd.
-                 */
-
-                // Uncomment to use GET
-                //List<Triple> triples = this.sparqlService.getTriplesViaConstruct(Configuration.getProperty("queryURL") + "?query=" + URLEncoder.encode(extractQuery, "UTF-8"));
-
-                // Uncomment to use POST
-                List<Triple> triples = this.sparqlService.getTriplesViaPostConstruct(Configuration.getProperty("queryURL"), "query=" + URLEncoder.encode(extractQuery, "UTF-8"));
-
                 if(updateBlockStatement.getUpdateType().equals(BlockStatement.BLOCKTYPE.INSERT))
                 {
                     insertTriples.addAll(triples);
@@ -329,141 +1357,199 @@ public class QueryService
 
         /*
          * Now that we have all potential inserts and deletes we still have to calculate the effective
-         * versions of those sets. For this we will separate the logic in 2 different blocks, 1 for
-         * deletes and 1 for insterts.
-         *
-         * TODO: Though the only thing that is different is the eventual calculating query so this could probably be refactored into something smaller
-         * TODO: now we build 1 insert query for the triples into the respective temporary graphs, if the amount of triples is big this will be a problem
-         *
-         * For the deletes the strategy will be for each graph that has a delta object in our map:
-         * 1. constructing an insert query to insert all potential deletes into a delete graph
-         * 2. executing that query
-         * 3. constructing a query that calculates the union between the tmp graph and the graph on which the original
-         *    block operated
-         * 4. store the result of the last query in the effective deletes for that graph
+         * versions of those sets. The potential triples are sent along with the query in a VALUES block,
+         * so nothing is ever written to the store to calculate them:
+         * - the effective deletes are the potential deletes that are present in the graph
+         * - the effective inserts are the potential inserts that are not yet present in the graph
+         * The checks for all graphs are started together on the effective executor.
          */
+        Map<String, Future<Set<Triple>>> effectiveDeletes = new HashMap<String, Future<Set<Triple>>>();
+        Map<String, Future<Set<Triple>>> effectiveInserts = new HashMap<String, Future<Set<Triple>>>();
+
         for(String graph : differenceTriplesMap.keySet()) {
-            /*
-             * step 1. constructing the tmp insert query that will insert the potential deletes into a tmp graph
-             */
-            // first we try to get the delete triples for that graph
             DifferenceTriples differenceTriples = differenceTriplesMap.get(graph);
 
-            Set<Triple> deleteTriples = differenceTriplesMap.get(graph).getAllDeleteTriples();
-
-            // now insert the delete triples in a temporary graph
-            String deleteGraph = "<http://tmp-delete-graph>";
+            effectiveDeletes.put(graph, this.submitEffectiveTriples(queryPrefix, graph, differenceTriples.getAllDeleteTriples(), true));
+            effectiveInserts.put(graph, this.submitEffectiveTriples(queryPrefix, graph, differenceTriples.getAllInsertTriples(), false));
+        }
 
-            // first clear the graph
-            HashMap<String, String> headers = new HashMap<String, String>();
-            headers.put("Content-type", "application/sparql-update");
+        for(String graph : differenceTriplesMap.keySet()) {
+            DifferenceTriples differenceTriples = differenceTriplesMap.get(graph);
 
-            /*
-             * TODO set authentication headers if info is available in Configuration
-             */
-            this.sparqlService.postSPARQLResponse(Configuration.getProperty("updateURL"), "with " + deleteGraph + " delete {?s ?p ?o} where {?s ?p ?o.}", headers);
+            differenceTriples.setEffectiveDeleteTriples(this.awaitEffectiveTriples(effectiveDeletes.get(graph)));
+            differenceTriples.setEffectiveInsertTriples(this.awaitEffectiveTriples(effectiveInserts.get(graph)));
+        }
 
-            String tmpDeleteInsert = queryPrefix + "\n with " + deleteGraph + "\ninsert data\n{\n";
-            for (Triple t : deleteTriples)
-                tmpDeleteInsert += "<" + t.getSubject().substring(0, t.getSubject().length()) + "> <" + t.getPredicate() + "> " + t.getObjectAsString() + " .\n";
+        return differenceTriplesMap;
+    }
 
-            tmpDeleteInsert += "}";
+    /**
+     * starts the effective check for the given graph on the effective executor, the time it took
+     * is logged per graph
+     */
+    private Future<Set<Triple>> submitEffectiveTriples(final String queryPrefix, final String graph, final Set<Triple> candidates, final boolean present)
+    {
+        return this.effectiveExecutor.submit(new Callable<Set<Triple>>() {
+            @Override
+            public Set<Triple> call() throws Exception {
+                long start = System.currentTimeMillis();
+                Set<Triple> effectiveTriples = getEffectiveTriples(queryPrefix, graph, candidates, present);
+                if(Configuration.logImportantQueries)
+                {
+                    log.info("Calculated " + effectiveTriples.size() + " of " + candidates.size() + " effective " +
+                            (present ? "deletes" : "inserts") + " for graph <" + graph + "> in " +
+                            (System.currentTimeMillis() - start) + " ms");
+                }
+                return effectiveTriples;
+            }
+        });
+    }
 
-            if(Configuration.logAllQueries)
+    /**
+     * waits for an effective check that was started with submitEffectiveTriples
+     */
+    private Set<Triple> awaitEffectiveTriples(Future<Set<Triple>> future) throws IOException
+    {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while calculating effective triples");
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException)
             {
-                log.info("Inserting delete triples in temp graph with query:\n" + tmpDeleteInsert);
+                throw (IOException) e.getCause();
             }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * selects the candidate triples that are (or are not) present in the given graph. The candidates
+     * are numbered and sent inline in a VALUES block, the store only returns the numbers of the
+     * candidates that pass. Large sets are sent in chunks of 'effectiveChunkSize' triples.
+     *
+     * @param queryPrefix the prefixes of the query
+     * @param graph the graph that is checked
+     * @param candidates the potential triples
+     * @param present true to get the candidates that are in the graph, false for those that are not
+     * @return the candidates that passed the check
+     */
+    @SuppressWarnings("unchecked")
+    private Set<Triple> getEffectiveTriples(String queryPrefix, String graph, Set<Triple> candidates, boolean present) throws IOException
+    {
+        Set<Triple> effectiveTriples = new HashSet<Triple>();
+
+        if(candidates.isEmpty())
+        {
+            return effectiveTriples;
+        }
 
-            /*
-             * step 2. executing that query
-             */
-            this.sparqlService.postSPARQLResponse(Configuration.getProperty("updateURL"),tmpDeleteInsert, headers);
+        int chunkSize = Configuration.getIntProperty("effectiveChunkSize", 500);
+        List<Triple> candidateList = new ArrayList<Triple>(candidates);
 
-            /*
-             * step 3. constructing the union query
-             */
-            String unionQuery = "SELECT ?s ?p ?o WHERE { GRAPH <" + graph + "> { ?s ?p ?o . } .\n GRAPH " + deleteGraph + " { ?s ?p ?o . } .\n}";
+        for(int start = 0; start < candidateList.size(); start += chunkSize)
+        {
+            int end = Math.min(start + chunkSize, candidateList.size());
 
-            if(Configuration.logAllQueries)
+            StringBuilder query = new StringBuilder(queryPrefix);
+            query.append("SELECT ?i WHERE {\nVALUES (?i ?s ?p ?o) {\n");
+            for(int i = start; i < end; ++i)
             {
-                log.info("Getting all EFFECTIVE delete triples with:\n" + unionQuery);
+                Triple t = candidateList.get(i);
+                query.append("(").append(i).append(" <").append(t.getSubject()).append("> <").append(t.getPredicate()).append("> ").append(t.getObjectAsString()).append(")\n");
             }
+            query.append("}\n");
 
-            List<Triple> confirmedDeletes = new ArrayList<Triple>();
+            if(present)
+            {
+                query.append("GRAPH <").append(graph).append("> { ?s ?p ?o . }\n}");
+            }
+            else
+            {
+                query.append("FILTER NOT EXISTS { GRAPH <").append(graph).append("> { ?s ?p ?o . } }\n}");
+            }
 
-            String url = Configuration.getProperty("queryURL") + "?query=" + URLEncoder.encode(unionQuery, "UTF-8");
-            confirmedDeletes = this.sparqlService.getTriplesViaGet(url);
+            if(Configuration.logAllQueries)
+            {
+                log.info("Getting all EFFECTIVE " + (present ? "delete" : "insert") + " triples with:\n" + query);
+            }
 
-            /*
-             * step 4. storing the result
-             */
-            differenceTriples.setEffectiveDeleteTriples(new HashSet<Triple>(confirmedDeletes));
+            for(Map<String, Object> binding : this.sparqlService.getBindingsViaPost(Configuration.getProperty("queryURL"), query.toString()))
+            {
+                Map<String, Object> index = (Map<String, Object>) binding.get("i");
+                effectiveTriples.add(candidateList.get(Integer.parseInt((String) index.get("value"))));
+            }
         }
 
-        /*
-         * The effective inserts will be calculated in an analog fashion:
-         * 1. constructing and insertquery
-         * 2. executing it
-         * 3. now we wil construct a difference query
-         * 4. store the result in the correct hash
-         */
-        for(String graph : differenceTriplesMap.keySet()) {
-            /*
-             * step 1. constructing the insert query
-             */
-            DifferenceTriples differenceTriples = differenceTriplesMap.get(graph);
+        return effectiveTriples;
+    }
 
-            Set<Triple> insertTriples = differenceTriplesMap.get(graph).getAllInsertTriples();
+    /**
+     * transforms the given update block into a construct query and returns the triples that the
+     * store produces for it, these are the potential difference triples for the block
+     *
+     * @param queryPrefix the prefixes of the query
+     * @param graph the graph on which the block operates
+     * @param updateBlockStatement the block with its graph statements already removed
+     * @return the triples that the construct query yields
+     */
+    private List<Triple> getConstructTriples(String queryPrefix, String graph, UpdateBlockStatement updateBlockStatement) throws IOException
+    {
+        String extractQuery = queryPrefix + "WITH <" + graph + ">\n";
+        extractQuery += "CONSTRUCT\n{\n";
 
-            // now insert the delete triples in a temporary graph
-            String insertGraph = "<http://tmp-insert-graph>";
+        for(IStatement innerStatement : updateBlockStatement.getStatements())
+        {
+            extractQuery += innerStatement.toString() + "\n";
+        }
 
-            // first clear the graph
-            HashMap<String, String> headers = new HashMap<String, String>();
-            headers.put("Content-type", "application/sparql-update");
-            this.sparqlService.postSPARQLResponse(Configuration.getProperty("updateURL"), "with " + insertGraph + " delete {?s ?p ?o} where {?s ?p ?o.}", headers);
+        extractQuery += "}\nWHERE\n{\n";
 
-            String tmpInsertInsert = queryPrefix + "\n with " + insertGraph + "\ninsert data\n{\n";
-            for (Triple t : insertTriples)
-                tmpInsertInsert += "<" + t.getSubject().substring(0, t.getSubject().length()) + "> <" + t.getPredicate() + "> " + t.getObjectAsString() + " .\n";
+        if(updateBlockStatement.getWhereBlock() != null) {
+            for (IStatement whereStatement : updateBlockStatement.getWhereBlock().getStatements()) {
+                extractQuery += whereStatement.toString() + "\n";
+            }
+        }
 
-            tmpInsertInsert += "}";
+        extractQuery += "}";
 
-            if(Configuration.logAllQueries)
+        if(Configuration.logImportantQueries)
+        {
+            if(updateBlockStatement.getUpdateType().equals(BlockStatement.BLOCKTYPE.INSERT))
             {
-                log.info("Inserting insert triples in temp graph with query:\n" + tmpInsertInsert);
+                log.info("Query to extract insert block:\n" + extractQuery);
             }
-
-            /*
-             * step 2. executing tht query
-             */
-            this.sparqlService.postSPARQLResponse(Configuration.getProperty("updateURL"), tmpInsertInsert, headers);
-
-            /*
-             * step 3. creating the difference query
-             */
-            /*
-             * TODO I guess I should assume the graph to be mu.semte.ch/application, this should be the original query's
-             * target graph!
-             */
-            String differenceQuery = "SELECT ?s ?p ?o WHERE {graph " + insertGraph + " {?s ?p ?o.}.\nminus\n{\ngraph <" + "http://mu.semte.ch/application" + "> {?s ?p ?o.}.}\n}";
-
-            if(Configuration.logAllQueries)
+            else
             {
-                log.info("Getting all EFFECTIVE insert triples with:\n" + differenceQuery);
+                log.info("Query to extract delete block:\n" + extractQuery);
             }
+        }
 
-            List<Triple> confirmedInserts = new ArrayList<Triple>();
+        /*
+         * TODO: make sure that the authentication headers are set and passed if Configuration has them
+         * for query user and pwd.
+         */
 
-            String url = Configuration.getProperty("queryURL") + "?query=" + URLEncoder.encode(differenceQuery, "UTF-8");
-            confirmedInserts = this.sparqlService.getTriplesViaGet(url);
+        // Uncomment to use GET
+        //return this.sparqlService.getTriplesViaConstruct(Configuration.getProperty("queryURL") + "?query=" + URLEncoder.encode(extractQuery, "UTF-8"));
 
-            /*
-             * step 4. storing the result
-             */
-            differenceTriples.setEffectiveInsertTriples(new HashSet<Triple>(confirmedInserts));
-        }
+        // Uncomment to use POST
+        return this.sparqlService.getTriplesViaPostConstruct(Configuration.getProperty("queryURL"), "query=" + URLEncoder.encode(extractQuery, "UTF-8"));
+    }
 
-        return differenceTriplesMap;
+    /**
+     * a chunk of an update that was written, with its delta
+     */
+    private static class WrittenChunk
+    {
+        private Map<String, DifferenceTriples> diff;
+        private Response response;
+
+        private WrittenChunk(Map<String, DifferenceTriples> diff, Response response)
+        {
+            this.diff = diff;
+            this.response = response;
+        }
     }
 }
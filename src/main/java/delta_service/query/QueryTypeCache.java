@@ -0,0 +1,75 @@
+package delta_service.query;
+
+import SPARQLParser.SPARQL.InvalidSPARQLException;
+import SPARQLParser.SPARQL.SPARQLQuery;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The query type cache keeps the types of the queries that were seen last, so the type of a query
+ * that is sent again does not have to be found by tokenizing the whole query. The cache is bounded by
+ * the total length of the queries in it (least recently used queries go first) and can be used from
+ * several threads at once.
+ *
+ * Only the type of read queries is kept. Updates are rarely sent twice (their data differs every
+ * time) and can be large, keeping them would push out the queries that are sent again. For the same
+ * reason parsed queries are not kept at all: only updates are parsed.
+ */
+public class QueryTypeCache
+{
+    private Cache<String, SPARQLQuery.Type> types;
+
+    /**
+     * @param maximumLength the maximum total length (in characters) of the queries that are kept
+     */
+    public QueryTypeCache(long maximumLength)
+    {
+        this.types = CacheBuilder.newBuilder().maximumWeight(maximumLength).weigher(new Weigher<String, SPARQLQuery.Type>() {
+            @Override
+            public int weigh(String key, SPARQLQuery.Type type) {
+                return key.length();
+            }
+        }).recordStats().build();
+    }
+
+    /**
+     * @param queryString the query
+     * @return the type of the query
+     * @throws InvalidSPARQLException if the type cannot be found
+     */
+    public SPARQLQuery.Type extractType(String queryString) throws InvalidSPARQLException
+    {
+        // queries that only differ in the white space around them are the same query
+        String key = queryString.trim();
+        SPARQLQuery.Type type = this.types.getIfPresent(key);
+        if(type == null)
+        {
+            type = SPARQLQuery.extractType(queryString);
+            if(!type.equals(SPARQLQuery.Type.UPDATE))
+            {
+                this.types.put(key, type);
+            }
+        }
+        return type;
+    }
+
+    /**
+     * @return the hits, misses, hit rate, size and evictions of the cache
+     */
+    public Map<String, Object> getStatistics()
+    {
+        CacheStats stats = this.types.stats();
+        Map<String, Object> statistics = new HashMap<String, Object>();
+        statistics.put("size", this.types.size());
+        statistics.put("hits", stats.hitCount());
+        statistics.put("misses", stats.missCount());
+        statistics.put("hitRate", stats.hitRate());
+        statistics.put("evictions", stats.evictionCount());
+        return statistics;
+    }
+}
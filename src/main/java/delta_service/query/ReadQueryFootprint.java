@@ -0,0 +1,627 @@
+package delta_service.query;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The footprint of a read query is what its result depends on: the graphs it reads and the
+ * predicates of the triples it matches. A change to a triple outside of the footprint cannot change
+ * the result of the query.
+ *
+ * The footprint is found with a single scan over the query that only keeps track of where the
+ * triple patterns are, the query is not parsed. Whenever a query could depend on more than what the
+ * scan can tell, the footprint is widened:
+ *  - without FROM or FROM NAMED the query reads the default graph of the store, so any graph
+ *  - a variable or a negated property set as predicate, a path that can have length zero (* and ?)
+ *    and DESCRIBE match any predicate
+ *  - a prefix that is not declared in the query cannot be expanded, so any predicate (or graph)
+ * Queries with a SERVICE clause or a function that does not always give the same answer (NOW, RAND,
+ * UUID, STRUUID, BNODE) have no footprint, their results must not be kept.
+ */
+public class ReadQueryFootprint
+{
+    private static final String RDF_TYPE = "http://www.w3.org/1999/02/22-rdf-syntax-ns#type";
+
+    private static final Set<String> VOLATILE_FUNCTIONS = new HashSet<String>(Arrays.asList("NOW", "RAND", "UUID", "STRUUID", "BNODE"));
+
+    // what is being read: a group of triple patterns, a blank node property list, a property
+    // path, an expression, the data of VALUES or a CONSTRUCT template
+    private static final int TOP = 0;
+    private static final int GROUP = 1;
+    private static final int PATH = 2;
+    private static final int EXPRESSION = 3;
+    private static final int DATA = 4;
+    private static final int TEMPLATE = 5;
+
+    // where in a group the next token is
+    private static final int SUBJECT = 0;
+    private static final int PREDICATE = 1;
+    private static final int OBJECT = 2;
+    private static final int AFTER_OBJECT = 3;
+    private static final int GRAPH_NAME = 4;
+    private static final int FILTER = 5;
+    private static final int VALUES = 6;
+    private static final int PROJECTION = 7;
+    private static final int MODIFIER = 8;
+
+    // the graphs the query reads, null if it can read any graph
+    private Set<String> graphs;
+
+    // the predicates of the triples the query matches, null if it can match any predicate
+    private Set<String> predicates;
+
+    private ReadQueryFootprint(Set<String> graphs, Set<String> predicates)
+    {
+        this.graphs = graphs;
+        this.predicates = predicates;
+    }
+
+    /**
+     * @return the graphs the query reads, null if it can read any graph
+     */
+    public Set<String> getGraphs()
+    {
+        return this.graphs;
+    }
+
+    /**
+     * @return the predicates of the triples the query matches, null if it can match any predicate
+     */
+    public Set<String> getPredicates()
+    {
+        return this.predicates;
+    }
+
+    /**
+     * @param graph the graph of a changed triple, "" for the default graph
+     * @param predicate the predicate of the changed triple
+     * @return true if the change can change the result of the query
+     */
+    public boolean isTouchedBy(String graph, String predicate)
+    {
+        boolean graphTouched = this.graphs == null || graph.isEmpty() || this.graphs.contains(graph);
+        return graphTouched && (this.predicates == null || this.predicates.contains(predicate));
+    }
+
+    /**
+     * finds the footprint of a read query
+     *
+     * @param query the query
+     * @return the footprint or null if the result of the query must not be kept
+     */
+    public static ReadQueryFootprint of(String query)
+    {
+        Scan scan = new Scan();
+        List<String> tokens = tokenize(query);
+        for(int i = 0; i < tokens.size(); ++i)
+        {
+            String token = tokens.get(i);
+            String next = i + 1 < tokens.size() ? tokens.get(i + 1) : "";
+            if(!scan.read(token, next))
+            {
+                return null;
+            }
+        }
+
+        // a graph variable goes over the named graphs of the dataset, without them over any graph
+        boolean anyGraph = scan.anyGraph || (scan.graphVariable && scan.fromNamed.isEmpty());
+
+        Set<String> graphs = null;
+        if(!anyGraph && !(scan.from.isEmpty() && scan.fromNamed.isEmpty()))
+        {
+            // with a dataset the query only sees the graphs in it
+            graphs = new HashSet<String>(scan.from);
+            graphs.addAll(scan.fromNamed);
+            graphs.addAll(scan.graphNames);
+        }
+        return new ReadQueryFootprint(graphs, scan.anyPredicate ? null : scan.predicates);
+    }
+
+    /**
+     * The state of the scan over the tokens of a query
+     */
+    private static class Scan
+    {
+        private Map<String, String> prefixes = new HashMap<String, String>();
+        private Set<String> from = new HashSet<String>();
+        private Set<String> fromNamed = new HashSet<String>();
+        private Set<String> graphNames = new HashSet<String>();
+        private Set<String> predicates = new HashSet<String>();
+        private boolean anyGraph = false;
+        private boolean graphVariable = false;
+        private boolean anyPredicate = false;
+
+        // the kind of every block that is open with the position in the block it was opened in
+        private Deque<int []> blocks = new ArrayDeque<int []>();
+        private int kind = TOP;
+        private int position = SUBJECT;
+
+        // what the last keyword at the top of the query asked for
+        private String pending = "";
+
+        /**
+         * reads one token
+         *
+         * @param token the token
+         * @param next the token after it, "" at the end of the query
+         * @return false if the result of the query must not be kept
+         */
+        private boolean read(String token, String next)
+        {
+            String upper = token.toUpperCase();
+            if(next.equals("(") && VOLATILE_FUNCTIONS.contains(upper))
+            {
+                return false;
+            }
+            if(upper.equals("SERVICE"))
+            {
+                return false;
+            }
+
+            // the brackets open and close blocks wherever they are
+            if(token.equals("{"))
+            {
+                if(this.kind == TOP)
+                    this.open(this.pending.equals("CONSTRUCT") ? TEMPLATE : this.pending.equals("VALUES") ? DATA : GROUP, this.position);
+                else if(this.kind == GROUP && this.position == VALUES)
+                    this.open(DATA, this.position);
+                else
+                    this.open(this.kind == DATA || this.kind == TEMPLATE ? this.kind : GROUP, this.position);
+                this.pending = "";
+                return true;
+            }
+            if(token.equals("(") && this.kind == GROUP)
+            {
+                // a path in the place of a predicate, a collection in the place of a term, an expression anywhere else
+                this.open(this.position == PREDICATE ? PATH : EXPRESSION, this.position);
+                return true;
+            }
+            if(token.equals("(") && this.kind != DATA && this.kind != TEMPLATE)
+            {
+                this.open(this.kind == PATH ? PATH : EXPRESSION, this.position);
+                return true;
+            }
+            if(token.equals("[") && this.kind != DATA && this.kind != TEMPLATE)
+            {
+                // the blank node is a term, its property list starts with a predicate
+                this.open(GROUP, this.position);
+                this.position = PREDICATE;
+                return true;
+            }
+            if(token.equals("}") || ((token.equals(")") || token.equals("]")) && this.kind != DATA && this.kind != TEMPLATE))
+            {
+                this.close(token);
+                return true;
+            }
+
+            switch(this.kind)
+            {
+                case TOP: this.readTop(token, upper, next); break;
+                case GROUP: this.readGroup(token, upper); break;
+                case PATH: this.readPath(token); break;
+                default: // what is in expressions, VALUES data and templates does not matter
+            }
+            return true;
+        }
+
+        private void open(int kind, int position)
+        {
+            this.blocks.push(new int[] {this.kind, position});
+            this.kind = kind;
+            this.position = SUBJECT;
+        }
+
+        private void close(String token)
+        {
+            if(this.blocks.isEmpty())
+            {
+                return;
+            }
+            int [] block = this.blocks.pop();
+            boolean term = this.kind == PATH || token.equals("]") || (token.equals(")") && (block[1] == SUBJECT || block[1] == OBJECT));
+            this.kind = block[0];
+            this.position = block[1];
+            if(this.kind != GROUP)
+            {
+                return;
+            }
+
+            if(token.equals("}"))
+            {
+                // after a group comes the next triple pattern, a solution modifier or the end
+                this.position = this.position == PROJECTION || this.position == MODIFIER ? MODIFIER : SUBJECT;
+            }
+            else if(term)
+            {
+                this.position = this.afterTerm(this.position);
+            }
+            else if(this.position == FILTER)
+            {
+                this.position = SUBJECT;
+            }
+        }
+
+        private int afterTerm(int position)
+        {
+            switch(position)
+            {
+                case SUBJECT: return PREDICATE;
+                case PREDICATE: return OBJECT;
+                case OBJECT: return AFTER_OBJECT;
+                case AFTER_OBJECT: return PREDICATE;
+                default: return position;
+            }
+        }
+
+        private void readTop(String token, String upper, String next)
+        {
+            if(this.pending.equals("PREFIX"))
+            {
+                if(token.endsWith(":"))
+                {
+                    this.prefixes.put(token.substring(0, token.length() - 1), iri(next, new HashMap<String, String>()));
+                }
+                this.pending = "";
+            }
+            else if(this.pending.equals("FROM") && upper.equals("NAMED"))
+            {
+                this.pending = "FROM NAMED";
+            }
+            else if(this.pending.startsWith("FROM"))
+            {
+                String graph = iri(token, this.prefixes);
+                if(graph == null)
+                    this.anyGraph = true;
+                else
+                    (this.pending.equals("FROM") ? this.from : this.fromNamed).add(graph);
+                this.pending = "";
+            }
+            else if(upper.equals("DESCRIBE"))
+            {
+                // everything about the described resources is in the result
+                this.anyPredicate = true;
+            }
+            else if(upper.equals("WHERE"))
+            {
+                this.pending = "";
+            }
+            else if(upper.equals("PREFIX") || upper.equals("FROM") || upper.equals("CONSTRUCT") || upper.equals("VALUES"))
+            {
+                this.pending = upper;
+            }
+            else if(upper.equals("BASE"))
+            {
+                // relative IRIs are not resolved, the scan gives up on them
+                this.anyGraph = true;
+                this.anyPredicate = true;
+            }
+        }
+
+        private void readGroup(String token, String upper)
+        {
+            if(this.position == SUBJECT || this.position == AFTER_OBJECT || this.position == FILTER || this.position == MODIFIER)
+            {
+                if(upper.equals("OPTIONAL") || upper.equals("MINUS") || upper.equals("UNION") || upper.equals("WHERE"))
+                {
+                    this.position = SUBJECT;
+                    return;
+                }
+                if(upper.equals("GRAPH"))
+                {
+                    this.position = GRAPH_NAME;
+                    return;
+                }
+                if(upper.equals("FILTER") || upper.equals("BIND") || upper.equals("EXISTS") || upper.equals("NOT"))
+                {
+                    this.position = FILTER;
+                    return;
+                }
+                if(upper.equals("VALUES"))
+                {
+                    this.position = VALUES;
+                    return;
+                }
+                if(upper.equals("SELECT"))
+                {
+                    this.position = PROJECTION;
+                    return;
+                }
+                if(upper.equals("ORDER") || upper.equals("GROUP") || upper.equals("HAVING") || upper.equals("LIMIT") || upper.equals("OFFSET"))
+                {
+                    this.position = MODIFIER;
+                    return;
+                }
+            }
+            if(this.position == PROJECTION && upper.equals("WHERE"))
+            {
+                this.position = SUBJECT;
+                return;
+            }
+
+            switch(token)
+            {
+                case ".":
+                    this.position = SUBJECT;
+                    return;
+                case ";":
+                    this.position = PREDICATE;
+                    return;
+                case ",":
+                    this.position = OBJECT;
+                    return;
+                case "/":
+                case "|":
+                case "^":
+                    // a sequence, an alternative or an inverse path, the next part is a predicate too
+                    if(this.position == PREDICATE || this.position == OBJECT)
+                        this.position = PREDICATE;
+                    return;
+                case "+":
+                    return;
+                case "*":
+                case "?":
+                case "!":
+                    // a path of length zero matches every term, a negated property set any other predicate
+                    if(this.position != PROJECTION && this.position != MODIFIER && this.position != FILTER && this.position != VALUES)
+                        this.anyPredicate = true;
+                    return;
+                default:
+            }
+
+            switch(this.position)
+            {
+                case PREDICATE:
+                    this.addPredicate(token);
+                    this.position = OBJECT;
+                    break;
+                case GRAPH_NAME:
+                    String graph = iri(token, this.prefixes);
+                    if(token.startsWith("?") || token.startsWith("$"))
+                        this.graphVariable = true;
+                    else if(graph == null)
+                        this.anyGraph = true;
+                    else
+                        this.graphNames.add(graph);
+                    this.position = SUBJECT;
+                    break;
+                case SUBJECT:
+                case OBJECT:
+                case AFTER_OBJECT:
+                    this.position = this.afterTerm(this.position);
+                    break;
+                default: // a function name, a projected variable or part of a solution modifier
+            }
+        }
+
+        private void readPath(String token)
+        {
+            if(token.equals("!") || token.equals("*") || token.equals("?"))
+            {
+                this.anyPredicate = true;
+            }
+            else if(!token.equals("/") && !token.equals("|") && !token.equals("^") && !token.equals("+"))
+            {
+                this.addPredicate(token);
+            }
+        }
+
+        private void addPredicate(String token)
+        {
+            String predicate = token.equals("a") ? RDF_TYPE : iri(token, this.prefixes);
+            if(predicate == null)
+                this.anyPredicate = true;
+            else
+                this.predicates.add(predicate);
+        }
+    }
+
+    /**
+     * @return the IRI of an IRI token or a prefixed name, null for anything else (a variable, a
+     *         prefixed name with a prefix that was not declared, a relative IRI)
+     */
+    private static String iri(String token, Map<String, String> prefixes)
+    {
+        if(token.startsWith("<") && token.endsWith(">"))
+        {
+            String iri = token.substring(1, token.length() - 1);
+            return iri.indexOf(':') < 0 ? null : iri;
+        }
+
+        int colon = token.indexOf(':');
+        if(colon < 0 || token.startsWith("_:") || token.startsWith("?") || token.startsWith("$") || token.startsWith("\"") || token.startsWith("'"))
+        {
+            return null;
+        }
+        String namespace = prefixes.get(token.substring(0, colon));
+        return namespace == null ? null : namespace + token.substring(colon + 1);
+    }
+
+    /**
+     * queries that only differ in comments and white space outside of their strings and IRIs are
+     * the same query, they have the same normalized form
+     *
+     * @param query the query
+     * @return the tokens of the query separated by single spaces
+     */
+    static String normalize(String query)
+    {
+        StringBuilder normalized = new StringBuilder(query.length());
+        for(String token : tokenize(query))
+        {
+            if(normalized.length() > 0)
+                normalized.append(' ');
+            normalized.append(token);
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * splits a query in IRIs, prefixed names, variables, literals (with their language or datatype),
+     * punctuation and words. Comments are dropped.
+     */
+    private static List<String> tokenize(String query)
+    {
+        List<String> tokens = new ArrayList<String>();
+        int length = query.length();
+        int i = 0;
+        while(i < length)
+        {
+            char c = query.charAt(i);
+            int start = i;
+
+            if(Character.isWhitespace(c))
+            {
+                ++i;
+                continue;
+            }
+
+            if(c == '#')
+            {
+                while(i < length && query.charAt(i) != '\n' && query.charAt(i) != '\r')
+                    ++i;
+                continue;
+            }
+
+            if(c == '<')
+            {
+                int end = i + 1;
+                while(end < length && isIRIChar(query.charAt(end)))
+                    ++end;
+                if(end < length && query.charAt(end) == '>')
+                {
+                    tokens.add(query.substring(i, end + 1));
+                    i = end + 1;
+                    continue;
+                }
+                // the less than operator
+                tokens.add("<");
+                ++i;
+                continue;
+            }
+
+            if(c == '"' || c == '\'')
+            {
+                i = skipString(query, i);
+                // the language or the datatype belongs to the literal
+                if(i < length && query.charAt(i) == '@')
+                {
+                    ++i;
+                    while(i < length && (Character.isLetterOrDigit(query.charAt(i)) || query.charAt(i) == '-'))
+                        ++i;
+                }
+                else if(query.startsWith("^^", i))
+                {
+                    i += 2;
+                    if(i < length && query.charAt(i) == '<')
+                    {
+                        while(i < length && query.charAt(i) != '>')
+                            ++i;
+                        ++i;
+                    }
+                    else
+                    {
+                        i = skipName(query, i);
+                    }
+                }
+                tokens.add(query.substring(start, Math.min(i, length)));
+                continue;
+            }
+
+            if((c == '?' || c == '$') && i + 1 < length && isNameChar(query.charAt(i + 1)))
+            {
+                i = skipName(query, i + 1);
+                tokens.add(query.substring(start, i));
+                continue;
+            }
+
+            if("{}()[];,./|^!*+?=>&".indexOf(c) >= 0)
+            {
+                tokens.add(String.valueOf(c));
+                ++i;
+                continue;
+            }
+
+            i = skipName(query, i);
+            if(i == start)
+            {
+                // anything else is punctuation of its own
+                ++i;
+            }
+            tokens.add(query.substring(start, i));
+        }
+        return tokens;
+    }
+
+    /**
+     * @return the index after the string that starts at the given index, long strings included
+     */
+    private static int skipString(String query, int start)
+    {
+        char quote = query.charAt(start);
+        int length = query.length();
+        boolean isLong = query.startsWith("" + quote + quote + quote, start);
+        int i = start + (isLong ? 3 : 1);
+        while(i < length)
+        {
+            char c = query.charAt(i);
+            if(c == '\\')
+            {
+                i += 2;
+                continue;
+            }
+            if(c == quote)
+            {
+                if(!isLong)
+                    return i + 1;
+                if(query.startsWith("" + quote + quote + quote, i))
+                    return i + 3;
+            }
+            ++i;
+        }
+        return length;
+    }
+
+    /**
+     * @return the index after the name (a prefixed name, a word or a number) that starts at the
+     *         given index, a '.' is only part of it if the name goes on after it
+     */
+    private static int skipName(String query, int start)
+    {
+        int length = query.length();
+        int i = start;
+        while(i < length)
+        {
+            char c = query.charAt(i);
+            if(isNameChar(c) || c == ':' || c == '-' || c == '%' || c == '\\')
+            {
+                ++i;
+            }
+            else if(c == '.' && i + 1 < length && (isNameChar(query.charAt(i + 1)) || query.charAt(i + 1) == ':' || query.charAt(i + 1) == '-'))
+            {
+                ++i;
+            }
+            else
+            {
+                break;
+            }
+        }
+        return i;
+    }
+
+    private static boolean isNameChar(char c)
+    {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    private static boolean isIRIChar(char c)
+    {
+        return c > ' ' && c != '<' && c != '>' && c != '"' && c != '{' && c != '}' && c != '|' && c != '^' && c != '`' && c != '\\';
+    }
+}
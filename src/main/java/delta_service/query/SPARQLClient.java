@@ -0,0 +1,120 @@
+package delta_service.query;
+
+import delta_service.config.Configuration;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A SPARQL client holds a pool of keep-alive connections to a SPARQL endpoint. The SPARQL service
+ * has one for the query endpoint and one for the update endpoint, so slow updates can never take
+ * all connections away from the queries (or the other way around).
+ *
+ * The pools are configured with the following properties:
+ * - httpMaxConnections: the maximum amount of connections in a pool (default 50)
+ * - httpMaxConnectionsPerRoute: the maximum amount of connections to one host (default 20)
+ * - httpConnectTimeout: the timeout in ms for opening a connection (default 5000)
+ * - httpReadTimeout: the timeout in ms for waiting on data from the query endpoint (default 60000)
+ * - httpUpdateReadTimeout: the timeout in ms for waiting on data from the update endpoint, 0 waits
+ *   forever (default 0). A large update can take long, if the client gives up the store may still
+ *   write it, without the service publishing its delta.
+ * - httpIdleTimeout: connections that are idle for this many ms are closed (default 30000)
+ */
+public class SPARQLClient implements Closeable
+{
+    private PoolingHttpClientConnectionManager connectionManager;
+
+    private CloseableHttpClient httpClient;
+
+    /**
+     * builds the pool from the configuration
+     *
+     * @param readTimeout the timeout in ms for waiting on data, 0 to wait forever
+     */
+    public SPARQLClient(int readTimeout)
+    {
+        this.connectionManager = new PoolingHttpClientConnectionManager();
+        this.connectionManager.setMaxTotal(Configuration.getIntProperty("httpMaxConnections", 50));
+        this.connectionManager.setDefaultMaxPerRoute(Configuration.getIntProperty("httpMaxConnectionsPerRoute", 20));
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(Configuration.getIntProperty("httpConnectTimeout", 5000))
+                .setConnectionRequestTimeout(Configuration.getIntProperty("httpConnectTimeout", 5000))
+                .setSocketTimeout(readTimeout)
+                .build();
+
+        // the responses are handed to our callers as they are, so we don't ask for compressed ones
+        this.httpClient = HttpClients.custom()
+                .setConnectionManager(this.connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .disableContentCompression()
+                .evictExpiredConnections()
+                .evictIdleConnections((long) Configuration.getIntProperty("httpIdleTimeout", 30000), TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * executes the request and reads the entire response, after which the connection goes back
+     * to the pool
+     *
+     * @param request the request to execute
+     * @return the response text and headers
+     * @throws IOException if the request fails or the endpoint answers with an error status
+     */
+    public Response execute(HttpUriRequest request) throws IOException
+    {
+        CloseableHttpResponse httpResponse = this.httpClient.execute(request);
+        try {
+            HttpEntity entity = httpResponse.getEntity();
+            String responseText = entity == null ? "" : EntityUtils.toString(entity, "UTF-8");
+
+            int statusCode = httpResponse.getStatusLine().getStatusCode();
+            if(statusCode >= 400)
+            {
+                throw new IOException("Server returned HTTP response code: " + statusCode + " for URL: " + request.getURI());
+            }
+
+            Response response = new Response();
+            response.responseText = responseText;
+            for(Header header : httpResponse.getAllHeaders())
+            {
+                response.responseHeaders.put(header.getName(), header.getValue());
+            }
+            return response;
+        } finally {
+            httpResponse.close();
+        }
+    }
+
+    /**
+     * executes the request without reading the response, this allows the caller to stream it.
+     * The caller has to close the returned response, only a response that was read entirely
+     * gives its connection back to the pool.
+     *
+     * @param request the request to execute
+     * @return the open response
+     * @throws IOException if the request fails
+     */
+    public CloseableHttpResponse open(HttpUriRequest request) throws IOException
+    {
+        return this.httpClient.execute(request);
+    }
+
+    /**
+     * closes all connections in the pool
+     */
+    public void close() throws IOException
+    {
+        this.httpClient.close();
+    }
+}
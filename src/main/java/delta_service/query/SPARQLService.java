@@ -1,22 +1,59 @@
 package delta_service.query;
 
 
+import delta_service.config.Configuration;
 import com.fasterxml.jackson.databind.ObjectMapper;
-
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+
+import javax.servlet.http.HttpServletResponse;
 import java.io.*;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * Created by jonathan-langens on 3/4/16.
  */
 public class SPARQLService
 {
+    // keep-alive connection pools, one for the query endpoint and one for the update endpoint
+    private SPARQLClient queryClient;
+    private SPARQLClient updateClient;
+
+    // decodes the answers of the store while they are being read
+    private TripleDecoder tripleDecoder = new TripleDecoder();
+
+    public SPARQLService()
+    {
+        this.queryClient = new SPARQLClient(Configuration.getIntProperty("httpReadTimeout", 60000));
+        this.updateClient = new SPARQLClient(Configuration.getIntProperty("httpUpdateReadTimeout", 0));
+    }
+
+    /**
+     * closes the connection pools
+     */
+    public void close()
+    {
+        try {
+            this.queryClient.close();
+            this.updateClient.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * this sends a GET request to the given URL and produces a list of triple objects
      * that match the query.
@@ -34,152 +71,224 @@ public class SPARQLService
      * @throws MalformedURLException if the URL cannot be passed to the constructor of a java.util.URL object
      * @throws IOException if the connection to the SPARQL enpoint cannot be opened
      */
-    @SuppressWarnings("unchecked")
     public List<Triple> getTriplesViaGet(String url) throws MalformedURLException, IOException
     {
-        URL u = new URL(url);
-        HttpURLConnection connection = (HttpURLConnection) u.openConnection();
-
-        // just want to do an HTTP GET here
-        connection.setRequestMethod("GET");
-        connection.setRequestProperty("Accept", "application/json");
-
-        // uncomment this if you want to write output to this url
-        //connection.setDoOutput(true);
-
-        // give it 15 seconds to respond
-        connection.setReadTimeout(15*1000);
-        connection.connect();
-
-        BufferedReader reader = null;
-        StringBuilder stringBuilder;
+        HttpGet request = new HttpGet(url);
+        request.setHeader("Accept", "application/json");
 
-        // read the output from the server
-        reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-        stringBuilder = new StringBuilder();
-
-        String line = null;
-        while ((line = reader.readLine()) != null)
-        {
-            stringBuilder.append(line + "\n");
-        }
+        final List<Triple> triples = new ArrayList<Triple>();
+        this.decodeTriples(request, true, new Consumer<Triple>() {
+            public void accept(Triple triple) {
+                triples.add(triple);
+            }
+        });
+        return triples;
+    }
 
-        connection.disconnect();
+    /**
+     * this sends a SELECT query as a POST request to the given URL and returns the bindings of the
+     * result, every binding maps a variable name on a map with the 'type' and 'value' (and optionally
+     * 'datatype' and 'xml:lang') of its value.
+     *
+     * @param url endpoint of your DB
+     * @param query the SELECT query (not encoded)
+     * @return the list of bindings that were returned by the SPARQL endpoint
+     * @throws MalformedURLException if the URL cannot be passed to the constructor of a java.util.URL object
+     * @throws IOException if the connection to the SPARQL enpoint cannot be opened
+     */
+    public List<Map<String, Object>> getBindingsViaPost(String url, String query) throws MalformedURLException, IOException
+    {
+        HttpPost request = new HttpPost(url);
+        request.setHeader("Accept", "application/sparql-results+json");
+        request.setEntity(new StringEntity("query=" + URLEncoder.encode(query, "UTF-8"), ContentType.APPLICATION_FORM_URLENCODED));
 
-        String jsonString = stringBuilder.toString();
+        return this.getBindings(this.queryClient.execute(request).responseText);
+    }
 
+    /**
+     * @param jsonString a SPARQL result in the application/sparql-results+json format
+     * @return the bindings of that result
+     */
+    @SuppressWarnings("unchecked")
+    private List<Map<String, Object>> getBindings(String jsonString) throws IOException
+    {
         ObjectMapper mapper = new ObjectMapper();
         Map<String, Object> jsonMap = mapper.readValue(jsonString, Map.class);
 
-
-        List l =((List<Map<String,Object>>)((Map) jsonMap.get("results")).get("bindings"));
-        List<Triple> triples = new ArrayList<Triple>();
-
-        for(Object tripleMap : l)
-        {
-            Map<String, Object> cTripleMap = (Map<String, Object>) tripleMap;
-            
-            Map<String, Object> sMap = (Map<String, Object>) cTripleMap.get("s");
-            String sValue = (String) sMap.get("value");
-            
-            Map<String, Object> pMap = (Map<String, Object>) cTripleMap.get("p");
-            String pValue = (String) pMap.get("value");
-
-            Map<String, Object> oMap = (Map<String, Object>) cTripleMap.get("o");
-            String oValue = (String) oMap.get("value");
-            String oType = (String) oMap.get("datatype");
-            if(oType == null)
-                oType = (String) oMap.get("type");
-            
-
-            Triple t = new Triple();
-
-            // first extract the subject
-            t.setSubject(sValue);
-
-            // then the predicate
-            t.setPredicate(pValue);
-
-            // and finally the object
-            t.setObjectString(oValue);
-            t.setObjectType(oType);
-
-            // add it to the triples
-            triples.add(t);
-        }
-
-        return triples;
+        return (List<Map<String, Object>>) ((Map<String, Object>) jsonMap.get("results")).get("bindings");
     }
 
     @SuppressWarnings("unchecked")
     public Response getSPARQLResponse(String url, Map<String,String> headers) throws MalformedURLException, IOException
     {
-        URL u = new URL(url);
-        HttpURLConnection connection = (HttpURLConnection) u.openConnection();
-
-        // just want to do an HTTP GET here
-        connection.setRequestMethod("GET");
+        HttpGet request = new HttpGet(url);
+        this.copyHeaders(headers, request);
 
-        String [] blackList = {"accept-encoding"};
+        return this.queryClient.execute(request);
+    }
 
-        //connection.setRequestProperty("Accept", "application/json");
-        for(String headerName : headers.keySet())
-        {
-            boolean blackListed = false;
-            for(String b : blackList)
-            {
-                if(headerName.toLowerCase().equals(b.toLowerCase()))
-                    blackListed = true;
-            }
-            if(!blackListed)
-                connection.setRequestProperty(headerName, headers.get(headerName));
+    /**
+     * sends the query to the given URL and streams the answer of the SPARQL endpoint to the servlet
+     * response as it comes in: the status and the headers (except the hop-by-hop ones) are copied,
+     * the body is piped through a fixed size buffer. The memory used does not depend on the size of
+     * the result.
+     *
+     * @param url a fully url-endpoint with query url
+     * @param headers the headers of the original request
+     * @param response the response to write to
+     * @throws IOException if the endpoint cannot be reached or the client went away
+     */
+    public void streamSPARQLResponse(String url, Map<String, String> headers, HttpServletResponse response) throws IOException
+    {
+        HttpGet request = new HttpGet(url);
+        this.copyHeaders(headers, request);
+
+        CloseableHttpResponse storeResponse = this.queryClient.open(request);
+        try {
+            HttpEntity entity = storeResponse.getEntity();
+            this.copyResponse(storeResponse, new byte[0], entity == null ? null : entity.getContent(), response);
+        } finally {
+            storeResponse.close();
         }
+    }
 
-        // give it 15 seconds to respond
-        connection.setReadTimeout(15*1000);
-        connection.connect();
+    /**
+     * sends the query to the given URL and reads the answer of the SPARQL endpoint into memory if it
+     * is a successful answer of no more than the given size. Any other answer (an error or a larger
+     * one) is streamed to the servlet response like streamSPARQLResponse does, so the memory used
+     * never depends on the size of the result.
+     *
+     * @param url a fully url-endpoint with query url
+     * @param headers the headers of the original request
+     * @param response the response to stream to if the answer is not read into memory
+     * @param maximumBytes the maximum size of an answer that is read into memory
+     * @return the answer (without its hop-by-hop headers and its length) or null if it was
+     *         streamed to the servlet response
+     * @throws IOException if the endpoint cannot be reached or the client went away
+     */
+    public Response bufferOrStreamSPARQLResponse(String url, Map<String, String> headers, HttpServletResponse response, int maximumBytes) throws IOException
+    {
+        HttpGet request = new HttpGet(url);
+        this.copyHeaders(headers, request);
 
-        BufferedReader reader = null;
-        StringBuilder stringBuilder;
+        CloseableHttpResponse storeResponse = this.queryClient.open(request);
+        try {
+            int status = storeResponse.getStatusLine().getStatusCode();
+            HttpEntity entity = storeResponse.getEntity();
+            InputStream in = entity == null ? null : entity.getContent();
 
-        // read the output from the server
-        reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-        stringBuilder = new StringBuilder();
+            ByteArrayOutputStream head = new ByteArrayOutputStream();
+            if(status >= 200 && status < 300 && (entity == null || entity.getContentLength() <= maximumBytes))
+            {
+                if(in == null || readUpTo(in, head, maximumBytes))
+                {
+                    Charset charset = entity == null ? null : ContentType.getOrDefault(entity).getCharset();
+                    Response buffered = new Response();
+                    buffered.responseText = new String(head.toByteArray(), charset == null ? Charset.forName("UTF-8") : charset);
+                    for(Header header : storeResponse.getAllHeaders())
+                    {
+                        if(!isHopByHop(header.getName()) && !header.getName().equalsIgnoreCase("content-length"))
+                            buffered.responseHeaders.put(header.getName(), header.getValue());
+                    }
+                    return buffered;
+                }
+            }
 
-        String line = null;
-        while ((line = reader.readLine()) != null)
-        {
-            stringBuilder.append(line + "\n");
+            this.copyResponse(storeResponse, head.toByteArray(), in, response);
+            return null;
+        } finally {
+            storeResponse.close();
         }
+    }
 
-        connection.disconnect();
+    /**
+     * reads the stream into the buffer until it ends or holds more than the given amount of bytes
+     *
+     * @return true if the whole stream was read
+     */
+    private static boolean readUpTo(InputStream in, ByteArrayOutputStream buffer, int maximumBytes) throws IOException
+    {
+        byte [] chunk = new byte[8192];
+        int read;
+        while((read = in.read(chunk)) != -1)
+        {
+            buffer.write(chunk, 0, read);
+            if(buffer.size() > maximumBytes)
+                return false;
+        }
+        return true;
+    }
 
-        Response response = new Response();
+    /**
+     * copies the status and the headers (except the hop-by-hop ones) of the answer of the SPARQL
+     * endpoint to the servlet response and pipes the body through a fixed size buffer
+     *
+     * @param storeResponse the answer of the endpoint
+     * @param head the part of the body that was read already
+     * @param in the rest of the body, null if there is none
+     * @param response the response to write to
+     */
+    private void copyResponse(CloseableHttpResponse storeResponse, byte [] head, InputStream in, HttpServletResponse response) throws IOException
+    {
+        response.setStatus(storeResponse.getStatusLine().getStatusCode());
+        for(Header header : storeResponse.getAllHeaders())
+        {
+            if(!isHopByHop(header.getName()))
+                response.setHeader(header.getName(), header.getValue());
+        }
 
-        response.responseText = stringBuilder.toString();
-        for(String header : connection.getHeaderFields().keySet())
+        OutputStream out = response.getOutputStream();
+        out.write(head);
+        if(in != null)
         {
-            // don't look at me, this is spring's fault!
-            if(header != null)response.responseHeaders.put(header, connection.getHeaderField(header));
+            byte [] buffer = new byte[8192];
+            int read;
+            while((read = in.read(buffer)) != -1)
+            {
+                out.write(buffer, 0, read);
+            }
+            in.close();
         }
+        out.flush();
+    }
 
-        return response;
+    private static boolean isHopByHop(String headerName)
+    {
+        String [] hopByHop = {"connection", "keep-alive", "proxy-authenticate", "proxy-authorization", "te", "trailer", "transfer-encoding", "upgrade"};
+        for(String h : hopByHop)
+        {
+            if(headerName.toLowerCase().equals(h))
+                return true;
+        }
+        return false;
     }
 
     @SuppressWarnings("unchecked")
     public Response postSPARQLResponse(String url, String query, Map<String, String> headers) throws MalformedURLException, IOException
     {
-        URL obj = new URL(url);
+        HttpPost request = new HttpPost(url);
+        this.copyHeaders(headers, request);
 
-        HttpURLConnection con = (HttpURLConnection) obj.openConnection();
+        if(headers.containsKey("content-type") && ((String)headers.get("content-type")).equalsIgnoreCase("application/x-www-form-urlencoded"))
+        {
+            // should url encode the query and assign it
+            request.setEntity(new StringEntity("query=" + URLEncoder.encode(query, "UTF-8"), ContentType.APPLICATION_FORM_URLENCODED));
+        }
+        else {
+            request.setEntity(new StringEntity(query, ContentType.create("application/x-www-form-urlencoded", "UTF-8")));
+        }
 
-        //add reuqest header
-        con.setRequestMethod("POST");
-        //con.setRequestProperty("Accept", "application/json");
+        return this.updateClient.execute(request);
+    }
 
-        String [] blackList = {"accept-encoding"};
+    /**
+     * copies the headers of the original request to the request for the SPARQL endpoint, except
+     * for the headers that describe the original connection or body
+     */
+    private void copyHeaders(Map<String, String> headers, HttpRequestBase request)
+    {
+        String [] blackList = {"accept-encoding", "content-length", "transfer-encoding", "host", "connection"};
 
-        //connection.setRequestProperty("Accept", "application/json");
         for(String headerName : headers.keySet())
         {
             boolean blackListed = false;
@@ -189,49 +298,8 @@ public class SPARQLService
                     blackListed = true;
             }
             if(!blackListed)
-                con.setRequestProperty(headerName, headers.get(headerName));
-        }
-
-        // Send post request
-        con.setDoOutput(true);
-        DataOutputStream wr = new DataOutputStream(con.getOutputStream());
-        if(headers.containsKey("content-type") && ((String)headers.get("content-type")).equalsIgnoreCase("application/x-www-form-urlencoded"))
-        {
-            // should url encode the query and assign it
-            wr.writeBytes("query=" + URLEncoder.encode(query, "UTF-8"));
-        }
-        else {
-            wr.writeBytes(query);
-        }
-        wr.flush();
-        wr.close();
-
-        int responseCode = con.getResponseCode();
-
-        BufferedReader in = new BufferedReader(
-                new InputStreamReader(con.getInputStream()));
-        String inputLine;
-        StringBuffer response = new StringBuffer();
-
-        while ((inputLine = in.readLine()) != null) {
-            response.append(inputLine);
-        }
-        in.close();
-
-        //print result
-        con.disconnect();
-
-        Response toReturn = new Response();
-
-        toReturn.responseText = response.toString();
-
-        for(String header : con.getHeaderFields().keySet())
-        {
-            // don't look at me, this is spring's fault!
-            if(header != null)toReturn.responseHeaders.put(header, con.getHeaderField(header));
+                request.setHeader(headerName, headers.get(headerName));
         }
-
-        return toReturn;
     }
 
     /**
@@ -251,93 +319,17 @@ public class SPARQLService
      * @throws MalformedURLException if the URL cannot be passed to the constructor of a java.util.URL object
      * @throws IOException if the connection to the SPARQL enpoint cannot be opened
      */
-    @SuppressWarnings("unchecked")
     public List<Triple> getTriplesViaConstruct(String url) throws MalformedURLException, IOException
     {
-        URL u = new URL(url);
-        HttpURLConnection connection = (HttpURLConnection) u.openConnection();
-
-        // just want to do an HTTP GET here
-        connection.setRequestMethod("GET");
-        connection.setRequestProperty("Accept", "application/json");
-
-        // uncomment this if you want to write output to this url
-        //connection.setDoOutput(true);
-
-        // give it 15 seconds to respond
-        connection.setReadTimeout(15*1000);
-        connection.connect();
-
-        BufferedReader reader = null;
-        StringBuilder stringBuilder;
-
-        // read the output from the server
-        reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-        stringBuilder = new StringBuilder();
+        HttpGet request = new HttpGet(url);
+        request.setHeader("Accept", "application/json");
 
-        String line = null;
-        while ((line = reader.readLine()) != null)
-        {
-            stringBuilder.append(line + "\n");
-        }
-
-        connection.disconnect();
-
-        String jsonString = stringBuilder.toString();
-
-        ObjectMapper mapper = new ObjectMapper();
-        Map<String, Object> jsonMap = mapper.readValue(jsonString, Map.class);
-
-        List<Triple> triples = new ArrayList<Triple>();
-
-        for(String uri : jsonMap.keySet())
-        {
-            Map<String, Object> poMap = (Map<String, Object>)jsonMap.get(uri);
-            for(String pred : poMap.keySet())
-            {
-                List<Map<String, Object>> oMapList = (List<Map<String, Object>>) poMap.get(pred);
-                for(Object oMapObject : oMapList.toArray()) {
-                    Map<String, Object> oMap = (Map<String, Object>)oMapObject;
-                    Triple triple = new Triple();
-                    triple.setSubject(uri);
-                    triple.setPredicate(pred);
-
-                    // check if the thing we get out is an short/integer/long/float/double
-                    if((oMap.get("value")).getClass().equals(Short.class) ||
-                            (oMap.get("value")).getClass().equals(Integer.class) ||
-                            (oMap.get("value")).getClass().equals(Long.class) ||
-                            (oMap.get("value")).getClass().equals(Float.class) ||
-                            (oMap.get("value")).getClass().equals(Double.class)) {
-                        triple.setObjectString("" + oMap.get("value"));
-                    }
-                    else {
-                        // TODO this is a hack because the Jackson Library on it's own decides to replaces
-                        // TODO all "\\n" sequences with "\n". The reason why I can do this relatively safely
-                        // TODO is because virtuoso (did not check OWLIM for that matter) does not allow newlines
-                        // TODO in a literal
-                        CharSequence unescaped = "\"";
-                        CharSequence escaped = "\\\"";
-                        triple.setObjectString(((String) oMap.get("value"))
-                                .replace("\n", "\\n")
-                                .replace(unescaped, escaped)
-                                .replace("\'", "\'")
-                                .replace("\r", "\\r")
-                                .replace("\t", "\\t")
-                        );
-                    }
-                    if(((String) oMap.get("type")).equalsIgnoreCase("uri"))
-                        triple.setObjectIsURI(true);
-                    if (oMap.containsKey("lang")) {
-                        triple.setObjectLanguage((String) oMap.get("lang"));
-                    }
-                    if (oMap.containsKey("datatype")) {
-                        triple.setObjectType((String) oMap.get("datatype"));
-                    }
-                    triples.add(triple);
-                }
+        final List<Triple> triples = new ArrayList<Triple>();
+        this.decodeTriples(request, false, new Consumer<Triple>() {
+            public void accept(Triple triple) {
+                triples.add(triple);
             }
-
-        }
+        });
         return triples;
     }
 
@@ -352,98 +344,60 @@ public class SPARQLService
      * @throws MalformedURLException if the URL cannot be passed to the constructor of a java.util.URL object
      * @throws IOException if the connection to the SPARQL enpoint cannot be opened
      */
-    @SuppressWarnings("unchecked")
     public List<Triple> getTriplesViaPostConstruct(String url, String query) throws MalformedURLException, IOException
     {
+        final List<Triple> triples = new ArrayList<Triple>();
+        this.getTriplesViaPostConstruct(url, query, new Consumer<Triple>() {
+            public void accept(Triple triple) {
+                triples.add(triple);
+            }
+        });
+        return triples;
+    }
 
-        URL u = new URL(url);
-        HttpURLConnection connection = (HttpURLConnection) u.openConnection();
-
-        // uncomment this if you want to write output to this url
-        connection.setDoOutput(true);
-        // just want to do an HTTP POST here
-        connection.setRequestMethod("POST");
-        connection.setRequestProperty("Accept", "application/json");
-
-        // Writing the post data to the HTTP request body
-        BufferedWriter httpRequestBodyWriter = new BufferedWriter(new OutputStreamWriter(connection.getOutputStream()));
-        httpRequestBodyWriter.write(query);
-        httpRequestBodyWriter.close();
-
-        // give it 15 seconds to respond
-        connection.setReadTimeout(15*1000);
-
-        BufferedReader reader = null;
-        StringBuilder stringBuilder;
-
-        // read the output from the server
-        reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-        stringBuilder = new StringBuilder();
-
-        String line = null;
-        while ((line = reader.readLine()) != null)
-        {
-            stringBuilder.append(line + "\n");
-        }
-
-        connection.disconnect();
-
-        String jsonString = stringBuilder.toString();
-
-        ObjectMapper mapper = new ObjectMapper();
-        Map<String, Object> jsonMap = mapper.readValue(jsonString, Map.class);
+    /**
+     * this sends a POST request to the given URL and hands every triple that matches the query
+     * to the consumer while the answer is being read.
+     *
+     * @param url endpoint of your DB
+     * @param query query=#{encodedQuery}
+     * @param consumer the consumer that gets the triples
+     * @throws IOException if the connection to the SPARQL enpoint cannot be opened
+     */
+    public void getTriplesViaPostConstruct(String url, String query, Consumer<Triple> consumer) throws IOException
+    {
+        HttpPost request = new HttpPost(url);
+        request.setHeader("Accept", "application/json");
+        request.setEntity(new StringEntity(query, ContentType.APPLICATION_FORM_URLENCODED));
 
-        List<Triple> triples = new ArrayList<Triple>();
+        this.decodeTriples(request, false, consumer);
+    }
 
-        for(String uri : jsonMap.keySet())
-        {
-            Map<String, Object> poMap = (Map<String, Object>)jsonMap.get(uri);
-            for(String pred : poMap.keySet())
+    /**
+     * executes the request and decodes the answer while it comes in
+     *
+     * @param request the request for the SPARQL endpoint
+     * @param bindings true if the answer holds SPARQL results, false if it is RDF/JSON
+     * @param consumer the consumer that gets the triples
+     */
+    private void decodeTriples(HttpUriRequest request, boolean bindings, Consumer<Triple> consumer) throws IOException
+    {
+        CloseableHttpResponse storeResponse = this.queryClient.open(request);
+        try {
+            int statusCode = storeResponse.getStatusLine().getStatusCode();
+            if(statusCode >= 400)
             {
-                List<Map<String, Object>> oMapList = (List<Map<String, Object>>) poMap.get(pred);
-                for(Object oMapObject : oMapList.toArray()) {
-                    Map<String, Object> oMap = (Map<String, Object>)oMapObject;
-                    Triple triple = new Triple();
-                    triple.setSubject(uri);
-                    triple.setPredicate(pred);
-
-                    // check if the thing we get out is an short/integer/long/float/double
-                    if((oMap.get("value")).getClass().equals(Short.class) ||
-                        (oMap.get("value")).getClass().equals(Integer.class) ||
-                        (oMap.get("value")).getClass().equals(Long.class) ||
-                        (oMap.get("value")).getClass().equals(Float.class) ||
-                        (oMap.get("value")).getClass().equals(Double.class)) {
-                        triple.setObjectString("" + oMap.get("value"));
-                    }
-                    else {
-                        // TODO this is a hack because the Jackson Library on it's own decides to replaces
-                        // TODO all "\\n" sequences with "\n". The reason why I can do this relatively safely
-                        // TODO is because virtuoso (did not check OWLIM for that matter) does not allow newlines
-                        // TODO in a literal
-                        CharSequence unescaped = "\"";
-                        CharSequence escaped = "\\\"";
-                        triple.setObjectString(((String) oMap.get("value"))
-                            .replace("\n", "\\n")
-                            .replace(unescaped, escaped)
-                            .replace("\'", "\'")
-                            .replace("\r", "\\r")
-                            .replace("\t", "\\t")
-                        );
-                    }
-                    if(((String) oMap.get("type")).equalsIgnoreCase("uri"))
-                        triple.setObjectIsURI(true);
-                    if (oMap.containsKey("lang")) {
-                        triple.setObjectLanguage((String) oMap.get("lang"));
-                    }
-                    if (oMap.containsKey("datatype")) {
-                        triple.setObjectType((String) oMap.get("datatype"));
-                    }
-                    triples.add(triple);
-                }
+                throw new IOException("Server returned HTTP response code: " + statusCode + " for URL: " + request.getURI());
             }
 
+            InputStream in = storeResponse.getEntity().getContent();
+            if(bindings)
+                this.tripleDecoder.decodeBindings(in, consumer);
+            else
+                this.tripleDecoder.decodeRDFJSON(in, consumer);
+        } finally {
+            storeResponse.close();
         }
-        return triples;
     }
 
 }
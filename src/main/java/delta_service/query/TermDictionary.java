@@ -0,0 +1,82 @@
+package delta_service.query;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The term dictionary gives every term (IRI, literal value, datatype or language) that it sees
+ * an int ID. The triples of a delta are stored as those IDs, so a term that occurs in many triples
+ * is only kept once.
+ *
+ * The dictionary is not synchronized, it may be read from several threads as long as nothing is
+ * being added to it.
+ */
+public class TermDictionary
+{
+    // the ID that stands for a term that is not set
+    public static final int NONE = -1;
+
+    // the ID that is returned for a term that is not in the dictionary
+    public static final int UNKNOWN = -2;
+
+    private Map<String, Integer> ids = new HashMap<String, Integer>();
+
+    private List<String> terms = new ArrayList<String>();
+
+    /**
+     * returns the ID of the term, the term is added to the dictionary if it is not yet in it
+     *
+     * @param term the term, may be null
+     * @return the ID of the term or NONE if the term is null
+     */
+    public int intern(String term)
+    {
+        if(term == null)
+            return NONE;
+
+        Integer id = this.ids.get(term);
+        if(id == null)
+        {
+            id = this.terms.size();
+            this.terms.add(term);
+            this.ids.put(term, id);
+        }
+        return id;
+    }
+
+    /**
+     * returns the ID of the term without adding it
+     *
+     * @param term the term, may be null
+     * @return the ID of the term, NONE if the term is null or UNKNOWN if it is not in the dictionary
+     */
+    public int getId(String term)
+    {
+        if(term == null)
+            return NONE;
+
+        Integer id = this.ids.get(term);
+        return id == null ? UNKNOWN : id;
+    }
+
+    /**
+     * @param id an ID that was handed out by this dictionary or NONE
+     * @return the term with that ID or null for NONE
+     */
+    public String getTerm(int id)
+    {
+        if(id == NONE)
+            return null;
+        return this.terms.get(id);
+    }
+
+    /**
+     * @return the amount of terms in this dictionary
+     */
+    public int size()
+    {
+        return this.terms.size();
+    }
+}
@@ -125,4 +125,42 @@ public class Triple
     public void setObjectIsURI(boolean objectIsURI) {
         this.objectIsURI = objectIsURI;
     }
+
+    /**
+     * two triples are equal if their subject, predicate and object (with its language, type and
+     * whether it is a URI) are equal
+     */
+    @Override
+    public boolean equals(Object other)
+    {
+        if(this == other)
+            return true;
+        if(!(other instanceof Triple))
+            return false;
+
+        Triple triple = (Triple) other;
+        return this.objectIsURI == triple.objectIsURI &&
+                equal(this.subject, triple.subject) &&
+                equal(this.predicate, triple.predicate) &&
+                equal(this.objectString, triple.objectString) &&
+                equal(this.objectLanguage, triple.objectLanguage) &&
+                equal(this.objectType, triple.objectType);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int hash = this.subject == null ? 0 : this.subject.hashCode();
+        hash = 31 * hash + (this.predicate == null ? 0 : this.predicate.hashCode());
+        hash = 31 * hash + (this.objectString == null ? 0 : this.objectString.hashCode());
+        hash = 31 * hash + (this.objectLanguage == null ? 0 : this.objectLanguage.hashCode());
+        hash = 31 * hash + (this.objectType == null ? 0 : this.objectType.hashCode());
+        hash = 31 * hash + (this.objectIsURI ? 1 : 0);
+        return hash;
+    }
+
+    private static boolean equal(String a, String b)
+    {
+        return a == null ? b == null : a.equals(b);
+    }
 }
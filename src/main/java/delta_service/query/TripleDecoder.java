@@ -0,0 +1,258 @@
+package delta_service.query;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Consumer;
+
+/**
+ * The triple decoder reads the JSON answers of a SPARQL endpoint token by token and hands every
+ * triple to a consumer the moment it is complete, so the answer is never held in memory as a whole.
+ *
+ * Two formats are understood:
+ * - RDF/JSON, the answer to a CONSTRUCT query: { "s" : { "p" : [ { "type" : .., "value" : .. } ] } }
+ * - SPARQL results, the answer to a SELECT ?s ?p ?o query: { "results" : { "bindings" : [ .. ] } }
+ *
+ * The literal values of RDF/JSON are escaped the way they would be written in a query, this is the
+ * form in which the object strings of triples are kept. The objects of SPARQL results are kept as
+ * they were sent.
+ */
+public class TripleDecoder
+{
+    // the predicates repeat a lot, the symbol table of the factory makes sure they are shared. They
+    // are not interned though, that would put every subject in the string pool
+    private static final JsonFactory jsonFactory = new JsonFactory().disable(JsonFactory.Feature.INTERN_FIELD_NAMES);
+
+    /**
+     * decodes an RDF/JSON document
+     *
+     * @param in the stream with the document, it is read to the end but not closed
+     * @param consumer the consumer that gets every triple
+     * @throws IOException if the stream cannot be read or does not hold RDF/JSON
+     */
+    public void decodeRDFJSON(InputStream in, Consumer<Triple> consumer) throws IOException
+    {
+        JsonParser parser = jsonFactory.createParser(in);
+        try {
+            this.expect(parser.nextToken(), JsonToken.START_OBJECT);
+            while(parser.nextToken() == JsonToken.FIELD_NAME)
+            {
+                String subject = parser.getCurrentName();
+                this.expect(parser.nextToken(), JsonToken.START_OBJECT);
+                while(parser.nextToken() == JsonToken.FIELD_NAME)
+                {
+                    String predicate = parser.getCurrentName();
+                    this.expect(parser.nextToken(), JsonToken.START_ARRAY);
+                    while(parser.nextToken() == JsonToken.START_OBJECT)
+                    {
+                        Triple triple = new Triple();
+                        triple.setSubject(subject);
+                        triple.setPredicate(predicate);
+                        this.readObject(parser, triple);
+                        consumer.accept(triple);
+                    }
+                }
+            }
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * decodes a SPARQL results document with bindings for the variables s, p and o
+     *
+     * @param in the stream with the document, it is read to the end but not closed
+     * @param consumer the consumer that gets every triple
+     * @throws IOException if the stream cannot be read or does not hold SPARQL results
+     */
+    public void decodeBindings(InputStream in, Consumer<Triple> consumer) throws IOException
+    {
+        JsonParser parser = jsonFactory.createParser(in);
+        try {
+            this.expect(parser.nextToken(), JsonToken.START_OBJECT);
+            while(parser.nextToken() == JsonToken.FIELD_NAME)
+            {
+                if(!parser.getCurrentName().equals("results"))
+                {
+                    parser.nextToken();
+                    parser.skipChildren();
+                    continue;
+                }
+
+                this.expect(parser.nextToken(), JsonToken.START_OBJECT);
+                while(parser.nextToken() == JsonToken.FIELD_NAME)
+                {
+                    if(!parser.getCurrentName().equals("bindings"))
+                    {
+                        parser.nextToken();
+                        parser.skipChildren();
+                        continue;
+                    }
+
+                    this.expect(parser.nextToken(), JsonToken.START_ARRAY);
+                    while(parser.nextToken() == JsonToken.START_OBJECT)
+                    {
+                        consumer.accept(this.readBinding(parser));
+                    }
+                }
+            }
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * reads one binding, the parser is on its START_OBJECT
+     */
+    private Triple readBinding(JsonParser parser) throws IOException
+    {
+        Triple triple = new Triple();
+        while(parser.nextToken() == JsonToken.FIELD_NAME)
+        {
+            String variable = parser.getCurrentName();
+            this.expect(parser.nextToken(), JsonToken.START_OBJECT);
+            if(variable.equals("s"))
+            {
+                triple.setSubject(this.readValue(parser));
+            }
+            else if(variable.equals("p"))
+            {
+                triple.setPredicate(this.readValue(parser));
+            }
+            else if(variable.equals("o"))
+            {
+                this.readBoundObject(parser, triple);
+            }
+            else
+            {
+                parser.skipChildren();
+            }
+        }
+        return triple;
+    }
+
+    /**
+     * reads the value of a term and skips the rest of it, the parser is on its START_OBJECT
+     */
+    private String readValue(JsonParser parser) throws IOException
+    {
+        String value = null;
+        while(parser.nextToken() == JsonToken.FIELD_NAME)
+        {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if(field.equals("value"))
+                value = parser.getText();
+            else
+                parser.skipChildren();
+        }
+        return value;
+    }
+
+    /**
+     * reads a bound term into the object of the given triple, the parser is on its START_OBJECT.
+     * Unlike in RDF/JSON the value is kept as it is and the object type is the datatype or, for a
+     * term without one, the type of the term ("uri", "literal", ..)
+     */
+    private void readBoundObject(JsonParser parser, Triple triple) throws IOException
+    {
+        String type = null;
+        String datatype = null;
+        while(parser.nextToken() == JsonToken.FIELD_NAME)
+        {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if(field.equals("type"))
+                type = parser.getText();
+            else if(field.equals("value"))
+                triple.setObjectString(parser.getText());
+            else if(field.equals("datatype"))
+                datatype = parser.getText();
+            else
+                parser.skipChildren();
+        }
+        triple.setObjectType(datatype != null ? datatype : type);
+    }
+
+    /**
+     * reads a term into the object of the given triple, the parser is on its START_OBJECT
+     */
+    private void readObject(JsonParser parser, Triple triple) throws IOException
+    {
+        while(parser.nextToken() == JsonToken.FIELD_NAME)
+        {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if(field.equals("type"))
+            {
+                triple.setObjectIsURI(parser.getText().equalsIgnoreCase("uri"));
+            }
+            else if(field.equals("value"))
+            {
+                // some stores write numbers as JSON numbers, those need no escaping
+                if(token == JsonToken.VALUE_STRING)
+                    triple.setObjectString(this.escape(parser.getText()));
+                else
+                    triple.setObjectString(parser.getText());
+            }
+            else if(field.equals("lang") || field.equals("xml:lang"))
+            {
+                triple.setObjectLanguage(parser.getText());
+            }
+            else if(field.equals("datatype"))
+            {
+                triple.setObjectType(parser.getText());
+            }
+            else
+            {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    /**
+     * escapes a literal value in a single pass, a value that needs no escaping is returned as is
+     */
+    private String escape(String value)
+    {
+        int i = 0;
+        while(i < value.length() && !this.needsEscaping(value.charAt(i)))
+            ++i;
+
+        if(i == value.length())
+            return value;
+
+        StringBuilder escaped = new StringBuilder(value.length() + 16);
+        escaped.append(value, 0, i);
+        for(; i < value.length(); ++i)
+        {
+            char c = value.charAt(i);
+            switch(c)
+            {
+                case '\n': escaped.append("\\n"); break;
+                case '\r': escaped.append("\\r"); break;
+                case '\t': escaped.append("\\t"); break;
+                case '\"': escaped.append("\\\""); break;
+                case '\\': escaped.append("\\\\"); break;
+                default: escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private boolean needsEscaping(char c)
+    {
+        return c == '\n' || c == '\r' || c == '\t' || c == '\"' || c == '\\';
+    }
+
+    private void expect(JsonToken token, JsonToken expected) throws IOException
+    {
+        if(token != expected)
+        {
+            throw new IOException("Unexpected token in SPARQL answer, expected " + expected + " but got " + token);
+        }
+    }
+}
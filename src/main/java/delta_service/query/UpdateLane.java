@@ -0,0 +1,173 @@
+package delta_service.query;
+
+import delta_service.config.Configuration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An update lane is a bounded queue of update tickets that is drained by its own writer thread.
+ *
+ * Every graph is assigned to exactly one lane so all updates on a graph are processed in the
+ * order in which they came in, while updates on graphs in different lanes are processed in
+ * parallel.
+ */
+public class UpdateLane
+{
+    // the tickets waiting in this lane
+    private BlockingQueue<UpdateTicket> tickets;
+
+    // the service that processes the update queries
+    private QueryService queryService;
+
+    // the writer thread draining this lane
+    private Thread writer;
+
+    /**
+     * default constructor, creates the queue and starts the writer thread
+     *
+     * @param queryService the service that will process the update queries
+     * @param index the index of this lane, used to name the writer thread
+     * @param capacity the maximum amount of tickets that can wait in this lane
+     */
+    public UpdateLane(QueryService queryService, int index, int capacity)
+    {
+        this.queryService = queryService;
+        this.tickets = new ArrayBlockingQueue<UpdateTicket>(capacity);
+
+        this.writer = new Thread(new Runnable() {
+            public void run() {
+                processTickets();
+            }
+        }, "delta-update-lane-" + index);
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * @return true if at least one more ticket can be put in this lane
+     */
+    public boolean hasRemainingCapacity()
+    {
+        return this.tickets.remainingCapacity() > 0;
+    }
+
+    /**
+     * puts the ticket at the end of this lane
+     *
+     * @param ticket the ticket
+     * @return false if the lane is full
+     */
+    public boolean offer(UpdateTicket ticket)
+    {
+        return this.tickets.offer(ticket);
+    }
+
+    /**
+     * @return the amount of tickets waiting in this lane
+     */
+    public int getDepth()
+    {
+        return this.tickets.size();
+    }
+
+    /**
+     * @return the maximum amount of tickets that can wait in this lane
+     */
+    public int getCapacity()
+    {
+        return this.tickets.size() + this.tickets.remainingCapacity();
+    }
+
+    /**
+     * stops the writer thread
+     */
+    public void stop()
+    {
+        this.writer.interrupt();
+    }
+
+    /**
+     * the loop of the writer thread, tickets are taken one by one. If this lane is the last one
+     * to reach a ticket it processes the update query, otherwise it waits until another lane
+     * has done so.
+     *
+     * When group commit is enabled the tickets that follow a groupable ticket in this lane are
+     * taken along as long as their update queries can be combined with it.
+     */
+    private void processTickets()
+    {
+        int maxBatchSize = Configuration.getIntProperty("groupCommitMaxSize", 100);
+
+        while(!Thread.currentThread().isInterrupted())
+        {
+            try {
+                UpdateTicket ticket = this.tickets.take();
+
+                if(ticket.isSingleLane() && this.queryService.canBeGrouped(ticket.getQueryInfo()))
+                {
+                    this.processBatch(ticket, maxBatchSize);
+                    continue;
+                }
+
+                if(ticket.arrive())
+                {
+                    try {
+                        this.queryService.processNextQuery(ticket.getQueryInfo());
+                    }
+                    finally {
+                        ticket.markProcessed();
+                    }
+                }
+                else
+                {
+                    ticket.awaitProcessed();
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * collects the tickets that can be grouped with the first one and processes them together,
+     * only single lane tickets are taken so no other lane is waiting for them
+     *
+     * @param first the ticket that starts the batch
+     * @param maxBatchSize the maximum amount of update queries in the batch
+     */
+    private void processBatch(UpdateTicket first, int maxBatchSize)
+    {
+        List<UpdateTicket> batch = new ArrayList<UpdateTicket>();
+        List<QueryInfo> queries = new ArrayList<QueryInfo>();
+        batch.add(first);
+        queries.add(first.getQueryInfo());
+
+        // this thread is the only one taking tickets from the queue so peeking and then polling is safe
+        UpdateTicket next = this.tickets.peek();
+        while(next != null && batch.size() < maxBatchSize && next.isSingleLane() &&
+                this.queryService.canBeGroupedWith(first.getQueryInfo(), next.getQueryInfo()))
+        {
+            batch.add(this.tickets.poll());
+            queries.add(next.getQueryInfo());
+            next = this.tickets.peek();
+        }
+
+        for(UpdateTicket ticket : batch)
+        {
+            ticket.arrive();
+        }
+
+        try {
+            this.queryService.processUpdateBatch(queries);
+        }
+        finally {
+            for(UpdateTicket ticket : batch)
+            {
+                ticket.markProcessed();
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package delta_service.query;
+
+/**
+ * This exception symbolyfies that an update query could not be accepted because the
+ * update queue has reached its configured depth.
+ */
+public class UpdateQueueFullException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public UpdateQueueFullException()
+    {
+        super("The update queue is full!");
+    }
+
+    public UpdateQueueFullException(int capacity)
+    {
+        super("The update queue is full, it already holds " + capacity + " update queries");
+    }
+}
@@ -0,0 +1,84 @@
+package delta_service.query;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * An update ticket is the entry that represents an update query in the update lanes.
+ *
+ * An update query that touches graphs belonging to more than one lane gets the same ticket
+ * in each of those lanes. The ticket acts as a barrier: every lane that reaches it arrives at
+ * the ticket, the last lane to arrive processes the update query while the other lanes wait
+ * until it has been processed. Because tickets are always put in the lanes under one lock they
+ * appear in the same relative order in every lane, so lanes cannot wait on each other in a cycle.
+ */
+public class UpdateTicket
+{
+    // the update query this ticket stands for
+    private QueryInfo queryInfo;
+
+    // the amount of lanes that hold this ticket
+    private int lanes;
+
+    // the amount of lanes that have reached this ticket
+    private int arrived = 0;
+
+    // released when the update query has been processed
+    private CountDownLatch processed = new CountDownLatch(1);
+
+    /**
+     * default constructor
+     *
+     * @param queryInfo the update query
+     * @param lanes the amount of lanes in which this ticket is put
+     */
+    public UpdateTicket(QueryInfo queryInfo, int lanes)
+    {
+        this.queryInfo = queryInfo;
+        this.lanes = lanes;
+    }
+
+    /**
+     * @return this.queryInfo
+     */
+    public QueryInfo getQueryInfo()
+    {
+        return this.queryInfo;
+    }
+
+    /**
+     * @return true if this ticket is held by a single lane only
+     */
+    public boolean isSingleLane()
+    {
+        return this.lanes == 1;
+    }
+
+    /**
+     * to be called by a lane that has reached this ticket
+     *
+     * @return true if the calling lane is the last one to arrive, that lane has to process the
+     *         update query
+     */
+    public synchronized boolean arrive()
+    {
+        return ++this.arrived == this.lanes;
+    }
+
+    /**
+     * releases the lanes that are waiting for this ticket to be processed
+     */
+    public void markProcessed()
+    {
+        this.processed.countDown();
+    }
+
+    /**
+     * blocks until the update query of this ticket has been processed
+     *
+     * @throws InterruptedException if the waiting lane is interrupted
+     */
+    public void awaitProcessed() throws InterruptedException
+    {
+        this.processed.await();
+    }
+}
@@ -2,32 +2,47 @@ package delta_service.web;
 
 import SPARQLParser.SPARQL.InvalidSPARQLException;
 import SPARQLParser.SPARQL.SPARQLQuery;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import delta_service.callback.CallBackConfiguration;
+import delta_service.callback.CallBackFilter;
 import delta_service.config.Configuration;
 import delta_service.query.QueryInfo;
 import delta_service.query.QueryService;
 import delta_service.query.Response;
+import delta_service.query.UpdateQueueFullException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.core.env.SystemEnvironmentPropertySource;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.util.StreamUtils;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.MalformedURLException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 
 @RestController
 public class RootController {
@@ -44,26 +59,65 @@ public class RootController {
   public void init()
   {
       try {
-          ObjectMapper mapper = new ObjectMapper();
-          String filename = System.getenv("SUBSCRIBERSFILE");
-          CallBackConfiguration callBackConfiguration = mapper.readValue(new File(filename), CallBackConfiguration.class);
-          for(String callbackString : callBackConfiguration.getPotentials())
-              this.queryService.addCallBack("potentialDifferences", callbackString);
-          for(String callbackString : callBackConfiguration.getEffectives())
-              this.queryService.addCallBack("effectiveDifferences", callbackString);
+          this.loadSubscribers();
       } catch (IOException e) {
           e.printStackTrace();
       }
   }
 
+  /**
+   * Auto wired web entry point
+   *
+   * loads the subscribers file again, the potential and effective call backs are replaced by the
+   * ones in the file at once. Call backs that were registered through the register routes and
+   * that are not in the file are removed.
+   *
+   * @return OK or the reason the file could not be loaded
+   */
+  @RequestMapping(value = "/reloadSubscribers", method = RequestMethod.POST)
+  public ResponseEntity<String> reloadSubscribers()
+  {
+    try {
+      this.loadSubscribers();
+    } catch (IOException e) {
+      e.printStackTrace();
+      return new ResponseEntity<String>("Could not load the subscribers file: " + e.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR);
+    }
+    return new ResponseEntity<String>("OK", HttpStatus.OK);
+  }
+
+  private void loadSubscribers() throws IOException
+  {
+      ObjectMapper mapper = new ObjectMapper();
+      String filename = System.getenv("SUBSCRIBERSFILE");
+      if(filename == null)
+      {
+          throw new IOException("SUBSCRIBERSFILE is not set");
+      }
+      CallBackConfiguration callBackConfiguration = mapper.readValue(new File(filename), CallBackConfiguration.class);
+
+      Map<String, List<String>> callBackLocationsPerSet = new HashMap<String, List<String>>();
+      callBackLocationsPerSet.put("potentialDifferences", orEmpty(callBackConfiguration.getPotentials()));
+      callBackLocationsPerSet.put("effectiveDifferences", orEmpty(callBackConfiguration.getEffectives()));
+      this.queryService.replaceCallBacks(callBackLocationsPerSet);
+  }
+
+  private static List<String> orEmpty(List<String> list)
+  {
+    return list == null ? new ArrayList<String>() : list;
+  }
+
   /**
    * Auto wired web entry point
    *
    * expects a body in the form
    * {
-   *     "callback":"<CALLBACKLOCATION>"
+   *     "callback":"<CALLBACKLOCATION>",
+   *     "filter":{ "graphs":[..], "predicates":[..], "subjectPrefixes":[..], "types":[..] }
    * }
    *
+   * the filter is optional, with a filter the call back is only notified of the triples that pass it
+   *
    * a Call Back object with this location is instantiated and added to the all differences set
    * @param request
    * @param response
@@ -78,7 +132,8 @@ public class RootController {
           ObjectMapper mapper = new ObjectMapper();
           jsonMap = mapper.readValue(body, Map.class);
           String callbackString = (String)jsonMap.get("callback");
-            this.queryService.addCallBack("potentialDifferences", callbackString);
+            CallBackFilter filter = getFilter(jsonMap);
+            this.queryService.addCallBack("potentialDifferences", callbackString, filter);
     }
     catch(IOException e)
     {
@@ -93,9 +148,12 @@ public class RootController {
    *
    * expects a body in the form
    * {
-   *     "callback":"<CALLBACKLOCATION>"
+   *     "callback":"<CALLBACKLOCATION>",
+   *     "filter":{ "graphs":[..], "predicates":[..], "subjectPrefixes":[..], "types":[..] }
    * }
    *
+   * the filter is optional, with a filter the call back is only notified of the triples that pass it
+   *
    * a Call Back object with this location is instantiated and added to the effective differences set
    * @param request
    * @param response
@@ -110,7 +168,8 @@ public class RootController {
       ObjectMapper mapper = new ObjectMapper();
       jsonMap = mapper.readValue(body, Map.class);
       String callbackString = (String)jsonMap.get("callback");
-        this.queryService.addCallBack("effectiveDifferences", callbackString);
+        CallBackFilter filter = getFilter(jsonMap);
+        this.queryService.addCallBack("effectiveDifferences", callbackString, filter);
     }
     catch(IOException e)
     {
@@ -120,18 +179,270 @@ public class RootController {
     return new ResponseEntity<String>("OK", HttpStatus.OK);
   }
 
+  /**
+   * Auto wired web entry point
+   *
+   * expects a body in the form
+   * {
+   *     "callback":"<CALLBACKLOCATION>"
+   * }
+   *
+   * the call back with this location is removed from the potential differences set
+   * @param body
+   * @return OK or NOT_FOUND if there was no such call back
+   */
+  @RequestMapping(value = "/unregisterForPotentialDifferences")
+  public ResponseEntity<String> unregisterAD(@RequestBody(required = false) String body)
+  {
+    return this.unregister("potentialDifferences", body);
+  }
+
+  /**
+   * Auto wired web entry point
+   *
+   * expects a body in the form
+   * {
+   *     "callback":"<CALLBACKLOCATION>"
+   * }
+   *
+   * the call back with this location is removed from the effective differences set
+   * @param body
+   * @return OK or NOT_FOUND if there was no such call back
+   */
+  @RequestMapping(value = "/unregisterForEffectiveDifferences")
+  public ResponseEntity<String> unregisterED(@RequestBody(required = false) String body)
+  {
+    return this.unregister("effectiveDifferences", body);
+  }
+
+  private ResponseEntity<String> unregister(String setName, String body)
+  {
+    try {
+      ObjectMapper mapper = new ObjectMapper();
+      Map<String, Object> jsonMap = mapper.readValue(body, new TypeReference<Map<String, Object>>() {});
+      String callbackString = (String)jsonMap.get("callback");
+      if(this.queryService.removeCallBack(setName, callbackString))
+      {
+        return new ResponseEntity<String>("OK", HttpStatus.OK);
+      }
+    }
+    catch(IOException e)
+    {
+      e.printStackTrace();
+      return new ResponseEntity<String>("Invalid body", HttpStatus.BAD_REQUEST);
+    }
+
+    return new ResponseEntity<String>("Not registered", HttpStatus.NOT_FOUND);
+  }
+
+  /**
+   * Auto wired web entry point
+   *
+   * returns the state of the update pipeline: how many update queries are waiting, how many
+   * can wait at most and how long they have been waiting (in ms) before being processed
+   *
+   * @return a JSON object describing the update queue
+   */
+  @RequestMapping(value = "/updateQueueStatus", produces = "application/json")
+  public ResponseEntity<Map<String, Object>> updateQueueStatus()
+  {
+    Map<String, Object> status = new HashMap<String, Object>();
+    status.put("depth", this.queryService.getUpdateQueueDepth());
+    status.put("capacity", this.queryService.getUpdateQueueCapacity());
+    status.put("processed", this.queryService.getProcessedUpdateQueries());
+    status.put("averageWaitTime", this.queryService.getAverageUpdateWaitTime());
+    status.put("maxWaitTime", this.queryService.getMaxUpdateWaitTime());
+    status.put("notificationBacklog", this.queryService.getNotificationBacklog());
+    status.put("parseCache", this.queryService.getParseCacheStatistics());
+    status.put("queryCache", this.queryService.getQueryCacheStatistics());
+
+    return new ResponseEntity<Map<String, Object>>(status, HttpStatus.OK);
+  }
+
+  /**
+   * Auto wired web entry point
+   *
+   * keeps the connection open and pushes every delta as a server-sent event, the id of an event is
+   * the epoch of the stream and its sequence number. A consumer that reconnects with a Last-Event-ID
+   * header (or a since parameter) gets the deltas it missed, as far as they are still buffered.
+   *
+   * the type parameter picks the effective (default) or potential changes, the graph, predicate,
+   * subjectPrefix and rdfType parameters (each can be repeated) filter the triples like the filter
+   * of a registration does
+   *
+   * @param request
+   * @param lastEventId the id of the last event the consumer got
+   * @param since the id of the last event the consumer got, used without a Last-Event-ID header
+   * @param type effective or potential
+   * @return the emitter of the stream
+   */
+  @RequestMapping(value = "/deltas/stream", method = RequestMethod.GET, produces = "text/event-stream")
+  public SseEmitter streamDeltas(HttpServletRequest request,
+                                 @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId,
+                                 @RequestParam(value = "since", required = false) String since,
+                                 @RequestParam(value = "type", required = false, defaultValue = "effective") String type)
+  {
+    if(lastEventId != null && !lastEventId.isEmpty())
+    {
+      since = lastEventId;
+    }
+
+    Map<String, Object> filterMap = new HashMap<String, Object>();
+    filterMap.put("graphs", getParameterList(request, "graph"));
+    filterMap.put("predicates", getParameterList(request, "predicate"));
+    filterMap.put("subjectPrefixes", getParameterList(request, "subjectPrefix"));
+    filterMap.put("types", getParameterList(request, "rdfType"));
+
+    // the connection stays open until the consumer closes it
+    SseEmitter emitter = new SseEmitter(0L);
+    this.queryService.subscribeToDeltas(emitter, since, !"potential".equals(type), CallBackFilter.fromMap(filterMap));
+    return emitter;
+  }
+
+  private static List<String> getParameterList(HttpServletRequest request, String name)
+  {
+    String [] values = request.getParameterValues(name);
+    return values == null ? new ArrayList<String>() : Arrays.asList(values);
+  }
+
+    /**
+     * Update requests that are sent as application/sparql-update are read while they come in: the
+     * INSERT DATA and DELETE DATA operations in them are processed in chunks of updateChunkSize
+     * triples, so a bulk load is never held in memory as a whole. The request is read on the chunk
+     * executor and answered once the last chunk has been processed. If a chunk finds the update
+     * queue full the request is answered with 503 and a Retry-After header, the chunks before it
+     * have been processed.
+     *
+     * With an updateChunkSize of 0 the body is read as a whole and handled like any other query.
+     *
+     * @param request
+     * @param response
+     * @return a deferred result that will hold the response of the store to the last chunk
+     * @throws InvalidSPARQLException
+     * @throws IOException if the body cannot be opened
+     */
+  @RequestMapping(value = "/sparql", method = RequestMethod.POST, consumes = "application/sparql-update",
+          produces = {"application/sparql-results+xml", "application/sparql-results+json", "text/html", "text/csv", "*"})
+  public DeferredResult<ResponseEntity<String>> preProcessUpdateStream(HttpServletRequest request, HttpServletResponse response) throws InvalidSPARQLException, IOException
+  {
+    String encoding = request.getCharacterEncoding() == null ? "UTF-8" : request.getCharacterEncoding();
+    if(Configuration.getIntProperty("updateChunkSize", 10000) <= 0)
+    {
+      return this.preProcessQuery(request, response, StreamUtils.copyToString(request.getInputStream(), Charset.forName(encoding)));
+    }
+
+    final DeferredResult<ResponseEntity<String>> deferredResult = createDeferredResult(Configuration.getIntProperty("updateStreamTimeout", 3600000));
+    Reader reader = new BufferedReader(new InputStreamReader(request.getInputStream(), encoding));
+    this.queryService.processUpdateStream(reader, getHeaders(request), Configuration.getProperty("updateURL")).whenComplete(new BiConsumer<Response, Throwable>() {
+      public void accept(Response queryResponse, Throwable throwable) {
+        if(throwable instanceof UpdateQueueFullException)
+        {
+          log.warn(throwable.getMessage());
+          deferredResult.setResult(queueFull((UpdateQueueFullException) throwable));
+        }
+        else if(throwable instanceof InvalidSPARQLException)
+        {
+          log.warn(throwable.getMessage());
+          deferredResult.setResult(new ResponseEntity<String>(throwable.getMessage(), HttpStatus.BAD_REQUEST));
+        }
+        else if(throwable != null)
+        {
+          throwable.printStackTrace();
+          deferredResult.setResult(new ResponseEntity<String>(throwable.getLocalizedMessage(), HttpStatus.INTERNAL_SERVER_ERROR));
+        }
+        else
+        {
+          deferredResult.setResult(queryResponse == null ? ResponseEntity.ok("") : toResponseEntity(queryResponse));
+        }
+      }
+    });
+    return deferredResult;
+  }
+
+  /**
+   * creates a deferred result that is answered with 504 if it has no result within the timeout. An
+   * update that times out is still processed, the client is just no longer waiting for it.
+   *
+   * @param timeout the timeout in ms, 0 to wait as long as it takes
+   */
+  private static DeferredResult<ResponseEntity<String>> createDeferredResult(final long timeout)
+  {
+    final DeferredResult<ResponseEntity<String>> deferredResult = new DeferredResult<ResponseEntity<String>>(timeout);
+    deferredResult.onTimeout(new Runnable() {
+      public void run() {
+        deferredResult.setResult(new ResponseEntity<String>("No answer within " + timeout + " ms", HttpStatus.GATEWAY_TIMEOUT));
+      }
+    });
+    return deferredResult;
+  }
+
+  /**
+   * @return the answer to an update that found the update queue full: 503 with a Retry-After header
+   */
+  private static ResponseEntity<String> queueFull(UpdateQueueFullException e)
+  {
+    HttpHeaders responseHeaders = new HttpHeaders();
+    responseHeaders.set(HttpHeaders.RETRY_AFTER, Integer.toString(Configuration.getIntProperty("updateQueueRetryAfter", 1)));
+    return new ResponseEntity<String>(e.getMessage(), responseHeaders, HttpStatus.SERVICE_UNAVAILABLE);
+  }
+
+  /**
+   * @return the filter in the body of a registration, null if it has none (or it is not an object)
+   */
+  private static CallBackFilter getFilter(Map<String, Object> jsonMap)
+  {
+    Object filterMap = jsonMap.get("filter");
+    return filterMap instanceof Map ? CallBackFilter.fromMap((Map<?, ?>) filterMap) : null;
+  }
+
+  private static Map<String, String> getHeaders(HttpServletRequest request)
+  {
+    Map<String, String> headers = new HashMap<String, String>();
+    Enumeration<String> henum = request.getHeaderNames();
+    while(henum.hasMoreElements())
+    {
+      String headerName = henum.nextElement();
+      headers.put(headerName, request.getHeader(headerName));
+    }
+    return headers;
+  }
+
+  private static ResponseEntity<String> toResponseEntity(Response queryResponse)
+  {
+    HttpHeaders responseHeaders = new HttpHeaders();
+    if(queryResponse.responseHeaders != null)
+    {
+      for(String header : queryResponse.responseHeaders.keySet())
+      {
+        responseHeaders.set(header, queryResponse.responseHeaders.get(header));
+      }
+    }
+    return new ResponseEntity<String>(queryResponse.responseText, responseHeaders, HttpStatus.OK);
+  }
+
     /**
      * TODO: Add more supported content types there is a problem with the text/turtle content-type
      * TODO: for some reason the StringHttpMessageConverter barfs on it...
+     *
+     * Update queries are handed to the update pipeline and answered asynchronously, the request
+     * thread is released as soon as the update has been registered and the deferred result is
+     * completed the moment the store has answered.
+     *
+     * Other queries are answered from the query result cache when it is turned on and the response
+     * can be kept, otherwise they are streamed from the store to the client (unless
+     * streamReadQueries is turned off), in that case no deferred result is returned.
+     *
      * @param request
      * @param response
      * @param body
-     * @return
+     * @return a deferred result that will hold the response of the store
      * @throws InvalidSPARQLException
      */
   @RequestMapping(value = "/sparql", produces = {"application/sparql-results+xml", "application/sparql-results+json", "text/html", "text/csv", "*"})
-  public ResponseEntity<String> preProcessQuery(HttpServletRequest request, HttpServletResponse response, @RequestBody(required = false) String body) throws InvalidSPARQLException
+  public DeferredResult<ResponseEntity<String>> preProcessQuery(HttpServletRequest request, HttpServletResponse response, @RequestBody(required = false) String body) throws InvalidSPARQLException
   {
+    final DeferredResult<ResponseEntity<String>> deferredResult = createDeferredResult(Configuration.getIntProperty("requestTimeout", 60000));
+
     try {
          /*
          * Getting the query string,... somehow
@@ -158,20 +469,14 @@ public class RootController {
         /*
          * Getting the headers ... somehow
          */
-        Map<String, String> headers = new HashMap<String, String>();
-        Enumeration<String> henum = request.getHeaderNames();
-        while(henum.hasMoreElements())
-        {
-            String headerName = henum.nextElement();
-            headers.put(headerName, request.getHeader(headerName));
-        }
+        Map<String, String> headers = getHeaders(request);
 
         /*
          * if UPDATE then ...
          */
         SPARQLQuery.Type queryType = null;
         try {
-            queryType = SPARQLQuery.extractType(queryString);
+            queryType = this.queryService.getQueryType(queryString);
         }catch(InvalidSPARQLException invalidSPARQLException)
         {
             invalidSPARQLException.printStackTrace();
@@ -181,7 +486,7 @@ public class RootController {
             /*
              * Getting the parsed query object ... somehow
              */
-            SPARQLQuery parsedQuery = new SPARQLQuery(queryString);
+            SPARQLQuery parsedQuery = this.queryService.parseQuery(queryString);
 
             // prepare the query object
             QueryInfo queryInfo = new QueryInfo();
@@ -190,34 +495,33 @@ public class RootController {
             queryInfo.originalQuery = queryString;
             queryInfo.query = parsedQuery;
 
-            // register it for processing
-            this.queryService.registerUpdateQuery(queryInfo);
-
-            // while it has not been process ... wait
-            while(this.queryService.getProcessedQueries().contains(queryInfo) == false)
+            // register it for processing, the result is set when the store has answered
+            CompletableFuture<Response> queryResponseFuture;
+            try {
+                queryResponseFuture = this.queryService.registerUpdateQuery(queryInfo);
+            }
+            catch(UpdateQueueFullException e)
             {
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
+                // the update pipeline is saturated, ask the client to come back later
+                log.warn(e.getMessage());
+                deferredResult.setResult(queueFull(e));
+                return deferredResult;
             }
 
-            // extract the response and remove all other info
-            String queryResponse = queryInfo.response.responseText;
-            this.queryService.getProcessedQueries().remove(queryInfo);
+            queryResponseFuture.whenComplete(new BiConsumer<Response, Throwable>() {
+                public void accept(Response queryResponse, Throwable throwable) {
+                    if(throwable != null)
+                    {
+                        deferredResult.setResult(new ResponseEntity<String>(throwable.getLocalizedMessage(), HttpStatus.INTERNAL_SERVER_ERROR));
+                        return;
+                    }
 
-            // setting the headers...
-            if(queryInfo.response.responseHeaders != null)
-            {
-                for(String header : queryInfo.response.responseHeaders.keySet())
-                {
-                    response.setHeader(header, queryInfo.response.responseHeaders.get(header));
+                    // return the result with the headers of the store
+                    deferredResult.setResult(toResponseEntity(queryResponse));
                 }
-            }
+            });
 
-            // and then return the result
-            return new ResponseEntity<String>(queryInfo.response.responseText, HttpStatus.OK);
+            return deferredResult;
         }
 
         /**
@@ -225,13 +529,35 @@ public class RootController {
          */
         if(!queryType.equals(SPARQLQuery.Type.UPDATE))
         {
+            if(this.queryService.isQueryCacheEnabled())
+            {
+                // small responses are answered from (and kept in) the query result cache, the
+                // others are streamed like below
+                Response cachedResponse = this.queryService.processReadQuery(queryString, headers, response);
+                if(cachedResponse == null)
+                {
+                    return null;
+                }
+                deferredResult.setResult(toResponseEntity(cachedResponse));
+                return deferredResult;
+            }
+
+            if(Configuration.getBooleanProperty("streamReadQueries", true))
+            {
+                // the answer of the store is written to the response as it comes in, there is
+                // nothing left for spring to do
+                this.queryService.sparqlService.streamSPARQLResponse(Configuration.getProperty("queryURL") + "?query=" + URLEncoder.encode(queryString, "UTF-8"), headers, response);
+                return null;
+            }
+
             Response sparqlResponse = this.queryService.sparqlService.getSPARQLResponse(Configuration.getProperty("queryURL") + "?query=" + URLEncoder.encode(queryString, "UTF-8"), headers);
             String qrp = sparqlResponse.responseText;
             for(String header:sparqlResponse.responseHeaders.keySet())
             {
                 response.setHeader(header, sparqlResponse.responseHeaders.get(header));
             }
-            return new ResponseEntity<String>(qrp, HttpStatus.OK);
+            deferredResult.setResult(new ResponseEntity<String>(qrp, HttpStatus.OK));
+            return deferredResult;
         }
 
     }catch(InvalidSPARQLException e)
@@ -243,7 +569,8 @@ public class RootController {
         e.printStackTrace();
     }
 
-      return ResponseEntity.ok("");
+      deferredResult.setResult(ResponseEntity.ok(""));
+      return deferredResult;
   }
 
 
@@ -0,0 +1,213 @@
+package SPARQLParser.SPARQL;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The query lexer has to split queries in the same tokens as the split query did before it, the
+ * splitter it replaced is kept here as the reference.
+ */
+public class QueryLexerTest
+{
+    @Test
+    public void splitsLikeTheOldSplitter()
+    {
+        String [] queries = {
+                "PREFIX ex: <http://ex/>\nSELECT ?s WHERE {\n  ?s ex:p ?o .\n}",
+                "INSERT DATA { <http://a> <http://p> \"a \\\"quoted\\\" word\" . }",
+                "INSERT DATA { <http://a> <http://p> \"back\\\\slash\\n\\t\" . }",
+                "INSERT DATA { <http://a> <http://p> \"hello\"@en , \"5\"^^xsd:int , \"6\"^^<http://int> . }",
+                "INSERT DATA { <http://a> <http://p> \"hello\" @en . }",
+                "SELECT * WHERE { ?s ?p ?o } # a comment with \"quotes\" and <brackets>\nLIMIT 5",
+                "SELECT * WHERE {?s ?p ?o}\r\nORDER BY ?s",
+                "SELECT ?s WHERE { ?s ?p \"not closed",
+                "SELECT ?s WHERE { ?s ?p <http://not.closed"
+        };
+        for(String query : queries)
+        {
+            assertEquals(query, oldSplit(query), split(query));
+        }
+    }
+
+    @Test
+    public void splitsRandomQueriesLikeTheOldSplitter()
+    {
+        char [] alphabet = " \t\n\r{}\"<>#@^\\.?:abcXYZ019".toCharArray();
+        Random random = new Random(42);
+        for(int n = 0; n < 20000; ++n)
+        {
+            char [] query = new char[random.nextInt(40)];
+            for(int i = 0; i < query.length; ++i)
+            {
+                query[i] = alphabet[random.nextInt(alphabet.length)];
+            }
+            String queryString = new String(query);
+            assertEquals(queryString, oldSplit(queryString), split(queryString));
+        }
+    }
+
+    @Test
+    public void keepsMultiByteCharacters()
+    {
+        String query = "INSERT DATA { <http://ex/caf\u00e9> <http://ex/p> \"\u00e9t\u00e9 \u2603 \ud83d\ude00\"@fr . }";
+        assertEquals(Arrays.asList("INSERT", "DATA", "{", "<http://ex/caf\u00e9>", "<http://ex/p>", "\"\u00e9t\u00e9 \u2603 \ud83d\ude00\"@fr", ".", "}"), split(query));
+    }
+
+    @Test
+    public void dropsCommentsOnce()
+    {
+        // the old splitter added a word right before a comment twice, the newline goes with the comment
+        assertEquals(Arrays.asList("SELECT", "*", "WHERE"), split("SELECT *# comment\nWHERE"));
+        assertEquals(Arrays.asList("?s", "?p"), split("?s # \"not a string\" <not an IRI> {\n?p"));
+    }
+
+    @Test
+    public void countsLines()
+    {
+        QueryLexer lexer = new QueryLexer("SELECT\n\"two\nlines\" # comment\n<http://x>");
+        assertEquals(1, lexer.getLine(0));
+        assertEquals(2, lexer.getLine(2));
+        assertEquals(QueryLexer.STRING, lexer.getKind(2));
+        assertEquals(4, lexer.getLine(3));
+        assertEquals(QueryLexer.URI, lexer.getKind(3));
+    }
+
+    private static List<String> split(String query)
+    {
+        QueryLexer lexer = new QueryLexer(query);
+        List<String> tokens = new ArrayList<String>();
+        for(int i = 0; i < lexer.size(); ++i)
+        {
+            tokens.add(lexer.getToken(i));
+        }
+        return tokens;
+    }
+
+    /**
+     * the splitter of the split query before the query lexer, it reads characters instead of the
+     * bytes in the platform charset and it no longer adds the word before a comment twice, otherwise
+     * it is unchanged
+     */
+    private static List<String> oldSplit(String query)
+    {
+        List<String> splitQuery = new ArrayList<String>();
+        String currentBuffer = "";
+        boolean inString = false;
+        boolean inStringLastWasSpecialChar = false;
+        boolean inComments = false;
+        boolean inURI = false;
+
+        for(char b : query.toCharArray())
+        {
+            if(!inString && !inComments && !inURI)
+            {
+                if(b == ' ' || b == '\t')
+                {
+                    currentBuffer = currentBuffer.trim();
+                    if(currentBuffer.length() > 0) splitQuery.add(currentBuffer);
+                    currentBuffer = "";
+                    continue;
+                }
+                if(b == '\n' || b == '\r' || b == '{' || b == '}')
+                {
+                    currentBuffer = currentBuffer.trim();
+                    if(currentBuffer.length() > 0) splitQuery.add(currentBuffer);
+                    currentBuffer = "";
+                    splitQuery.add("" + b);
+                    continue;
+                }
+                if(b == '\"')
+                {
+                    currentBuffer = currentBuffer.trim();
+                    if(currentBuffer.length() > 0) splitQuery.add(currentBuffer);
+                    currentBuffer = "\"";
+                    inString = true;
+                    continue;
+                }
+                if(b == '<')
+                {
+                    currentBuffer = currentBuffer.trim();
+                    if(currentBuffer.length() > 0) splitQuery.add(currentBuffer);
+                    currentBuffer = "<";
+                    inURI = true;
+                    continue;
+                }
+                if(b == '#')
+                {
+                    currentBuffer = currentBuffer.trim();
+                    if(currentBuffer.length() > 0) splitQuery.add(currentBuffer);
+                    currentBuffer = "";
+                    inComments = true;
+                    continue;
+                }
+                if((b == '@' || b == '^') && currentBuffer.isEmpty() && !splitQuery.isEmpty())
+                {
+                    currentBuffer = splitQuery.remove(splitQuery.size() - 1);
+                    currentBuffer = currentBuffer.trim() + b;
+                    continue;
+                }
+            }
+            else
+            {
+                if(inString)
+                {
+                    if(b == '\\')
+                    {
+                        inStringLastWasSpecialChar = true;
+                        continue;
+                    }
+                    if(inStringLastWasSpecialChar)
+                    {
+                        if(b == '\"')
+                            currentBuffer += "\\" + b;
+                        else
+                            currentBuffer += "\\\\" + b;
+                        inStringLastWasSpecialChar = false;
+                        continue;
+                    }
+                    if(b == '\"')
+                    {
+                        currentBuffer += "\"";
+                        currentBuffer = currentBuffer.trim();
+                        if(currentBuffer.length() > 0) splitQuery.add(currentBuffer);
+                        currentBuffer = "";
+                        inString = false;
+                        continue;
+                    }
+                }
+                if(inURI)
+                {
+                    if(b == '>')
+                    {
+                        currentBuffer += ">";
+                        currentBuffer = currentBuffer.trim();
+                        if(currentBuffer.length() > 0) splitQuery.add(currentBuffer);
+                        currentBuffer = "";
+                        inURI = false;
+                        continue;
+                    }
+                }
+                if(inComments)
+                {
+                    if(b == '\n' || b == '\r')
+                    {
+                        inComments = false;
+                    }
+                    continue;
+                }
+            }
+
+            currentBuffer += b;
+        }
+        currentBuffer = currentBuffer.trim();
+        if(currentBuffer.length() > 0)
+            splitQuery.add(currentBuffer);
+        return splitQuery;
+    }
+}
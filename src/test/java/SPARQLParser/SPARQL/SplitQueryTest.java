@@ -0,0 +1,130 @@
+package SPARQLParser.SPARQL;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SplitQueryTest
+{
+    @Test
+    public void skipsNewLinesAndCountsThem()
+    {
+        SplitQuery.SplitQueryIterator iterator = iterator("SELECT ?s\nWHERE\n\n{ ?s ?p ?o }");
+        assertEquals("SELECT", iterator.next());
+        assertEquals("?s", iterator.next());
+        assertEquals("WHERE", iterator.peekNext());
+        assertEquals(1, iterator.getCurrentLine());
+        assertEquals("WHERE", iterator.next());
+        assertEquals(2, iterator.getCurrentLine());
+        assertEquals("\n", iterator.peekNextIncludingNewLines());
+        assertEquals("{", iterator.next());
+        assertEquals(4, iterator.getCurrentLine());
+        assertEquals(Arrays.asList("?s", "?p", "?o", "}"), rest(iterator));
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void replacesTheCurrentPart()
+    {
+        SplitQuery.SplitQueryIterator iterator = iterator("SELECT {?s ?p ?o }");
+        iterator.next();
+        assertEquals("{", iterator.next());
+        assertEquals("?s", iterator.next());
+        iterator.replaceCurrent(new String [] {"(", "?s", ")"});
+        assertEquals("{ (", iterator.getPrevious(2));
+        assertEquals("?s", iterator.peekNext());
+        assertEquals(Arrays.asList("?s", ")", "?p", "?o", "}"), rest(iterator));
+    }
+
+    @Test
+    public void replacesTheCurrentPartWithMorePartsThanTheGapHolds()
+    {
+        SplitQuery.SplitQueryIterator iterator = iterator("a b c");
+        iterator.next();
+        iterator.next();
+
+        String [] parts = new String[100];
+        List<String> expected = new ArrayList<String>();
+        for(int i = 0; i < parts.length; ++i)
+        {
+            parts[i] = "p" + i;
+            expected.add(parts[i]);
+        }
+        iterator.replaceCurrent(parts);
+        expected.remove(0);
+        expected.add("c");
+
+        assertEquals("a p0", iterator.getPrevious(2));
+        assertEquals(expected, rest(iterator));
+    }
+
+    @Test
+    public void replacesTheCurrentPartWithNothing()
+    {
+        SplitQuery.SplitQueryIterator iterator = iterator("a b c");
+        iterator.next();
+        iterator.next();
+        iterator.replaceCurrent(new String[0]);
+        assertEquals("a", iterator.getPrevious());
+        assertEquals(Arrays.asList("c"), rest(iterator));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void cannotReplaceBeforeTheFirstPart()
+    {
+        iterator("a b").replaceCurrent(new String [] {"x"});
+    }
+
+    @Test
+    public void breaksOffTheStartOfThePart()
+    {
+        SplitQuery.SplitQueryIterator iterator = iterator("FILTER(?s) ?o");
+        assertEquals("FILTER(?s)", iterator.next());
+        iterator.breakOff("filter");
+        assertEquals("FILTER", iterator.getPrevious(1));
+        assertEquals(Arrays.asList("(?s)", "?o"), rest(iterator));
+    }
+
+    @Test
+    public void breaksOffNothingAtTheEnd()
+    {
+        // there has to be a part after the current one
+        SplitQuery.SplitQueryIterator iterator = iterator("FILTER(?s)");
+        iterator.next();
+        iterator.breakOff("filter");
+        assertEquals("FILTER(?s)", iterator.getPrevious(1));
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void throwsAtTheEnd()
+    {
+        SplitQuery.SplitQueryIterator iterator = iterator("a\n");
+        iterator.next();
+        assertTrue(iterator.hasNextIncludingNewLines());
+        assertFalse(iterator.hasNext());
+        iterator.next();
+    }
+
+    private static SplitQuery.SplitQueryIterator iterator(String query)
+    {
+        return (SplitQuery.SplitQueryIterator) new SplitQuery(query).iterator();
+    }
+
+    private static List<String> rest(SplitQuery.SplitQueryIterator iterator)
+    {
+        List<String> parts = new ArrayList<String>();
+        while(iterator.hasNext())
+        {
+            parts.add(iterator.next());
+        }
+        return parts;
+    }
+}
@@ -0,0 +1,111 @@
+package delta_service.callback;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CallBackIndexTest
+{
+    private static final List<String> NO_TYPES = Collections.emptyList();
+
+    @Test
+    public void readsTheFilterOfARegistration()
+    {
+        CallBackFilter filter = filter("graphs", "http://g", "types", "http://Book");
+        assertEquals(set("http://g"), filter.getGraphs());
+        assertEquals(set("http://Book"), filter.getTypes());
+        assertTrue(filter.getPredicates().isEmpty());
+
+        assertNull(CallBackFilter.fromMap(null));
+        assertNull(CallBackFilter.fromMap(new HashMap<String, Object>()));
+    }
+
+    @Test
+    public void matchesEveryRestriction()
+    {
+        CallBackFilter filter = filter("graphs", "http://g", "predicates", "http://p", "subjectPrefixes", "http://ex/books/", "types", "http://Book");
+        assertTrue(filter.matches("http://g", "http://ex/books/1", "http://p", Arrays.asList("http://Thing", "http://Book")));
+        assertFalse(filter.matches("http://other", "http://ex/books/1", "http://p", Arrays.asList("http://Book")));
+        assertFalse(filter.matches("http://g", "http://ex/books/1", "http://q", Arrays.asList("http://Book")));
+        assertFalse(filter.matches("http://g", "http://ex/people/1", "http://p", Arrays.asList("http://Book")));
+        assertFalse(filter.matches("http://g", "http://ex/books/1", "http://p", NO_TYPES));
+    }
+
+    @Test
+    public void routesTriplesToTheCallBacksTheyPass()
+    {
+        CallBack byGraph = callBack("http://a", filter("graphs", "http://g"));
+        CallBack byPredicate = callBack("http://b", filter("predicates", "http://p", "http://q"));
+        CallBack byPrefix = callBack("http://c", filter("subjectPrefixes", "http://ex/", "http://ex/books/"));
+        CallBack byType = callBack("http://d", filter("types", "http://Book"));
+        CallBack byGraphAndPredicate = callBack("http://e", filter("graphs", "http://g", "predicates", "http://q"));
+        CallBack unfiltered = callBack("http://f", null);
+
+        CallBackIndex index = new CallBackIndex(Arrays.asList(byGraph, byPredicate, byPrefix, byType, byGraphAndPredicate, unfiltered));
+        assertFalse(index.isEmpty());
+        assertTrue(index.hasTypeFilters());
+
+        assertEquals(set(byGraph, byPredicate), index.match("http://g", "http://other/1", "http://p", NO_TYPES));
+        assertEquals(set(byGraph, byPredicate, byGraphAndPredicate), index.match("http://g", "http://other/1", "http://q", NO_TYPES));
+        // both prefixes match, the call back is there once
+        assertEquals(set(byPrefix), index.match("http://h", "http://ex/books/1", "http://r", NO_TYPES));
+        assertEquals(set(), index.match("http://h", "http://e", "http://r", NO_TYPES));
+        assertEquals(set(byType), index.match("http://h", "http://other/1", "http://r", Arrays.asList("http://Thing", "http://Book")));
+    }
+
+    @Test
+    public void leavesOutTheCallBacksWithoutAFilter()
+    {
+        CallBackIndex index = new CallBackIndex(Arrays.asList(callBack("http://a", null), callBack("http://b", filter("graphs", "http://g"))));
+        assertFalse(index.hasTypeFilters());
+        assertEquals(1, index.match("http://g", "http://s", "http://p", NO_TYPES).size());
+
+        assertTrue(new CallBackIndex(Arrays.asList(callBack("http://a", null))).isEmpty());
+    }
+
+    /**
+     * @param restrictions a restriction name followed by its values, then the next one
+     */
+    private static CallBackFilter filter(String... restrictions)
+    {
+        Map<String, List<String>> filterMap = new HashMap<String, List<String>>();
+        String name = null;
+        for(String value : restrictions)
+        {
+            if(!value.startsWith("http://"))
+            {
+                name = value;
+                filterMap.put(name, new ArrayList<String>());
+                continue;
+            }
+            filterMap.get(name).add(value);
+        }
+        return CallBackFilter.fromMap(filterMap);
+    }
+
+    private static CallBack callBack(String url, CallBackFilter filter)
+    {
+        CallBack callBack = new CallBack();
+        callBack.setUrl(url);
+        callBack.setFilter(filter);
+        return callBack;
+    }
+
+    @SafeVarargs
+    private static <T> Set<T> set(T... values)
+    {
+        return new HashSet<T>(Arrays.asList(values));
+    }
+}
@@ -0,0 +1,135 @@
+package delta_service.callback;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DeltaOutboxTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void continuesWhereTheSubscriberStoppedAfterARestart() throws Exception
+    {
+        File directory = this.folder.newFolder();
+        DeltaOutbox outbox = new DeltaOutbox(directory, 4096, 60000, 0);
+        long offset = outbox.getOffset("s1");
+        for(int i = 0; i < 5; ++i)
+        {
+            outbox.append("set", NotificationPayload.of("{\"n\":" + i + "}"));
+        }
+        // the subscriber got the first two
+        for(int i = 0; i < 2; ++i)
+        {
+            offset = outbox.awaitRecord(offset, 0).getNextOffset();
+        }
+        outbox.commit("s1", offset);
+        outbox.close();
+
+        outbox = new DeltaOutbox(directory, 4096, 60000, 0);
+        assertEquals(offset, outbox.getOffset("s1"));
+        outbox.append("set", NotificationPayload.of("{\"n\":5}"));
+        for(int i = 2; i < 6; ++i)
+        {
+            DeltaOutbox.Record record = outbox.awaitRecord(offset, 0);
+            assertEquals("set", record.getSetName());
+            assertEquals("{\"n\":" + i + "}", read(outbox.readPayload(record)));
+            offset = record.getNextOffset();
+        }
+        assertNull(outbox.awaitRecord(offset, 10));
+
+        // a subscriber that is not known yet only gets what comes after it
+        assertEquals(offset, outbox.getOffset("s2"));
+        outbox.close();
+    }
+
+    @Test
+    public void deletesTheSegmentsAllSubscribersArePast() throws Exception
+    {
+        File directory = this.folder.newFolder();
+        DeltaOutbox outbox = new DeltaOutbox(directory, 256, 60000, 0);
+        long first = outbox.getOffset("s1");
+        long offset = first;
+        DeltaOutbox.Record oldest = null;
+        for(int i = 0; i < 20; ++i)
+        {
+            outbox.append("set", NotificationPayload.of("{\"n\":" + i + "}"));
+            DeltaOutbox.Record record = outbox.awaitRecord(offset, 0);
+            if(oldest == null)
+                oldest = record;
+            offset = record.getNextOffset();
+        }
+        File firstSegment = new File(directory, String.format("%020d", first) + ".log");
+        assertTrue(directory.list().length > 1);
+
+        // nothing is deleted while the subscriber is behind
+        outbox.append("set", NotificationPayload.of("{\"n\":20}"));
+        assertTrue(firstSegment.exists());
+
+        outbox.commit("s1", offset);
+        for(int i = 0; i < 20; ++i)
+        {
+            outbox.append("set", NotificationPayload.of("{\"n\":" + (21 + i) + "}"));
+        }
+        assertFalse(firstSegment.exists());
+
+        // the payload of a record in a deleted segment is gone, a read continues at the oldest record
+        assertNull(outbox.readPayload(oldest));
+        DeltaOutbox.Record record = outbox.awaitRecord(first, 0);
+        assertTrue(record.getOffset() > first);
+        assertNotNull(outbox.readPayload(record));
+        outbox.close();
+    }
+
+    @Test
+    public void dropsTheOffsetsOfSubscribersWithoutADispatcher() throws Exception
+    {
+        File directory = this.folder.newFolder();
+        DeltaOutbox outbox = new DeltaOutbox(directory, 4096, 20, 100);
+        outbox.getOffset("gone");
+        outbox.getOffset("s1");
+        outbox.append("set", NotificationPayload.of("{\"n\":0}"));
+        outbox.release("gone");
+        assertTrue(outbox.getBacklog("gone") > 0);
+
+        Thread.sleep(500);
+        assertEquals(0, outbox.getBacklog("gone"));
+        assertTrue(outbox.getBacklog("s1") > 0);
+        outbox.close();
+
+        // the expired offset is not stored either, after a restart the subscriber starts at the end
+        outbox = new DeltaOutbox(directory, 4096, 60000, 0);
+        assertEquals(0, outbox.getBacklog("gone"));
+        assertTrue(outbox.getBacklog("s1") > 0);
+        outbox.close();
+    }
+
+    private static String read(NotificationPayload payload) throws IOException
+    {
+        InputStream in = payload.openJSON();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte [] buffer = new byte[256];
+            int read;
+            while((read = in.read(buffer)) > 0)
+            {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package delta_service.query;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class DeltaSerializerTest
+{
+    // quotes, a backslash, a new line, a tab and a non ASCII character
+    private static final String VALUE = "a \"q\" \\ b\nc\td \u00e9";
+
+    @Test
+    public void writesTheLiteralsAsTheStoreSentThem() throws Exception
+    {
+        // the decoder keeps the literal escaped, the serializer has to undo that
+        String rdfJSON = "{\"http://s\":{\"http://p\":[{\"type\":\"literal\",\"value\":" +
+                new ObjectMapper().writeValueAsString(VALUE) + ",\"lang\":\"en\"}]}}";
+        final DifferenceTriples differenceTriples = new DifferenceTriples();
+        new TripleDecoder().decodeRDFJSON(new ByteArrayInputStream(rdfJSON.getBytes("UTF-8")), new Consumer<Triple>() {
+            public void accept(Triple triple) {
+                differenceTriples.addAllInsertTriple(triple);
+                differenceTriples.addEffectiveInsertTriple(triple);
+            }
+        });
+        differenceTriples.addAllDeleteTripel(uri("http://s", "http://p", "http://o"));
+
+        Map<String, DifferenceTriples> diff = new LinkedHashMap<String, DifferenceTriples>();
+        diff.put("http://g", differenceTriples);
+        String query = "INSERT DATA { GRAPH <http://g> { <http://s> <http://p> \"a \\\"q\\\" \\\\ b\\nc\\td \u00e9\"@en } }";
+
+        JsonNode potential = new ObjectMapper().readTree(new DeltaSerializer().serialize(query, diff, false));
+        assertEquals(query, URLDecoder.decode(potential.get("query").asText(), "UTF-8"));
+        JsonNode delta = potential.get("delta").get(0);
+        assertEquals("potential", delta.get("type").asText());
+        assertEquals("http://g", delta.get("graph").asText());
+
+        JsonNode object = delta.get("inserts").get(0).get("o");
+        assertEquals(VALUE, object.get("value").asText());
+        assertEquals("literal", object.get("type").asText());
+        assertEquals("en", object.get("lang").asText());
+        assertFalse(object.has("datatype"));
+
+        JsonNode deleted = delta.get("deletes").get(0);
+        assertEquals("http://s", deleted.get("s").get("value").asText());
+        assertEquals("http://o", deleted.get("o").get("value").asText());
+        assertEquals("uri", deleted.get("o").get("type").asText());
+
+        JsonNode effective = new ObjectMapper().readTree(new DeltaSerializer().serialize(query, diff, true)).get("delta").get(0);
+        assertEquals("effective", effective.get("type").asText());
+        assertEquals(VALUE, effective.get("inserts").get(0).get("o").get("value").asText());
+        assertEquals(0, effective.get("deletes").size());
+    }
+
+    @Test
+    public void writesTheChangesAsFields() throws Exception
+    {
+        Triple triple = new Triple();
+        triple.setSubject("http://s");
+        triple.setPredicate("http://p");
+        triple.setObjectString("1\\n2");
+        triple.setObjectType("http://int");
+
+        String changes = new DeltaSerializer().getChangesAsJSON(Collections.singleton(triple), Collections.<Triple>emptySet());
+        JsonNode json = new ObjectMapper().readTree("{" + changes + "}");
+        assertEquals("1\n2", json.get("inserts").get(0).get("o").get("value").asText());
+        assertEquals("http://int", json.get("inserts").get(0).get("o").get("datatype").asText());
+        assertEquals(0, json.get("deletes").size());
+    }
+
+    private static Triple uri(String subject, String predicate, String object)
+    {
+        Triple triple = new Triple();
+        triple.setSubject(subject);
+        triple.setPredicate(predicate);
+        triple.setObjectString(object);
+        triple.setObjectIsURI(true);
+        return triple;
+    }
+}
@@ -0,0 +1,64 @@
+package delta_service.query;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class DifferenceTriplesTest
+{
+    private static final String RDF_TYPE = "http://www.w3.org/1999/02/22-rdf-syntax-ns#type";
+
+    @Test
+    public void knowsTheTypesInTheChanges()
+    {
+        DifferenceTriples differenceTriples = new DifferenceTriples();
+        differenceTriples.addAllInsertTriple(triple("http://a", RDF_TYPE, "http://Book", true));
+        differenceTriples.addEffectiveInsertTriple(triple("http://a", RDF_TYPE, "http://Book", true));
+        differenceTriples.addAllInsertTriple(triple("http://a", "http://title", "A", false));
+
+        assertEquals(set("http://Book"), differenceTriples.getSubjectTypes(true).get("http://a"));
+        assertEquals(Collections.<String>emptySet(), differenceTriples.getUntypedSubjects());
+    }
+
+    @Test
+    public void looksUpSubjectsWithoutAnEffectiveType()
+    {
+        DifferenceTriples differenceTriples = new DifferenceTriples();
+        // the type was in the store already, so it is only a potential change
+        differenceTriples.addAllInsertTriple(triple("http://a", RDF_TYPE, "http://Book", true));
+        differenceTriples.addAllInsertTriple(triple("http://b", "http://title", "B", false));
+        differenceTriples.addEffectiveInsertTriple(triple("http://b", "http://title", "B", false));
+
+        assertEquals(set("http://a", "http://b"), differenceTriples.getUntypedSubjects());
+        assertNull(differenceTriples.getSubjectTypes(true).get("http://b"));
+
+        differenceTriples.addStoredSubjectType("http://a", "http://Book");
+        differenceTriples.addStoredSubjectType("http://b", "http://Person");
+        Map<String, Set<String>> effectiveTypes = differenceTriples.getSubjectTypes(true);
+        assertEquals(set("http://Book"), effectiveTypes.get("http://a"));
+        assertEquals(set("http://Person"), effectiveTypes.get("http://b"));
+        assertEquals(set("http://Person"), differenceTriples.getSubjectTypes(false).get("http://b"));
+    }
+
+    private static Triple triple(String subject, String predicate, String object, boolean objectIsURI)
+    {
+        Triple triple = new Triple();
+        triple.setSubject(subject);
+        triple.setPredicate(predicate);
+        triple.setObjectString(object);
+        triple.setObjectIsURI(objectIsURI);
+        return triple;
+    }
+
+    private static Set<String> set(String... values)
+    {
+        return new HashSet<String>(Arrays.asList(values));
+    }
+}
@@ -0,0 +1,108 @@
+package delta_service.query;
+
+import SPARQLParser.SPARQL.InvalidSPARQLException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GroundDataChunkerTest
+{
+    private static final String PREFIX = "PREFIX ex: <http://ex/>\n";
+
+    @Test
+    public void doesNotCutInsideStringsIrisOrComments() throws Exception
+    {
+        List<String> chunks = chunk(PREFIX + "INSERT DATA { ex:a ex:p \"x . y\" . ex:b ex:p <http://ex/x.y> . # a . comment\n" +
+                " ex:c ex:p 'it''s . ' . ex:d ex:p \"\"\"long . \"\n\"\"\" . }", 1);
+        assertEquals(4, chunks.size());
+        for(String chunk : chunks)
+        {
+            assertTrue(chunk, chunk.startsWith(PREFIX + "INSERT DATA {"));
+            assertTrue(chunk, chunk.trim().endsWith("}"));
+            assertFalse(chunk, chunk.contains("comment"));
+        }
+        assertTrue(chunks.get(0).contains("ex:a ex:p \"x . y\" ."));
+        assertTrue(chunks.get(1).contains("ex:b ex:p <http://ex/x.y> ."));
+        assertTrue(chunks.get(2).contains("ex:c ex:p 'it''s . ' ."));
+        assertTrue(chunks.get(3).contains("ex:d ex:p \"\"\"long . \"\n\"\"\" ."));
+    }
+
+    @Test
+    public void cutsAfterTheChunkSize() throws Exception
+    {
+        List<String> chunks = chunk(PREFIX + "INSERT DATA { ex:a ex:p 1 . ex:b ex:p 2 . ex:c ex:p 3 . ex:d ex:p 4 . ex:e ex:p 5 }", 2);
+        assertEquals(3, chunks.size());
+        assertTrue(chunks.get(0).contains("ex:a ex:p 1 . ex:b ex:p 2 ."));
+        assertTrue(chunks.get(1).contains("ex:c ex:p 3 . ex:d ex:p 4 ."));
+        assertTrue(chunks.get(2).contains("ex:e ex:p 5"));
+    }
+
+    @Test
+    public void reopensTheGraphBlockInEveryChunk() throws Exception
+    {
+        List<String> chunks = chunk(PREFIX + "INSERT DATA { GRAPH <http://g> { ex:a ex:p 1 . ex:b ex:p 2 . ex:c ex:p 3 } }", 1);
+        assertEquals(3, chunks.size());
+        String [] objects = {"1", "2", "3"};
+        for(int i = 0; i < chunks.size(); ++i)
+        {
+            String chunk = chunks.get(i);
+            assertTrue(chunk, chunk.contains("GRAPH <http://g> {"));
+            assertTrue(chunk, chunk.contains("ex:p " + objects[i]));
+            assertEquals(chunk, count(chunk, '{'), count(chunk, '}'));
+        }
+    }
+
+    @Test
+    public void doesNotCutAfterABlankNode() throws Exception
+    {
+        List<String> chunks = chunk(PREFIX + "INSERT DATA { ex:a ex:p 1 . ex:b ex:p _:x . ex:c ex:p 3 . ex:d ex:p 4 . }", 1);
+        assertEquals(2, chunks.size());
+        assertTrue(chunks.get(0).contains("ex:a ex:p 1 ."));
+        assertTrue(chunks.get(1).contains("ex:b ex:p _:x . ex:c ex:p 3 . ex:d ex:p 4 ."));
+    }
+
+    @Test
+    public void passesOnTheRestAsItWasSent() throws Exception
+    {
+        List<String> chunks = chunk("INSERT DATA { <http://a> <http://p> 1 . } ; DELETE WHERE { ?s ?p ?o }", 1);
+        assertEquals(2, chunks.size());
+        assertTrue(chunks.get(0).contains("<http://a> <http://p> 1 ."));
+        assertEquals("DELETE WHERE { ?s ?p ?o }", chunks.get(1));
+    }
+
+    @Test(expected = InvalidSPARQLException.class)
+    public void failsOnAnUnclosedOperation() throws Exception
+    {
+        chunk(PREFIX + "INSERT DATA { ex:a ex:p \"not closed . }", 1);
+    }
+
+    private static List<String> chunk(String update, int chunkSize) throws IOException, InvalidSPARQLException
+    {
+        GroundDataChunker chunker = new GroundDataChunker(new StringReader(update), chunkSize);
+        List<String> chunks = new ArrayList<String>();
+        String chunk;
+        while((chunk = chunker.next()) != null)
+        {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    private static int count(String string, char c)
+    {
+        int count = 0;
+        for(int i = 0; i < string.length(); ++i)
+        {
+            if(string.charAt(i) == c)
+                ++count;
+        }
+        return count;
+    }
+}
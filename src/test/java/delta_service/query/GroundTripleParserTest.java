@@ -0,0 +1,106 @@
+package delta_service.query;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class GroundTripleParserTest
+{
+    private static final String XSD = "http://www.w3.org/2001/XMLSchema#";
+
+    @Test
+    public void readsTheShorthands()
+    {
+        List<Triple> triples = parse("ex:a ex:p ex:b , <http://c> ; a ex:C .");
+        assertEquals(3, triples.size());
+        assertTriple(triples.get(0), "http://ex/a", "http://ex/p", "http://ex/b");
+        assertTriple(triples.get(1), "http://ex/a", "http://ex/p", "http://c");
+        assertTriple(triples.get(2), "http://ex/a", "http://www.w3.org/1999/02/22-rdf-syntax-ns#type", "http://ex/C");
+        assertTrue(triples.get(2).isObjectIsURI());
+    }
+
+    @Test
+    public void readsTheLiterals()
+    {
+        List<Triple> triples = parse("ex:a ex:p \"x . y\"@en , \"1\"^^xsd:int , \"2\"^^<http://ex/t> , 3 , -4.5 , 1e3 , true ;.");
+        assertEquals(7, triples.size());
+        assertLiteral(triples.get(0), "x . y", null, "en");
+        assertLiteral(triples.get(1), "1", XSD + "int", null);
+        assertLiteral(triples.get(2), "2", "http://ex/t", null);
+        assertLiteral(triples.get(3), "3", XSD + "integer", null);
+        assertLiteral(triples.get(4), "-4.5", XSD + "decimal", null);
+        assertLiteral(triples.get(5), "1e3", XSD + "double", null);
+        assertLiteral(triples.get(6), "true", XSD + "boolean", null);
+    }
+
+    @Test
+    public void fallsBackOnBlankNodes()
+    {
+        assertNull(parse("_:x ex:p 1 ."));
+        assertNull(parse("ex:a ex:p _:x ."));
+        assertNull(parse("ex:a ex:p [ ex:q 1 ] ."));
+    }
+
+    @Test
+    public void fallsBackOnCollections()
+    {
+        assertNull(parse("ex:a ex:p ( 1 2 ) ."));
+    }
+
+    @Test
+    public void fallsBackOnUnknownPrefixes()
+    {
+        assertNull(parse("ex:a other:p 1 ."));
+    }
+
+    @Test
+    public void fallsBackOnEscapedLiterals()
+    {
+        assertNull(parse("ex:a ex:p \"a \\\" b\" ."));
+        assertNull(parse("ex:a ex:p \"a\\nb\" ."));
+    }
+
+    @Test
+    public void fallsBackOnVariables()
+    {
+        assertNull(parse("?s ex:p 1 ."));
+        assertNull(parse("ex:a ex:p ?o ."));
+    }
+
+    @Test
+    public void fallsBackOnUnfinishedTriples()
+    {
+        assertNull(parse("ex:a ex:p"));
+        assertNull(parse("ex:a ex:p 1 ex:b"));
+    }
+
+    private static List<Triple> parse(String block)
+    {
+        Map<String, String> prefixes = new HashMap<String, String>();
+        prefixes.put("ex", "http://ex/");
+        prefixes.put("xsd", XSD);
+        return new GroundTripleParser(prefixes).parse(block);
+    }
+
+    private static void assertTriple(Triple triple, String subject, String predicate, String object)
+    {
+        assertEquals(subject, triple.getSubject());
+        assertEquals(predicate, triple.getPredicate());
+        assertEquals(object, triple.getObjectString());
+    }
+
+    private static void assertLiteral(Triple triple, String value, String type, String language)
+    {
+        assertFalse(triple.isObjectIsURI());
+        assertEquals(value, triple.getObjectString());
+        assertEquals(type, triple.getObjectType());
+        assertEquals(language, triple.getObjectLanguage());
+    }
+}
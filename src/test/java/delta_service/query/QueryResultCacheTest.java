@@ -0,0 +1,127 @@
+package delta_service.query;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class QueryResultCacheTest
+{
+    private static final String P = "SELECT * FROM <http://g> WHERE { ?s <http://p> ?o }";
+    private static final String Q = "SELECT * FROM <http://g> WHERE { ?s <http://q> ?o }";
+
+    @Test
+    public void keysTheQueryWithTheKeyHeaders()
+    {
+        QueryResultCache cache = cache();
+        String key = cache.key(P, headers("Accept", "application/json"));
+        assertEquals(key, cache.key("SELECT  *  FROM <http://g>\nWHERE {?s <http://p> ?o}", headers("accept", " application/json")));
+        assertEquals(key, cache.key(P, headers("Accept", "application/json", "User-Agent", "x")));
+        assertFalse(key.equals(cache.key(P, headers("Accept", "text/csv"))));
+        assertFalse(key.equals(cache.key(P, headers("Accept", "application/json", "MU-SESSION-ID", "s"))));
+    }
+
+    @Test
+    public void dropsTheResponsesAWrittenUpdateTouches()
+    {
+        QueryResultCache cache = cache();
+        assertTrue(cache.put("p", footprint(P), response("p"), cache.getEpoch()));
+        assertTrue(cache.put("q", footprint(Q), response("q"), cache.getEpoch()));
+
+        Object write = cache.startWrite(delta("http://g", "http://p"));
+        // the response is only dropped once the update is written
+        assertNotNull(cache.get("p"));
+        cache.endWrite(write);
+
+        assertNull(cache.get("p"));
+        assertEquals("q", cache.get("q").responseText);
+        assertEquals(1L, cache.getStatistics().get("invalidations"));
+    }
+
+    @Test
+    public void doesNotKeepAResponseThatCameInDuringAWrite()
+    {
+        QueryResultCache cache = cache();
+        long since = cache.getEpoch();
+        Object write = cache.startWrite(delta("http://g", "http://p"));
+
+        assertFalse(cache.put("p", footprint(P), response("p"), since));
+        assertTrue(cache.put("q", footprint(Q), response("q"), since));
+
+        cache.endWrite(write);
+        assertFalse(cache.put("p", footprint(P), response("p"), since));
+        assertTrue(cache.put("p", footprint(P), response("p"), cache.getEpoch()));
+    }
+
+    @Test
+    public void doesNotKeepAResponseOlderThanTheRememberedWrites()
+    {
+        QueryResultCache cache = cache();
+        long since = cache.getEpoch();
+        for(int i = 0; i < 300; ++i)
+        {
+            cache.endWrite(cache.startWrite(delta("http://g", "http://other")));
+        }
+        assertFalse(cache.put("p", footprint(P), response("p"), since));
+        assertTrue(cache.put("p", footprint(P), response("p"), since + 300 - 1));
+    }
+
+    @Test
+    public void anUpdateWithoutChangesHasNoEpoch()
+    {
+        QueryResultCache cache = cache();
+        long since = cache.getEpoch();
+        cache.endWrite(cache.startWrite(Collections.<String, DifferenceTriples>emptyMap()));
+        assertEquals(since, cache.getEpoch());
+    }
+
+    private static QueryResultCache cache()
+    {
+        return new QueryResultCache(1000000, 0, Arrays.asList("Accept", " MU-SESSION-ID ", ""));
+    }
+
+    private static ReadQueryFootprint footprint(String query)
+    {
+        return ReadQueryFootprint.of(query);
+    }
+
+    private static Response response(String text)
+    {
+        Response response = new Response();
+        response.responseText = text;
+        return response;
+    }
+
+    private static Map<String, DifferenceTriples> delta(String graph, String predicate)
+    {
+        Triple triple = new Triple();
+        triple.setSubject("http://s");
+        triple.setPredicate(predicate);
+        triple.setObjectString("1");
+
+        DifferenceTriples differenceTriples = new DifferenceTriples();
+        differenceTriples.addAllInsertTriple(triple);
+        differenceTriples.addEffectiveInsertTriple(triple);
+        Map<String, DifferenceTriples> diff = new HashMap<String, DifferenceTriples>();
+        diff.put(graph, differenceTriples);
+        return diff;
+    }
+
+    private static Map<String, String> headers(String... namesAndValues)
+    {
+        Map<String, String> headers = new HashMap<String, String>();
+        for(int i = 0; i < namesAndValues.length; i += 2)
+        {
+            headers.put(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return headers;
+    }
+}
@@ -0,0 +1,106 @@
+package delta_service.query;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ReadQueryFootprintTest
+{
+    private static final String PREFIX = "PREFIX ex: <http://ex/>\n";
+
+    @Test
+    public void keepsTheGraphsAndPredicates()
+    {
+        ReadQueryFootprint footprint = ReadQueryFootprint.of(PREFIX + "SELECT * FROM <http://g> WHERE { ?s ex:p ?o ; a ex:C }");
+        assertEquals(set("http://g"), footprint.getGraphs());
+        assertEquals(set("http://ex/p", "http://www.w3.org/1999/02/22-rdf-syntax-ns#type"), footprint.getPredicates());
+        assertTrue(footprint.isTouchedBy("http://g", "http://ex/p"));
+        assertTrue(footprint.isTouchedBy("", "http://ex/p"));
+        assertFalse(footprint.isTouchedBy("http://other", "http://ex/p"));
+        assertFalse(footprint.isTouchedBy("http://g", "http://ex/q"));
+    }
+
+    @Test
+    public void readsAnyGraphWithoutFrom()
+    {
+        ReadQueryFootprint footprint = ReadQueryFootprint.of(PREFIX + "SELECT * WHERE { ?s ex:p ?o }");
+        assertNull(footprint.getGraphs());
+        assertEquals(set("http://ex/p"), footprint.getPredicates());
+    }
+
+    @Test
+    public void widensForAVariablePredicate()
+    {
+        ReadQueryFootprint footprint = ReadQueryFootprint.of("SELECT * FROM <http://g> WHERE { ?s ?p ?o }");
+        assertEquals(set("http://g"), footprint.getGraphs());
+        assertNull(footprint.getPredicates());
+    }
+
+    @Test
+    public void widensForPathsOfLengthZero()
+    {
+        assertNull(ReadQueryFootprint.of(PREFIX + "SELECT * WHERE { ?s ex:p* ?o }").getPredicates());
+        assertNull(ReadQueryFootprint.of(PREFIX + "SELECT * WHERE { ?s ex:p? ?o }").getPredicates());
+        assertNull(ReadQueryFootprint.of(PREFIX + "SELECT * WHERE { ?s !ex:p ?o }").getPredicates());
+    }
+
+    @Test
+    public void keepsThePredicatesOfOtherPaths()
+    {
+        assertEquals(set("http://ex/p", "http://ex/q"), ReadQueryFootprint.of(PREFIX + "SELECT * WHERE { ?s ex:p/ex:q ?o }").getPredicates());
+        assertEquals(set("http://ex/p", "http://ex/q"), ReadQueryFootprint.of(PREFIX + "SELECT * WHERE { ?s ex:p|^ex:q ?o }").getPredicates());
+    }
+
+    @Test
+    public void readsTheNamedGraphsInAGraphVariable()
+    {
+        ReadQueryFootprint footprint = ReadQueryFootprint.of(PREFIX + "SELECT * FROM NAMED <http://a> FROM NAMED <http://b> WHERE { GRAPH ?g { ?s ex:p ?o } }");
+        assertEquals(set("http://a", "http://b"), footprint.getGraphs());
+        assertEquals(set("http://ex/p"), footprint.getPredicates());
+
+        assertNull(ReadQueryFootprint.of(PREFIX + "SELECT * WHERE { GRAPH ?g { ?s ex:p ?o } }").getGraphs());
+    }
+
+    @Test
+    public void widensForDescribe()
+    {
+        ReadQueryFootprint footprint = ReadQueryFootprint.of(PREFIX + "DESCRIBE ?s WHERE { ?s ex:p ?o }");
+        assertNull(footprint.getGraphs());
+        assertNull(footprint.getPredicates());
+    }
+
+    @Test
+    public void widensForUndeclaredPrefixes()
+    {
+        ReadQueryFootprint footprint = ReadQueryFootprint.of("SELECT * WHERE { ?s ex:p ?o }");
+        assertNull(footprint.getGraphs());
+        assertNull(footprint.getPredicates());
+    }
+
+    @Test
+    public void hasNoFootprintForVolatileQueries()
+    {
+        assertNull(ReadQueryFootprint.of(PREFIX + "SELECT (NOW() AS ?now) WHERE { ?s ex:p ?o }"));
+        assertNull(ReadQueryFootprint.of(PREFIX + "SELECT * WHERE { SERVICE <http://remote> { ?s ex:p ?o } }"));
+    }
+
+    @Test
+    public void normalizesCommentsAndWhiteSpace()
+    {
+        assertEquals(ReadQueryFootprint.normalize("SELECT * WHERE { ?s ?p \"a  # b\" }"),
+                ReadQueryFootprint.normalize("SELECT  *\nWHERE # a comment\n{?s ?p \"a  # b\"}"));
+        assertFalse(ReadQueryFootprint.normalize("SELECT * WHERE { ?s ?p \"a b\" }")
+                .equals(ReadQueryFootprint.normalize("SELECT * WHERE { ?s ?p \"a  b\" }")));
+    }
+
+    private static HashSet<String> set(String... values)
+    {
+        return new HashSet<String>(Arrays.asList(values));
+    }
+}
@@ -0,0 +1,94 @@
+package delta_service.query;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TripleDecoderTest
+{
+    @Test
+    public void escapesTheLiteralsOfRDFJSON() throws Exception
+    {
+        List<Triple> triples = decodeRDFJSON("{\"http://s\":{\"http://p\":[" +
+                "{\"type\":\"literal\",\"value\":\"a \\\"q\\\" \\\\ b\\nc\\td\",\"lang\":\"en\"}," +
+                "{\"type\":\"literal\",\"value\":\"5\",\"datatype\":\"http://int\"}," +
+                "{\"type\":\"literal\",\"value\":6}," +
+                "{\"type\":\"uri\",\"value\":\"http://o\"}]}}");
+        assertEquals(4, triples.size());
+
+        Triple literal = triples.get(0);
+        assertEquals("http://s", literal.getSubject());
+        assertEquals("http://p", literal.getPredicate());
+        assertFalse(literal.isObjectIsURI());
+        assertEquals("a \\\"q\\\" \\\\ b\\nc\\td", literal.getObjectString());
+        assertEquals("en", literal.getObjectLanguage());
+
+        assertEquals("5", triples.get(1).getObjectString());
+        assertEquals("http://int", triples.get(1).getObjectType());
+        assertEquals("6", triples.get(2).getObjectString());
+
+        assertTrue(triples.get(3).isObjectIsURI());
+        assertEquals("http://o", triples.get(3).getObjectString());
+    }
+
+    @Test
+    public void keepsTheObjectsOfBindingsAsTheyWereSent() throws Exception
+    {
+        List<Triple> triples = decodeBindings("{\"head\":{\"vars\":[\"s\",\"p\",\"o\"]},\"results\":{\"bindings\":[" +
+                "{\"s\":{\"type\":\"uri\",\"value\":\"http://s\"},\"p\":{\"type\":\"uri\",\"value\":\"http://p\"}," +
+                "\"o\":{\"type\":\"literal\",\"xml:lang\":\"en\",\"value\":\"a \\\"q\\\"\\nb\"}}," +
+                "{\"s\":{\"type\":\"uri\",\"value\":\"http://s\"},\"p\":{\"type\":\"uri\",\"value\":\"http://p\"}," +
+                "\"o\":{\"type\":\"typed-literal\",\"datatype\":\"http://int\",\"value\":\"5\"},\"x\":{\"type\":\"uri\",\"value\":\"http://x\"}}]}}");
+        assertEquals(2, triples.size());
+        assertEquals("http://s", triples.get(0).getSubject());
+        assertEquals("http://p", triples.get(0).getPredicate());
+        assertEquals("a \"q\"\nb", triples.get(0).getObjectString());
+        assertEquals("literal", triples.get(0).getObjectType());
+        assertEquals("5", triples.get(1).getObjectString());
+        assertEquals("http://int", triples.get(1).getObjectType());
+    }
+
+    @Test
+    public void decodesAnEmptyAnswer() throws Exception
+    {
+        assertTrue(decodeRDFJSON("{}").isEmpty());
+        assertTrue(decodeBindings("{\"head\":{\"vars\":[]},\"results\":{\"bindings\":[]}}").isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void failsOnAnotherDocument() throws Exception
+    {
+        decodeRDFJSON("[1, 2]");
+    }
+
+    private static List<Triple> decodeRDFJSON(String json) throws IOException
+    {
+        List<Triple> triples = new ArrayList<Triple>();
+        new TripleDecoder().decodeRDFJSON(new ByteArrayInputStream(json.getBytes("UTF-8")), collect(triples));
+        return triples;
+    }
+
+    private static List<Triple> decodeBindings(String json) throws IOException
+    {
+        List<Triple> triples = new ArrayList<Triple>();
+        new TripleDecoder().decodeBindings(new ByteArrayInputStream(json.getBytes("UTF-8")), collect(triples));
+        return triples;
+    }
+
+    private static Consumer<Triple> collect(final List<Triple> triples)
+    {
+        return new Consumer<Triple>() {
+            public void accept(Triple triple) {
+                triples.add(triple);
+            }
+        };
+    }
+}